@@ -0,0 +1,203 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*** Stress test of a replication manager's request handling under parallel
+ *   request threads, as RMI and the NIO workers call it. For each thread
+ *   count, a fresh ServerCommsStub is driven by that many threads, each
+ *   owning its own trams and moving them back to back for the run time,
+ *   mixing advanceTram with getNextStop/updateTramLocation pairs. Prints
+ *   the hops per second of each thread count, then checks the invariants
+ *   once the threads have stopped:
+ *     - every request was answered with success
+ *     - every tram is at the last stop its thread was given
+ *     - no transaction was left open
+ *     - the fleet index holds each tram once, at its registry location
+ *   Exits with status 1 if any run breaks one of them.
+ *
+ *   Configured with system properties:
+ *     tram.bench.threads         request thread counts to run, comma separated (1,2,4,8)
+ *     tram.bench.seconds         run time of each thread count (3)
+ *     tram.bench.tramsPerThread  trams moved by each thread (50) ***/
+public class ConcurrencyStress {
+    public static final String THREADS = System.getProperty("tram.bench.threads", "1,2,4,8");
+    public static final long SECONDS = Long.getLong("tram.bench.seconds", 3);
+    public static final int TRAMS_PER_THREAD = Integer.getInteger("tram.bench.tramsPerThread", 50);
+
+    // Where one thread's trams are, as the replies it got said
+    private static class Trams {
+        final long[] tramIDs = new long[TRAMS_PER_THREAD];
+        final int[] routeIndexes = new int[TRAMS_PER_THREAD];
+        final int[] currentStops = new int[TRAMS_PER_THREAD];
+        final int[] previousStops = new int[TRAMS_PER_THREAD];
+        final boolean[] moved = new boolean[TRAMS_PER_THREAD];
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Set before the first use of the classes that read it
+        if (System.getProperty("tram.logLevel") == null) {
+            System.setProperty("tram.logLevel", "WARN");
+        }
+
+        System.out.printf("%8s %12s %12s %8s %8s %8s %8s %8s%n", "threads", "hops/s",
+                "requests", "trams", "failed", "wrong", "open", "index");
+        boolean passed = true;
+        for (String count : THREADS.split(",")) {
+            passed &= run(Integer.parseInt(count.trim()));
+        }
+        System.out.println(passed ? "All invariants held" : "INVARIANTS BROKEN");
+        System.exit(passed ? 0 : 1);
+    }
+
+    // Runs the passed number of request threads against a fresh handler,
+    // then checks the invariants. Returns whether they all held
+    private static boolean run(int threads) throws InterruptedException {
+        ServerCommsStub handler = new ServerCommsStub(new RouteManager());
+        Trams[] trams = new Trams[threads];
+        AtomicLong hops = new AtomicLong();
+        AtomicLong requests = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(SECONDS);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            Trams owned = placeTrams(t);
+            trams[t] = owned;
+            Thread worker = new Thread(() -> {
+                try {
+                    moveTrams(handler, owned, end, hops, requests, failed);
+                } catch (IOException e) {
+                    System.err.println("Request thread failed: " + e);
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }, "stress-" + t);
+            worker.start();
+        }
+        done.await();
+
+        RouteManager routeManager = handler.getRouteManager();
+        long wrong = 0;
+        long moved = 0;
+        for (Trams owned : trams) {
+            for (int i = 0; i < TRAMS_PER_THREAD; i++) {
+                int location = routeManager.getTramLocation(owned.tramIDs[i]);
+                if (!owned.moved[i]) {
+                    wrong += location == TramRegistry.NOT_FOUND ? 0 : 1;
+                    continue;
+                }
+                moved++;
+                if (location == TramRegistry.NOT_FOUND
+                        || routeManager.routeIDOf(location)
+                                != RouteManager.routeNums[owned.routeIndexes[i]]
+                        || routeManager.stopOf(location) != owned.currentStops[i]) {
+                    wrong++;
+                }
+            }
+        }
+        int open = handler.getActiveTransactions().liveCount();
+        long indexErrors = checkIndex(routeManager, moved);
+
+        System.out.printf("%8d %12.1f %12d %8d %8d %8d %8d %8d%n", threads,
+                hops.get() / (double) SECONDS, requests.get(), moved, failed.get(), wrong,
+                open, indexErrors);
+        return failed.get() == 0 && wrong == 0 && open == 0 && indexErrors == 0;
+    }
+
+    // Gives a thread its trams, each at the first stop of a random route and
+    // unknown to the server until its first move
+    private static Trams placeTrams(int thread) {
+        Trams owned = new Trams();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < TRAMS_PER_THREAD; i++) {
+            owned.tramIDs[i] = (long) (thread + 1) << 32 | i;
+            owned.routeIndexes[i] = random.nextInt(RouteManager.routeNums.length);
+            owned.currentStops[i] = RouteManager.stops[owned.routeIndexes[i]][0];
+        }
+        return owned;
+    }
+
+    // Moves a thread's trams one hop at a time, a random tram each time, until
+    // the end of the run. A hop is an advanceTram request, or a getNextStop
+    // and updateTramLocation pair in one transaction
+    private static void moveTrams(ServerCommsStub handler, Trams owned, long end,
+            AtomicLong hops, AtomicLong requests, AtomicLong failed) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long requestID = 0;
+        long localHops = 0;
+        long localRequests = 0;
+        while (System.nanoTime() < end) {
+            int i = random.nextInt(TRAMS_PER_THREAD);
+            long tramID = owned.tramIDs[i];
+            int routeID = RouteManager.routeNums[owned.routeIndexes[i]];
+            int current = owned.currentStops[i];
+            int previous = owned.previousStops[i];
+
+            long[] reply;
+            if (random.nextBoolean()) {
+                reply = send(handler, new RPCMessage(requestID++,
+                        new long[] {routeID, current, previous, tramID},
+                        TramCommsInterface.ADVANCE_TRAM));
+                localRequests++;
+            } else {
+                RPCMessage getNext = new RPCMessage(requestID++,
+                        new long[] {routeID, current, previous}, TramCommsInterface.GET_NEXT_STOP);
+                reply = send(handler, getNext);
+                localRequests++;
+                if (reply != null && send(handler, new RPCMessage(getNext.getTransactionID(),
+                        requestID++, new long[] {routeID, reply[0], tramID},
+                        TramCommsInterface.UPDATE_LOCATION)) == null) {
+                    reply = null;
+                }
+                localRequests++;
+            }
+            if (reply == null) {
+                failed.incrementAndGet();
+                continue;
+            }
+            owned.previousStops[i] = current;
+            owned.currentStops[i] = (int) reply[0];
+            owned.moved[i] = true;
+            localHops++;
+        }
+        hops.addAndGet(localHops);
+        requests.addAndGet(localRequests);
+    }
+
+    // Processes a request, returning the reply values, or null if the reply
+    // wasn't a success
+    private static long[] send(ServerCommsStub handler, RPCMessage request) throws IOException {
+        Message serialRequest = new Message();
+        serialRequest.marshal(request);
+        RPCMessage reply = handler.processMessage(serialRequest).unmarshal();
+        return reply.getStatus() == TramCommsInterface.FLAG_SUCCESS ? reply.getArgs() : null;
+    }
+
+    // Pages through the fleet index of every route, returning the number of
+    // trams it holds at a location other than the registry's, plus the
+    // difference between the trams it holds and those that moved
+    private static long checkIndex(RouteManager routeManager, long moved) {
+        long errors = 0;
+        long indexed = 0;
+        for (int routeID : RouteManager.routeNums) {
+            long cursor = 0;
+            do {
+                FleetIndex.Page page = routeManager.tramsOnRoute(routeID, cursor,
+                        TramCommsInterface.ROUTE_PAGE_TRAMS);
+                for (int i = 0; i < page.size; i++) {
+                    if (routeManager.getTramLocation(page.tramIDs[i]) != page.locations[i]) {
+                        errors++;
+                    }
+                }
+                indexed += page.size;
+                cursor = page.nextCursor;
+            } while (cursor != 0);
+        }
+        return errors + Math.abs(indexed - moved);
+    }
+}
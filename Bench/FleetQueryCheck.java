@@ -0,0 +1,126 @@
+package tramsimulate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*** Check of the fleet queries through a running front end, with requests
+ *   coalesced into batches as a large client sends them. Places trams of
+ *   its own, one request each, then pages through every route at once so
+ *   that the pages of different routes share batches. The trams returned
+ *   for each route are compared with the registry of one replication
+ *   manager, paged from it directly, and the position of each tram placed
+ *   is asked and compared with where its move put it. Exits with status 1
+ *   if any tram is missing or wrong.
+ *
+ *   Paging breaks if a page's cursor is read by a replication manager other
+ *   than the one that gave it out, which only shows once their tables differ,
+ *   so run it against replication managers with different histories, such
+ *   as one that was restarted and synced from another. The system must be
+ *   otherwise idle, and hold one replica group, for the registries to agree.
+ *
+ *   Configured with system properties:
+ *     tram.check.trams    trams placed (5000)
+ *     tram.check.rmPort   port of the replication manager compared with (8465)
+ *     tram.coalesceMillis coalescing window, 2 if not set ***/
+public class FleetQueryCheck {
+    public static final int TRAMS = Integer.getInteger("tram.check.trams", 5000);
+    public static final int RM_PORT = Integer.getInteger("tram.check.rmPort", 8465);
+    public static final long COALESCE_MILLIS = TramCommsStub.COALESCE_MILLIS > 0 ?
+            TramCommsStub.COALESCE_MILLIS : 2;
+    // Threads making the blocking queries, so that they share batches
+    private static final int QUERY_THREADS = 64;
+
+    public static void main(String[] args) throws Exception {
+        // Set before the first use of the classes that read it
+        if (System.getProperty("tram.logLevel") == null) {
+            System.setProperty("tram.logLevel", "WARN");
+        }
+        TramServer server = new RequestCoalescer(Transport.SELECTED.connect(
+                TramServerClient.port, TramServerClient.url), COALESCE_MILLIS);
+        // The replication managers are bound at the same url as the front end
+        TramCommsStub registry = new TramCommsStub(
+                Transport.SELECTED.connect(RM_PORT, TramServerClient.url));
+        ExecutorService queries = Executors.newFixedThreadPool(QUERY_THREADS);
+
+        // Place each tram with its own stub, all at once so that they are batched
+        Map<Long, TramLocation> placed = new HashMap<Long, TramLocation>();
+        List<CompletableFuture<Void>> moves = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 0; i < TRAMS; i++) {
+            long tramID = ThreadLocalRandom.current().nextLong();
+            int routeIndex = i % RouteManager.routeNums.length;
+            int routeID = RouteManager.routeNums[routeIndex];
+            moves.add(new TramCommsStub(server).advanceTramAsync(tramID, routeID,
+                    RouteManager.stops[routeIndex][0], 0).thenAccept(stop -> {
+                        synchronized (placed) {
+                            placed.put(tramID, new TramLocation(routeID, stop));
+                        }
+                    }));
+        }
+        CompletableFuture.allOf(moves.toArray(new CompletableFuture<?>[0])).join();
+
+        // Page through every route at once
+        List<CompletableFuture<Map<Long, Integer>>> routes =
+                new ArrayList<CompletableFuture<Map<Long, Integer>>>();
+        for (int routeID : RouteManager.routeNums) {
+            routes.add(CompletableFuture.supplyAsync(
+                    () -> new TramCommsStub(server).tramsOnRoute(routeID), queries));
+        }
+
+        System.out.printf("%8s %10s %10s %8s %8s%n", "route", "returned", "registry",
+                "missing", "wrong");
+        long failures = 0;
+        for (int r = 0; r < RouteManager.routeNums.length; r++) {
+            int routeID = RouteManager.routeNums[r];
+            Map<Long, Integer> returned = routes.get(r).join();
+            Map<Long, Integer> expected = registry.tramsOnRoute(routeID);
+            if (returned == null || expected == null) {
+                System.out.printf("%8d query failed%n", routeID);
+                failures++;
+                continue;
+            }
+            int missing = 0;
+            int wrong = 0;
+            for (Map.Entry<Long, Integer> tram : expected.entrySet()) {
+                Integer stop = returned.get(tram.getKey());
+                if (stop == null) {
+                    missing++;
+                } else if (!stop.equals(tram.getValue())) {
+                    wrong++;
+                }
+            }
+            for (Long tramID : returned.keySet()) {
+                if (!expected.containsKey(tramID)) {
+                    wrong++;
+                }
+            }
+            System.out.printf("%8d %10d %10d %8d %8d%n", routeID, returned.size(),
+                    expected.size(), missing, wrong);
+            failures += missing + wrong;
+        }
+
+        // Ask the position of every tram
+        List<CompletableFuture<Boolean>> positions = new ArrayList<CompletableFuture<Boolean>>();
+        for (Map.Entry<Long, TramLocation> tram : placed.entrySet()) {
+            positions.add(CompletableFuture.supplyAsync(() -> {
+                TramLocation position = new TramCommsStub(server).tramPosition(tram.getKey());
+                return position != null && position.route == tram.getValue().route
+                        && position.stop == tram.getValue().stop;
+            }, queries));
+        }
+        long positionsWrong = 0;
+        for (CompletableFuture<Boolean> position : positions) {
+            positionsWrong += position.join() ? 0 : 1;
+        }
+        System.out.printf("positions checked %d, wrong %d%n", placed.size(), positionsWrong);
+        failures += positionsWrong;
+
+        System.out.println(failures == 0 ? "Fleet queries match" : "FLEET QUERIES WRONG");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,266 @@
+package tramsimulate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/*** Microbenchmarks of the request hot paths: the message codec, request
+ *   dispatch in the RM, next stop lookup and tram location updates. Run with
+ *   an optional regular expression as the first argument to choose which
+ *   benchmarks run, and compare the ns/op and B/op columns between releases.
+ *
+ *   Position logging is turned down to warnings unless -Dtram.logLevel is
+ *   set, so the benchmarks don't flood the console ***/
+public class HotPathBench {
+    // Trams placed on the routes before the update benchmark. Set with -Dtram.bench.fleetSize
+    public static final int FLEET_SIZE = Integer.getInteger("tram.bench.fleetSize", 100000);
+    // Argument counts of the codec benchmarks, up to the most the format holds
+    public static final int[] PAYLOAD_SIZES = {0, 4, 16, Message.MAX_BINARY_ARGS};
+    // Distinct requests cycled through, more than the reply cache holds, so
+    // that every dispatch runs its procedure
+    private static final int REQUEST_POOL = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        // Set before the first use of the classes that read it
+        if (System.getProperty("tram.logLevel") == null) {
+            System.setProperty("tram.logLevel", "WARN");
+        }
+
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        MicroBench bench = new MicroBench(System.out);
+        bench.printHeader();
+
+        for (int size : PAYLOAD_SIZES) {
+            run(bench, filter, "codec.marshal args=" + size, marshal(size));
+            run(bench, filter, "codec.unmarshal args=" + size, unmarshal(size));
+            run(bench, filter, "codec.unmarshalReuse args=" + size, unmarshalReuse(size));
+        }
+
+        run(bench, filter, "dispatch.getNextStop", dispatch(TramCommsInterface.GET_NEXT_STOP));
+        run(bench, filter, "dispatch.updateLocation", dispatch(TramCommsInterface.UPDATE_LOCATION));
+        run(bench, filter, "dispatch.advanceTram", dispatch(TramCommsInterface.ADVANCE_TRAM));
+        run(bench, filter, "dispatch.retriedRequest", retriedRequest());
+
+        run(bench, filter, "route.getNextStop stops=5", nextStop(5));
+        run(bench, filter, "route.getNextStop stops=500", nextStop(500));
+
+        run(bench, filter, "routeManager.updateTramLocation trams=" + FLEET_SIZE,
+                updateLocation(FLEET_SIZE, false));
+        run(bench, filter, "routeManager.updateTramLocation wal=" + WriteAheadLog.FSYNC_POLICY
+                + " trams=" + FLEET_SIZE, updateLocation(FLEET_SIZE, true));
+        run(bench, filter, "routeManager.tramsAtStop page trams=" + FLEET_SIZE,
+                tramsAtStop(FLEET_SIZE));
+
+        System.out.println("(sink " + bench.sink() + ")");
+    }
+
+    private static void run(MicroBench bench, Pattern filter, String name,
+            MicroBench.Workload workload) throws Exception {
+        if (filter.matcher(name).find()) {
+            bench.run(name, workload);
+        }
+    }
+
+    /*** Codec ***/
+
+    private static long[] randomArgs(int size) {
+        long[] args = new long[size];
+        for (int i = 0; i < size; i++) {
+            // Mostly small values, as in real requests, with some full width IDs
+            args[i] = i % 4 == 3 ? ThreadLocalRandom.current().nextLong() :
+                    ThreadLocalRandom.current().nextInt(1000);
+        }
+        return args;
+    }
+
+    private static MicroBench.Workload marshal(int size) {
+        RPCMessage request = new RPCMessage(1, randomArgs(size), TramCommsInterface.GET_NEXT_STOP);
+        Message message = new Message();
+        return ops -> {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                message.marshal(request);
+                result += message.getLength();
+            }
+            return result;
+        };
+    }
+
+    private static MicroBench.Workload unmarshal(int size) throws Exception {
+        Message message = new Message();
+        message.marshal(new RPCMessage(1, randomArgs(size), TramCommsInterface.GET_NEXT_STOP));
+        return ops -> {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                result += message.unmarshal().getArgs().length;
+            }
+            return result;
+        };
+    }
+
+    // Decoding into a reused message, as the RM does
+    private static MicroBench.Workload unmarshalReuse(int size) throws Exception {
+        Message message = new Message();
+        message.marshal(new RPCMessage(1, randomArgs(size), TramCommsInterface.GET_NEXT_STOP));
+        RPCMessage target = new RPCMessage();
+        WireBuffer reader = new WireBuffer(null, 0);
+        return ops -> {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                message.unmarshal(target, reader);
+                result += target.getArgs().length;
+            }
+            return result;
+        };
+    }
+
+    /*** Dispatch ***/
+
+    // Valid requests of the passed procedure for trams moving along route 96
+    private static Message[] requests(short procedure, int count) throws Exception {
+        int[] stops = RouteManager.stops[1];
+        Message[] requests = new Message[count];
+        for (int i = 0; i < count; i++) {
+            long tramID = i % 1024;
+            int position = 1 + i % (stops.length - 2);
+            long[] args;
+            if (procedure == TramCommsInterface.UPDATE_LOCATION) {
+                args = new long[] {96, stops[position], tramID};
+            } else if (procedure == TramCommsInterface.ADVANCE_TRAM) {
+                args = new long[] {96, stops[position], stops[position - 1], tramID};
+            } else {
+                args = new long[] {96, stops[position], stops[position - 1]};
+            }
+            requests[i] = new Message();
+            requests[i].marshal(new RPCMessage(i, args, procedure));
+        }
+        return requests;
+    }
+
+    // A pool of distinct requests processed into a reused reply, as the RM's
+    // request threads do
+    private static MicroBench.Workload dispatch(short procedure) throws Exception {
+        ServerCommsStub stub = new ServerCommsStub(new RouteManager());
+        Message[] requests = requests(procedure, REQUEST_POOL);
+        // Register the trams, so every request is valid
+        for (Message request : requests(TramCommsInterface.UPDATE_LOCATION, 1024)) {
+            stub.processMessage(request);
+        }
+        Message reply = new Message();
+        return ops -> {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                stub.processMessage(requests[i & (REQUEST_POOL - 1)], reply);
+                result += reply.getLength();
+            }
+            return result;
+        };
+    }
+
+    // The same request processed again, answered from the reply cache
+    private static MicroBench.Workload retriedRequest() throws Exception {
+        ServerCommsStub stub = new ServerCommsStub(new RouteManager());
+        Message request = requests(TramCommsInterface.GET_NEXT_STOP, 1)[0];
+        Message reply = new Message();
+        return ops -> {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                stub.processMessage(request, reply);
+                result += reply.getLength();
+            }
+            return result;
+        };
+    }
+
+    /*** Routes ***/
+
+    private static MicroBench.Workload nextStop(int stopCount) {
+        int[] stops = new int[stopCount];
+        for (int i = 0; i < stopCount; i++) {
+            stops[i] = 1000 + i * 7;
+        }
+        TramRoute route = new TramRoute(stops, RouteManager.MAX_ROUTE_TRAMS,
+                new TramRegistry(new int[] {stopCount}), 0);
+        // Random positions along the route, so the lookup can't be predicted
+        int[] positions = new int[1024];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = 1 + ThreadLocalRandom.current().nextInt(stopCount - 2);
+        }
+        return ops -> {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                int position = positions[i & 1023];
+                result += route.getNextStop(stops[position], stops[position - 1]);
+            }
+            return result;
+        };
+    }
+
+    // Moves trams of a large fleet spread over every route, recording each
+    // move in a write-ahead log in a temporary directory if asked, and
+    // committing it as a request would
+    private static MicroBench.Workload updateLocation(int fleetSize, boolean logged)
+            throws IOException {
+        RouteManager routeManager = new RouteManager();
+        WriteAheadLog log = null;
+        if (logged) {
+            File dir = Files.createTempDirectory("tram-wal").toFile();
+            log = new WriteAheadLog(dir);
+            log.replay(routeManager.getRegistry(), 0);
+            routeManager.getRegistry().setLog(log);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (File segment : dir.listFiles()) {
+                    segment.delete();
+                }
+                dir.delete();
+            }));
+        }
+        WriteAheadLog commitLog = log;
+        long[] tramIDs = new long[fleetSize];
+        int[] routes = new int[fleetSize];
+        int[] newStops = new int[fleetSize];
+        for (int i = 0; i < fleetSize; i++) {
+            int route = i % RouteManager.routeNums.length;
+            int[] stops = RouteManager.stops[route];
+            tramIDs[i] = ThreadLocalRandom.current().nextLong();
+            routes[i] = RouteManager.routeNums[route];
+            newStops[i] = stops[(i / RouteManager.routeNums.length) % stops.length];
+            routeManager.updateTramLocation(tramIDs[i], routes[i], stops[0]);
+        }
+        return ops -> {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                int tram = (int) ((i * 7919L) % fleetSize);
+                if (routeManager.updateTramLocation(tramIDs[tram], routes[tram], newStops[tram])) {
+                    result++;
+                }
+                if (commitLog != null) {
+                    commitLog.commit();
+                }
+            }
+            return result;
+        };
+    }
+
+    // Reads the first page of the trams at or heading to a stop on three
+    // routes, in a large fleet spread over every stop of every route
+    private static MicroBench.Workload tramsAtStop(int fleetSize) {
+        RouteManager routeManager = new RouteManager();
+        for (int i = 0; i < fleetSize; i++) {
+            int route = i % RouteManager.routeNums.length;
+            int[] stops = RouteManager.stops[route];
+            routeManager.updateTramLocation(ThreadLocalRandom.current().nextLong(),
+                    RouteManager.routeNums[route],
+                    stops[(i / RouteManager.routeNums.length) % stops.length]);
+        }
+        return ops -> {
+            long result = 0;
+            for (int i = 0; i < ops; i++) {
+                result += routeManager.tramsAtStop(34, 0, TramCommsInterface.STOP_PAGE_TRAMS).size;
+            }
+            return result;
+        };
+    }
+}
@@ -0,0 +1,100 @@
+package tramsimulate;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/** Minimal microbenchmark harness, for measuring hot paths without any build
+ *  tooling. Each benchmark runs its own loop of operations, so the harness adds
+ *  no call per operation. A benchmark is first run for the warm up iterations
+ *  so that the JIT compiles it, then for the measured iterations, each of
+ *  which is sized to take about the iteration time. Reports the mean time per
+ *  operation with its spread over the iterations, and the bytes allocated per
+ *  operation by the benchmark thread.
+ *
+ *  Results of each operation should be folded into the value the benchmark
+ *  returns, so the JIT can't remove the work as unused. */
+public class MicroBench {
+    // Set with -Dtram.bench.warmupIterations
+    public static final int WARMUP_ITERATIONS = Integer.getInteger("tram.bench.warmupIterations", 5);
+    // Set with -Dtram.bench.iterations
+    public static final int ITERATIONS = Integer.getInteger("tram.bench.iterations", 5);
+    // Set with -Dtram.bench.iterationMillis
+    public static final long ITERATION_MILLIS = Long.getLong("tram.bench.iterationMillis", 1000);
+
+    // A benchmark body, run for the passed number of operations
+    public interface Workload {
+        long run(int ops) throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final PrintStream out;
+    private long sink = 0; // Results of every run, so that none are unused
+
+    // Creates a harness that prints its results to the passed stream
+    public MicroBench(PrintStream out) {
+        this.out = out;
+    }
+
+    // Prints the heading of the results table
+    public void printHeader() {
+        out.printf("%-44s %12s %10s %10s%n", "benchmark", "ns/op", "+/-", "B/op");
+    }
+
+    // Warms up and measures a benchmark, printing its row of results
+    public void run(String name, Workload workload) throws Exception {
+        long iterationNanos = TimeUnit.MILLISECONDS.toNanos(ITERATION_MILLIS);
+        int ops = calibrate(workload, iterationNanos);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sink += workload.run(ops);
+        }
+
+        double[] nanosPerOp = new double[ITERATIONS];
+        long allocated = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long startBytes = allocatedBytes();
+            long start = System.nanoTime();
+            sink += workload.run(ops);
+            nanosPerOp[i] = (System.nanoTime() - start) / (double) ops;
+            allocated += allocatedBytes() - startBytes;
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value / ITERATIONS;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / Math.max(1, ITERATIONS - 1);
+        }
+        out.printf("%-44s %12.2f %10.2f %10.2f%n", name, mean, Math.sqrt(variance),
+                allocated / ((double) ops * ITERATIONS));
+    }
+
+    // Returns the value folded from every run, to be printed by the caller
+    public long sink() {
+        return sink;
+    }
+
+    // Finds the number of operations that take about one iteration
+    private int calibrate(Workload workload, long iterationNanos) throws Exception {
+        int ops = 1;
+        while (true) {
+            long start = System.nanoTime();
+            sink += workload.run(ops);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed > iterationNanos / 10 || ops >= Integer.MAX_VALUE / 2) {
+                return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                        (double) ops * iterationNanos / Math.max(1, elapsed)));
+            }
+            ops *= 2;
+        }
+    }
+
+    private static long allocatedBytes() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,144 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*** Benchmark of the two transports on their own, with a replication manager's
+ *   request handling as the server and client threads in the same process.
+ *   For each transport and number of client threads, every thread sends
+ *   getNextStop requests back to back for the run time. Over RMI each call
+ *   is made through the stub; over NIO all threads share one pipelined
+ *   connection. Prints the throughput, the latency percentiles and the bytes
+ *   allocated per request by the client threads.
+ *
+ *   Configured with system properties:
+ *     tram.bench.clients         client thread counts to run, comma separated (1,16,64)
+ *     tram.bench.seconds         measured time of each run (5)
+ *     tram.bench.warmupSeconds   time each run is warmed up for (2) ***/
+public class TransportBench {
+    public static final String CLIENTS = System.getProperty("tram.bench.clients", "1,16,64");
+    public static final long SECONDS = Long.getLong("tram.bench.seconds", 5);
+    public static final long WARMUP_SECONDS = Long.getLong("tram.bench.warmupSeconds", 2);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Processes requests as a replication manager does, without the registry
+    // and the singleton of TramServerImpl
+    private static class BenchServer implements TramServer {
+        private final ServerCommsStub handler = new ServerCommsStub(new RouteManager());
+        private final ThreadLocal<Message> replies = ThreadLocal.withInitial(Message::new);
+
+        public Message makeRequest(Message request) throws RemoteException {
+            try {
+                Message reply = replies.get();
+                handler.processMessage(request, reply);
+                return reply;
+            } catch (IOException e) {
+                throw new RemoteException("Could not process request", e);
+            }
+        }
+
+        public Message[] makeBatchRequest(Message[] requests) throws RemoteException {
+            try {
+                return handler.processBatch(requests);
+            } catch (IOException e) {
+                throw new RemoteException("Could not process batch", e);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Set before the first use of the classes that read them
+        if (System.getProperty("tram.logLevel") == null) {
+            System.setProperty("tram.logLevel", "WARN");
+        }
+
+        BenchServer server = new BenchServer();
+        TramServer rmi = (TramServer) UnicastRemoteObject.exportObject(server, 0);
+        NioTramServer listener = new NioTramServer(server, 0);
+        NioTramClient nio = new NioTramClient(null, listener.getPort());
+
+        System.out.printf("%-10s %8s %12s %10s %10s %10s %10s%n", "transport", "clients",
+                "req/s", "p50 us", "p99 us", "p99.9 us", "B/op");
+        for (String clients : CLIENTS.split(",")) {
+            int threads = Integer.parseInt(clients.trim());
+            run("RMI", rmi, threads);
+            run("NIO", nio, threads);
+        }
+
+        nio.close();
+        listener.close();
+        UnicastRemoteObject.unexportObject(server, true);
+        System.exit(0);
+    }
+
+    // Warms up and measures one transport with the passed number of client threads
+    private static void run(String name, TramServer server, int threads) throws Exception {
+        LatencyHistogram latencies = new LatencyHistogram();
+        AtomicLong allocated = new AtomicLong();
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long measureEnd = measureStart + TimeUnit.SECONDS.toNanos(SECONDS);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            long firstRequestID = (long) t << 32;
+            Thread client = new Thread(() -> {
+                try {
+                    sendRequests(server, firstRequestID, measureStart, measureEnd,
+                            latencies, allocated);
+                } catch (Exception e) {
+                    System.err.println(name + " client failed: " + e);
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-client-" + t);
+            client.start();
+        }
+        done.await();
+
+        long count = latencies.getCount();
+        System.out.printf("%-10s %8d %12.1f %10.1f %10.1f %10.1f %10.1f%n", name, threads,
+                count / (double) SECONDS, latencies.getPercentile(50) / 1000.0,
+                latencies.getPercentile(99) / 1000.0, latencies.getPercentile(99.9) / 1000.0,
+                allocated.get() / (double) Math.max(1, count));
+    }
+
+    // Sends requests back to back until the end of the run, recording those
+    // started in the measured time
+    private static void sendRequests(TramServer server, long requestID, long measureStart,
+            long measureEnd, LatencyHistogram latencies, AtomicLong allocated) throws Exception {
+        int[] stops = RouteManager.stops[1];
+        long threadID = Thread.currentThread().getId();
+        long startBytes = -1;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= measureEnd) {
+                break;
+            }
+            if (startBytes < 0 && now >= measureStart) {
+                startBytes = THREADS.getThreadAllocatedBytes(threadID);
+            }
+
+            int position = 1 + (int) (requestID % (stops.length - 2));
+            Message request = new Message();
+            request.marshal(new RPCMessage(requestID++,
+                    new long[] {96, stops[position], stops[position - 1]},
+                    TramCommsInterface.GET_NEXT_STOP));
+            server.makeRequest(request);
+
+            if (now >= measureStart) {
+                latencies.record(System.nanoTime() - now);
+            }
+        }
+        if (startBytes >= 0) {
+            allocated.addAndGet(THREADS.getThreadAllocatedBytes(threadID) - startBytes);
+        }
+    }
+}
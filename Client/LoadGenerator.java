@@ -0,0 +1,251 @@
+package tramsimulate;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*** Load generator for measuring the throughput and latency of the whole
+ *   client -> front end -> replication manager path. Drives a set of trams
+ *   through their client stubs, one request at a time, and reports latency
+ *   percentiles for each procedure, the throughput, and the number of
+ *   requests that ended with each status.
+ *
+ *   In CLOSED mode each worker thread owns one tram and makes its requests
+ *   back to back, or paced at an even share of the target rate. In OPEN mode
+ *   requests arrive at the target rate whether or not earlier ones have been
+ *   answered, and wait for a free tram, so a slow server shows up as queueing.
+ *   Response times are measured from when each request was meant to start,
+ *   which corrects them for coordinated omission; service times are measured
+ *   from when the request was actually sent. A failed request is retried as
+ *   the tram's next request. A share of the requests can be made position
+ *   queries rather than moves, to measure reads alongside the updates.
+ *
+ *   Configured with system properties:
+ *     tram.load.mode             OPEN or CLOSED (CLOSED)
+ *     tram.load.rate             target requests per second, 0 for unpaced (0)
+ *     tram.load.trams            trams, and worker threads in CLOSED mode (16)
+ *     tram.load.threads          worker threads in OPEN mode (64)
+ *     tram.load.durationSeconds  length of the measured run (30)
+ *     tram.load.warmupSeconds    run time before measuring starts (5)
+ *     tram.load.readFraction     share of requests that are position queries (0) ***/
+public class LoadGenerator {
+    public enum Mode {OPEN, CLOSED};
+
+    public static final Mode MODE = Mode.valueOf(System.getProperty("tram.load.mode", "CLOSED"));
+    public static final double RATE =
+            Double.parseDouble(System.getProperty("tram.load.rate", "0"));
+    public static final int TRAMS = Integer.getInteger("tram.load.trams", 16);
+    public static final int THREADS = Integer.getInteger("tram.load.threads", 64);
+    public static final long DURATION_SECONDS = Long.getLong("tram.load.durationSeconds", 30);
+    public static final long WARMUP_SECONDS = Long.getLong("tram.load.warmupSeconds", 5);
+    public static final double READ_FRACTION =
+            Double.parseDouble(System.getProperty("tram.load.readFraction", "0"));
+
+    // Statuses are counted at their value plus this offset, so the client
+    // side statuses below zero have a place
+    private static final int STATUS_OFFSET = -TramCommsStub.STATUS_MALFORMED_REPLY;
+    private static final int PROCEDURES = TramCommsInterface.PROCEDURE_NAMES.length;
+
+    private final TramServer server;
+    private final LatencyHistogram[] serviceTimes = new LatencyHistogram[PROCEDURES];
+    private final LatencyHistogram[] responseTimes = new LatencyHistogram[PROCEDURES];
+    private final AtomicLongArray statusCounts =
+            new AtomicLongArray(STATUS_OFFSET + TramCommsInterface.ERROR_MESSAGES.length);
+    private long measureStart; // Requests meant to start before this are not measured
+    private long measureEnd; // No requests are started after this
+    private volatile boolean running = true;
+
+    // Creates a load generator that sends its requests to the passed server
+    public LoadGenerator(TramServer server) {
+        this.server = server;
+        for (int i = 0; i < PROCEDURES; i++) {
+            serviceTimes[i] = new LatencyHistogram();
+            responseTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            // Retrieve the front end's object over the selected transport
+            TramServer remoteServer = Transport.SELECTED.connect(TramServerClient.port,
+                    TramServerClient.url);
+            if (TramCommsStub.COALESCE_MILLIS > 0) {
+                remoteServer = new RequestCoalescer(remoteServer, TramCommsStub.COALESCE_MILLIS);
+            }
+
+            LoadGenerator generator = new LoadGenerator(remoteServer);
+            generator.run(MODE, RATE, TRAMS, THREADS);
+            generator.printReport(System.out);
+            System.exit(0);
+        } catch (RemoteException ex) {
+            System.err.println("Couldn't contact registry.");
+            System.err.println(ex);
+            System.exit(1);
+        } catch (NotBoundException ex) {
+            System.err.println("There is no object bound to " + TramServerClient.url);
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            System.exit(1);
+        }
+    }
+
+    /*** Runs the load for the warm up and measured durations, returning once
+     *** every request that was started has finished ***/
+    public void run(Mode mode, double rate, int trams, int threads) throws InterruptedException {
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+
+        if (mode == Mode.CLOSED) {
+            runClosed(rate, trams, start);
+        } else {
+            runOpen(rate, trams, threads, start);
+        }
+    }
+
+    // Each worker makes its tram's requests in turn, paced at its share of the rate
+    private void runClosed(double rate, int trams, long start) throws InterruptedException {
+        long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * trams / rate) : 0;
+        Thread[] workers = new Thread[trams];
+
+        for (int i = 0; i < trams; i++) {
+            Tram tram = new Tram(server, false);
+            // Spread the first requests of the workers over one interval
+            long first = start + intervalNanos * i / trams;
+            workers[i] = new Thread(() -> {
+                for (long intended = first; intended < measureEnd && running;
+                        intended += intervalNanos) {
+                    waitUntil(intended);
+                    long sent = Math.max(intended, System.nanoTime());
+                    // Unpaced requests are meant to start when the last one ends
+                    step(tram, intervalNanos > 0 ? intended : sent, sent);
+                    if (intervalNanos == 0) {
+                        intended = System.nanoTime();
+                    }
+                }
+            }, "load-worker-" + i);
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    // A dispatcher hands requests to the worker pool at their arrival times.
+    // Each request waits for a free tram
+    private void runOpen(double rate, int trams, int threads, long start)
+            throws InterruptedException {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("OPEN mode needs a rate (tram.load.rate)");
+        }
+        BlockingQueue<Tram> idle = new ArrayBlockingQueue<Tram>(trams);
+        for (int i = 0; i < trams; i++) {
+            idle.add(new Tram(server, false));
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * intervalNanos);
+            if (intended >= measureEnd) {
+                break;
+            }
+            waitUntil(intended);
+            workers.execute(() -> {
+                try {
+                    Tram tram = idle.take();
+                    step(tram, intended, System.nanoTime());
+                    idle.add(tram);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        running = false;
+    }
+
+    // Makes a tram's next request, recording its latencies if it was meant to
+    // start within the measured part of the run
+    private void step(Tram tram, long intended, long sent) {
+        if (READ_FRACTION > 0 && ThreadLocalRandom.current().nextDouble() < READ_FRACTION) {
+            tram.tryQuery();
+        } else {
+            tram.tryStep();
+        }
+        long done = System.nanoTime();
+        if (intended < measureStart) {
+            return;
+        }
+
+        TramCommsStub stub = tram.getStub();
+        int procedure = stub.getLastProcedure();
+        serviceTimes[procedure].record(done - sent);
+        responseTimes[procedure].record(done - intended);
+        statusCounts.incrementAndGet(stub.getLastStatus() + STATUS_OFFSET);
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    // Prints latency percentiles in microseconds, the throughput and the status counts
+    public void printReport(java.io.PrintStream out) {
+        out.printf("%s load, %d seconds measured%n", MODE, DURATION_SECONDS);
+        out.printf("%-16s %-8s %9s %10s %9s %9s %9s %9s%n", "procedure", "latency",
+                "count", "req/s", "p50 us", "p99 us", "p99.9 us", "max us");
+
+        long total = 0;
+        for (int i = 0; i < PROCEDURES; i++) {
+            long count = serviceTimes[i].getCount();
+            if (count == 0) {
+                continue;
+            }
+            total += count;
+            printRow(out, TramCommsInterface.PROCEDURE_NAMES[i], "service", serviceTimes[i]);
+            printRow(out, "", "response", responseTimes[i]);
+        }
+        out.printf("throughput: %.1f req/s%n", total / (double) DURATION_SECONDS);
+
+        out.println("statuses:");
+        for (int i = 0; i < statusCounts.length(); i++) {
+            if (statusCounts.get(i) != 0) {
+                out.printf("%12d  %s%n", statusCounts.get(i), statusName(i - STATUS_OFFSET));
+            }
+        }
+    }
+
+    private static void printRow(java.io.PrintStream out, String procedure, String kind,
+            LatencyHistogram histogram) {
+        out.printf("%-16s %-8s %9d %10.1f %9.1f %9.1f %9.1f %9.1f%n", procedure, kind,
+                histogram.getCount(), histogram.getCount() / (double) DURATION_SECONDS,
+                histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0);
+    }
+
+    private static String statusName(int status) {
+        switch (status) {
+        case TramCommsInterface.FLAG_SUCCESS:
+            return "success";
+        case TramCommsInterface.FLAG_NO_MARTIAL:
+            return "request could not be unmarshalled";
+        case TramCommsStub.STATUS_NO_REPLY:
+            return "no reply (retried)";
+        case TramCommsStub.STATUS_MALFORMED_REPLY:
+            return "malformed reply (retried)";
+        default:
+            return TramCommsInterface.ERROR_MESSAGES[status] + " (retried)";
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package tramsimulate;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Client-side wrapper around the remote server that merges single requests
+ *  made by different tram threads into batch requests. A request waits at most
+ *  the linger window for others to join it, and each caller still blocks until
+ *  its own reply arrives, so tram client stubs can use it in place of the
+ *  remote server object. Asynchronous callers get a future of the reply
+ *  instead. */
+public class RequestCoalescer implements AsyncTramServer {
+    // Largest number of requests sent in a single batch
+    public static final int MAX_BATCH = 256;
+
+    private TramServer server; // Remote server the batches are sent to
+    private long lingerNanos; // Time a request waits for others to join its batch
+    // Requests waiting to be sent
+    private BlockingQueue<PendingRequest> queue = new LinkedBlockingQueue<PendingRequest>();
+
+    // A queued request and the reply its caller is waiting for
+    private static class PendingRequest {
+        final Message request;
+        final CompletableFuture<Message> reply = new CompletableFuture<Message>();
+
+        PendingRequest(Message request) {
+            this.request = request;
+        }
+    }
+
+    // Wraps the passed remote server, starting the thread that sends the batches
+    public RequestCoalescer(TramServer server, long lingerMillis) {
+        this.server = server;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+
+        Thread sender = new Thread(this::sendBatches, "request-coalescer");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    // Queues the request for the next batch and waits for its reply
+    public Message makeRequest(Message request) throws RemoteException {
+        try {
+            return makeRequestAsync(request).get();
+        } catch (ExecutionException e) {
+            // Pass on the failure of the batch the request was sent in
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Batch request failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for reply", e);
+        }
+    }
+
+    // Queues the request for the next batch, returning the future of its reply
+    public CompletableFuture<Message> makeRequestAsync(Message request) {
+        PendingRequest pending = new PendingRequest(request);
+        queue.add(pending);
+        return pending.reply;
+    }
+
+    // Batches from callers are already batched, so they are sent straight away
+    public Message[] makeBatchRequest(Message[] requests) throws RemoteException {
+        return server.makeBatchRequest(requests);
+    }
+
+    // Repeatedly collects the queued requests into a batch and sends it. Requests
+    // queued while a batch is being sent are collected into the next one
+    private void sendBatches() {
+        List<PendingRequest> batch = new ArrayList<PendingRequest>();
+
+        while (true) {
+            try {
+                // Wait for the first request, then for others until the window closes
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < MAX_BATCH) {
+                    PendingRequest next = queue.poll(
+                            deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            sendBatch(batch);
+            batch.clear();
+        }
+    }
+
+    // Sends one batch, completing the reply of each request in it
+    private void sendBatch(List<PendingRequest> batch) {
+        Message[] requests = new Message[batch.size()];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = batch.get(i).request;
+        }
+
+        try {
+            Message[] replies = server.makeBatchRequest(requests);
+            for (int i = 0; i < requests.length; i++) {
+                batch.get(i).reply.complete(replies[i]);
+            }
+        } catch (Exception e) {
+            for (PendingRequest pending : batch) {
+                pending.reply.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -1,18 +1,26 @@
 package tramsimulate;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 
 /** Class for simulating a single tram instance in a thread 
  *  Upon creation, registers itself with the passed server stub and retrieves 
- *  a start stop and route and then repeatedly makes two request types: 
+ *  a start stop and route and then repeatedly moves to its next stop on the
+ *  server, either with a single advance tram request or with two requests:
  *  getting the next stop and updating its location on the server. 
  *  Sleeps for 10-20 seconds (randomly chosen at every sleep interval) after
- *  successfully processing both request types.  */
+ *  successfully moving to each stop. Trams in a TramFleet have no thread of
+ *  their own and are instead moved one hop at a time by the fleet, or run as
+ *  non-blocking state machines on the fleet's timer.  */
 public class Tram implements Runnable {
     public static int TEN_SECONDS_MILLIS = 10000; // Constant for sleep calculation
+    // Use separate get next stop and update location requests for each stop,
+    // for servers without the advance tram procedure. Set with -Dtram.twoStepHops
+    public static final boolean TWO_STEP_HOPS = Boolean.getBoolean("tram.twoStepHops");
     
     // Hard-coded route values for choosing initial location
     public static final int[] ROUTES = {1, 96, 101, 109, 112};
@@ -25,11 +33,19 @@ public class Tram implements Runnable {
     private int routeID;  // Number ID of the tram's route
 
     private TramCommsStub stub; // Client stub for server communication
+    // Set when a two step hop has its next stop but the server has not yet
+    // confirmed the location update
+    private boolean awaitingUpdate = false;
     
     
     // Constructs the tram object and then begins a new thread
     // Uses the passed remote server to make requests
     public Tram(TramServer server) {
+        this(server, true);
+    }
+    
+    // Constructs the tram object, beginning a new thread if startThread is set
+    Tram(TramServer server, boolean startThread) {
         
         // Create a client stub, passing the server object for communications
         this.stub = new TramCommsStub(server);
@@ -52,15 +68,14 @@ public class Tram implements Runnable {
         printPosition();
         
         // Begin the tram simulation in a new thread        
-        new Thread(this).start();
+        if (startThread) {
+            new Thread(this).start();
+        }
     }
     
-    // Print tram status string
+    // Log tram status string. Formatted and printed by the event log thread
     public void printPosition() {
-        LocalDateTime stamp = LocalDateTime.now();
-        System.out.printf("%s Tram %17s on route %3d now at stop %3d\n",
-                stamp.format(DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:SS|")), 
-                Long.toHexString(tramID), routeID, currentStop);
+        EventLog.position(tramID, routeID, currentStop);
     }
     
     // Update the tram's position to the new stop and print the new location
@@ -70,6 +85,95 @@ public class Tram implements Runnable {
         printPosition();
     }
 
+    // Returns a random time, in milliseconds, that the tram takes to go from
+    // stop to stop. Between 10 and 20 seconds
+    public static int hopTime() {
+        return ThreadLocalRandom.current().nextInt(TEN_SECONDS_MILLIS) + TEN_SECONDS_MILLIS;
+    }
+    
+    /*** Makes a single attempt at moving the tram to its next stop, without
+     *** waiting between stops or retries. Returns the boolean value of whether
+     *** the tram reached its next stop. A two step hop that fails after getting
+     *** its next stop only retries the location update on the next attempt ***/
+    boolean tryHop() {
+        do {
+            if (!tryStep()) {
+                return false;
+            }
+        } while (awaitingUpdate);
+        return true;
+    }
+    
+    /*** Makes a single attempt at the next request of the tram's hop: the
+     *** advance tram request, or one of the two requests of a two step hop.
+     *** Returns the boolean value of whether the request succeeded ***/
+    boolean tryStep() {
+        if (TWO_STEP_HOPS && awaitingUpdate) {
+            if (!stub.tryUpdateTramLocation(tramID, routeID, currentStop)) {
+                return false;
+            }
+            awaitingUpdate = false;
+            return true;
+        }
+        
+        int newStop = TWO_STEP_HOPS ?
+                stub.tryRetrieveNextStop(tramID, routeID, currentStop, previousStop) :
+                stub.tryAdvanceTram(tramID, routeID, currentStop, previousStop);
+        if (newStop == TramCommsStub.REQUEST_FAILED) {
+            return false;
+        }
+        updateStop(newStop);
+        awaitingUpdate = TWO_STEP_HOPS;
+        return true;
+    }
+    
+    /*** Asks the server where the tram is, as a passenger display following
+     *** it would, or makes the tram's next request instead while the server
+     *** may not have the tram at a stop yet. Returns the boolean value of
+     *** whether the request succeeded ***/
+    boolean tryQuery() {
+        if (previousStop == 0 || awaitingUpdate) {
+            return tryStep();
+        }
+        return stub.tramPosition(tramID) != null;
+    }
+    
+    /*** Runs the tram as a non-blocking state machine on the passed timer. 
+     *** The tram travels for the time given by hopDelayNanos, moves to its
+     *** next stop with asynchronous requests, runs onHop, and travels again. 
+     *** No thread is held while it travels or while its requests are 
+     *** outstanding, and failed requests are retried by the stub's timer ***/
+    void startAsync(ScheduledExecutorService timer, LongSupplier hopDelayNanos, 
+            Runnable onHop) {
+        if (timer.isShutdown()) {
+            return;
+        }
+        timer.schedule(() -> hopAsync().thenRun(() -> {
+            onHop.run();
+            startAsync(timer, hopDelayNanos, onHop);
+        }), hopDelayNanos.getAsLong(), TimeUnit.NANOSECONDS);
+    }
+    
+    /*** Moves the tram to its next stop with asynchronous requests, completing
+     *** once the server has the tram at that stop ***/
+    CompletableFuture<Void> hopAsync() {
+        if (!TWO_STEP_HOPS) {
+            return stub.advanceTramAsync(tramID, routeID, currentStop, previousStop)
+                    .thenAccept(this::updateStop);
+        }
+        // Get the next stop, then tell the server the tram is there
+        return stub.retrieveNextStopAsync(tramID, routeID, currentStop, previousStop)
+                .thenCompose(newStop -> {
+                    updateStop(newStop);
+                    return stub.updateTramLocationAsync(tramID, routeID, newStop);
+                });
+    }
+    
+    // Returns the client stub the tram makes its requests through
+    TramCommsStub getStub() {
+        return stub;
+    }
+
     // Thread wrapper for tram simulation
     public void run() {
        try {
@@ -88,21 +192,26 @@ public class Tram implements Runnable {
             
             // Gives 10-20 seconds. Simulates 
             // the time it takes a tram to go from stop to stop.
-            int sleepTime = ThreadLocalRandom.current().nextInt
-                    (TEN_SECONDS_MILLIS) + TEN_SECONDS_MILLIS;
+            int sleepTime = hopTime();
             
             // Sleep for the randomly decided sleep time
             Thread.sleep(sleepTime);
 
             
-            // Retrieve the new stop from the server
-            int newStop = stub.retrieveNextStop(tramID, routeID, currentStop, previousStop);
-            
-            //Update local location data
-            updateStop(newStop);
-            
-            //Inform the server to update its location data
-            stub.updateTramLocation(tramID, routeID, newStop);
+            if (TWO_STEP_HOPS) {
+                // Retrieve the new stop from the server
+                int newStop = stub.retrieveNextStop(tramID, routeID, currentStop, previousStop);
+                
+                //Update local location data
+                updateStop(newStop);
+                
+                //Inform the server to update its location data
+                stub.updateTramLocation(tramID, routeID, newStop);
+            }
+            else {
+                // Move to the next stop on the server, then update local location data
+                updateStop(stub.advanceTram(tramID, routeID, currentStop, previousStop));
+            }
         }
     }
 }
@@ -2,21 +2,65 @@ package tramsimulate;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import tramsimulate.RPCMessage.MessageType;
 
 /** Stub for packaging and sending communications to/from the client. 
- *  Interacts with the server to produce its results **/
+ *  Interacts with the server to produce its results. 
+ *  
+ *  The asynchronous methods return a future instead of blocking, and retry
+ *  failed requests on a shared timer rather than sleeping, so one thread can
+ *  keep the requests of many trams outstanding. When the server object can
+ *  send without blocking (NIO, or a RequestCoalescer) no thread waits on a
+ *  request at all; over RMI each outstanding request still holds a thread of
+ *  a shared pool while its call is made. A stub has at most one request
+ *  outstanding, so its next request must wait for the last one's future **/
 public class TramCommsStub implements TramCommsInterface {
     private TramServer server; // Server interface instance
     private long transactionID;
     private long requestID; 
     private static final String MALFORM = "Malformed server response: "; // Basic error message prefix
-    // Expected number of comma separated values from different server requests
-    private static final int[] RESPONSE_LENGTHS = {1, 1};
+    // Expected number of reply values from different server requests. The
+    // replies of the paged queries vary, see replyLengthValid
+    private static final int[] RESPONSE_LENGTHS = {1, 0, 1, 2};
     public static final int RETRY_DELAY = 1000;
+    // Returned by the single attempt methods when the request failed
+    public static final int REQUEST_FAILED = TramLocation.UNUSED;
+    // Statuses of requests that failed before the server's status was known,
+    // alongside the server's error flags
+    public static final short STATUS_NO_REPLY = -2;
+    public static final short STATUS_MALFORMED_REPLY = -3;
     
-    // Initializes the instance, taking a remote server object as input
+    private short lastProcedure = -1; // Procedure of the last request attempt
+    private short lastStatus = FLAG_SUCCESS; // Status of the last request attempt
+    private RPCMessage unanswered; // Last single attempt that failed, resent by the next one
+    // Window in milliseconds in which requests from different trams are merged
+    // into one batch by a RequestCoalescer. 0 sends each request on its own.
+    // Set with -Dtram.coalesceMillis
+    public static final long COALESCE_MILLIS = Long.getLong("tram.coalesceMillis", 0);
+    
+    // Runs the retries of the asynchronous methods, for every stub
+    private static final ScheduledExecutorService retryTimer = 
+            Executors.newSingleThreadScheduledExecutor(daemonThreads("tram-retry"));
+    // Makes the calls of asynchronous requests to servers that can only block
+    private static ExecutorService blockingCalls;
+    // Request attempts of the asynchronous methods that failed and were
+    // retried, across all stubs
+    private static final LongAdder asyncRetries = new LongAdder();
+    
+    // Initializes the instance, taking a remote server object as input. 
+    // Stubs that share a RequestCoalescer as their server have their requests batched
     public TramCommsStub(TramServer server) {
         this.server = server;
                
@@ -25,148 +69,427 @@ public class TramCommsStub implements TramCommsInterface {
     }
     
     // Generalizes behavior for the three request types. Continually requests 
-    // a response from the server until a correct response is obtained
-    private TramLocation genericLocationRequest(short procedure, String requestCsv) 
+    // a response from the server until a correct response is obtained. Every
+    // attempt resends the same message, so a replication manager that already
+    // processed it answers from its reply cache rather than running it again
+    private TramLocation genericLocationRequest(short procedure, long[] requestArgs) 
         throws InterruptedException {
-        boolean success = false; 
-        RPCMessage request;  // Unserialized client-side RPC message
-        TramLocation responseData = null; // Return data to give to the caller
+        TramLocation responseData; // Return data to give to the caller
+        RPCMessage request = newRequest(procedure, requestArgs);
 
         // Repeats until the request was a success
-        while (!success) {
-            // Create a new RPC message. If the request type is a new transaction,
-            // use the new transaction constructor and save the new transaction ID
-            // for reuse.
-            if (procedure == GET_NEXT_STOP) {
-                request = new RPCMessage(
-                        requestID++, requestCsv, procedure);
+        while ((responseData = processRequest(request)) == null) {
+            Thread.sleep(RETRY_DELAY);
+        }
+        
+        return responseData;
+    }
+    
+    // Makes a single attempt at a request, returning null if it failed. An
+    // attempt at the same request as the last failed one resends its message,
+    // as the retries of genericLocationRequest do
+    private TramLocation attemptLocationRequest(short procedure, long[] requestArgs) {
+        RPCMessage request;
+        if (unanswered != null && unanswered.getProcedureID() == procedure
+                && Arrays.equals(unanswered.getArgs(), requestArgs)) {
+            request = unanswered;
+            lastProcedure = procedure;
+        } else {
+            request = newRequest(procedure, requestArgs);
+        }
+        // Process and send the request the server, getting the response
+        TramLocation responseData = processRequest(request);
+        unanswered = responseData == null ? request : null;
+        return responseData;
+    }
+    
+    // Creates the RPC message of the next request attempt
+    private RPCMessage newRequest(short procedure, long[] requestArgs) {
+        RPCMessage request;  // Unserialized client-side RPC message
+        
+        // Create a new RPC message. If the request type is a new transaction,
+        // use the new transaction constructor and save the new transaction ID
+        // for reuse. A query stands alone, so leaves the transaction in progress
+        if (procedure != UPDATE_LOCATION) {
+            request = new RPCMessage(
+                    requestID++, requestArgs, procedure);
+            if (!TramCommsInterface.isQuery(procedure)) {
                 transactionID = request.getTransactionID();
             }
-            // If the request type is a continued transaction, reuse the current
-            // transaction ID.
-            else {
-                request = new RPCMessage(transactionID, requestID++, requestCsv, procedure);
-            }
-            
-            // Process and send the request the server, getting the response
-            responseData = processRequest(request);
-            // End the request loop if the request data is error-free
+        }
+        // If the request type is a continued transaction, reuse the current
+        // transaction ID.
+        else {
+            request = new RPCMessage(transactionID, requestID++, requestArgs, procedure);
+        }
+        
+        lastProcedure = procedure;
+        return request;
+    }
+    
+    /*** Asynchronous counterpart of genericLocationRequest. Completes with the
+     *** response once an attempt succeeds, scheduling each retry of the same
+     *** message on the retry timer. Cancelling the future stops the retries ***/
+    private CompletableFuture<TramLocation> asyncLocationRequest(short procedure, 
+            long[] requestArgs) {
+        CompletableFuture<TramLocation> result = new CompletableFuture<TramLocation>();
+        attemptAsync(newRequest(procedure, requestArgs), result);
+        return result;
+    }
+    
+    private void attemptAsync(RPCMessage request, CompletableFuture<TramLocation> result) {
+        processRequestAsync(request).whenComplete((responseData, error) -> {
             if (responseData != null) {
-                success = true;
+                result.complete(responseData);
             }
-            else {
-                Thread.sleep(RETRY_DELAY);
+            else if (!result.isDone()) {
+                asyncRetries.increment();
+                retryTimer.schedule(() -> attemptAsync(request, result), 
+                        RETRY_DELAY, TimeUnit.MILLISECONDS);
             }
-        }
-        
-        return responseData;
+        });
+    }
+    
+    // Returns the number of asynchronous request attempts retried by all stubs
+    public static long asyncRetryCount() {
+        return asyncRetries.sum();
+    }
+    
+    // Returns the procedure ID of the last request attempt
+    public short getLastProcedure() {
+        return lastProcedure;
+    }
+    
+    // Returns the status of the last request attempt: FLAG_SUCCESS, the error
+    // flag set by the server, STATUS_NO_REPLY or STATUS_MALFORMED_REPLY
+    public short getLastStatus() {
+        return lastStatus;
     }
     
     
     // Wrapper interface method for retrieving the next stop of a tram
     public int retrieveNextStop(long tramID, int routeID, int currentStopNum, 
             int previousStopNum) throws InterruptedException  {
-        // Build the request csv data
-        String requestCsv = routeID + "," + currentStopNum + "," + previousStopNum;
+        // Build the request arguments
+        long[] requestArgs = {routeID, currentStopNum, previousStopNum};
         
         // Only the stop data of the response is relevant, take it as the result
-        TramLocation responseData = genericLocationRequest(GET_NEXT_STOP, requestCsv);
+        TramLocation responseData = genericLocationRequest(GET_NEXT_STOP, requestArgs);
 
         return responseData.stop;
     }
     
+    // Wrapper interface method for moving a tram to its next stop in a single
+    // request, returning the new stop
+    public int advanceTram(long tramID, int routeID, int currentStopNum, 
+            int previousStopNum) throws InterruptedException {
+        // Build the request arguments
+        long[] requestArgs = {routeID, currentStopNum, previousStopNum, tramID};
+        
+        TramLocation responseData = genericLocationRequest(ADVANCE_TRAM, requestArgs);
+        
+        return responseData.stop;
+    }
+    
     /// Wrapper interface method for updating the tram location server-side
     public void updateTramLocation(long tramID, int routeID, int stopNum) throws 
         InterruptedException {
-        // Build the request csv data
-        String requestCsv =  routeID +  "," + stopNum + "," + tramID;
+        // Build the request arguments
+        long[] requestArgs = {routeID, stopNum, tramID};
         
-        genericLocationRequest(UPDATE_LOCATION, requestCsv);
+        genericLocationRequest(UPDATE_LOCATION, requestArgs);
         
     }
     
+    /*** Asynchronous versions of the methods above, which retry until the
+     *** request succeeds ***/
+    
+    public CompletableFuture<Integer> retrieveNextStopAsync(long tramID, int routeID, 
+            int currentStopNum, int previousStopNum) {
+        return asyncLocationRequest(GET_NEXT_STOP, 
+                new long[] {routeID, currentStopNum, previousStopNum})
+                .thenApply(responseData -> responseData.stop);
+    }
+    
+    public CompletableFuture<Integer> advanceTramAsync(long tramID, int routeID, 
+            int currentStopNum, int previousStopNum) {
+        return asyncLocationRequest(ADVANCE_TRAM, 
+                new long[] {routeID, currentStopNum, previousStopNum, tramID})
+                .thenApply(responseData -> responseData.stop);
+    }
+    
+    public CompletableFuture<Void> updateTramLocationAsync(long tramID, int routeID, 
+            int stopNum) {
+        return asyncLocationRequest(UPDATE_LOCATION, new long[] {routeID, stopNum, tramID})
+                .thenApply(responseData -> null);
+    }
+    
+    /*** Single attempt versions of the methods above, for callers that schedule
+     *** their own retries instead of sleeping. Each returns REQUEST_FAILED, or
+     *** false, if the request failed ***/
+    
+    public int tryRetrieveNextStop(long tramID, int routeID, int currentStopNum, 
+            int previousStopNum) {
+        TramLocation responseData = attemptLocationRequest(GET_NEXT_STOP, 
+                new long[] {routeID, currentStopNum, previousStopNum});
+        return responseData == null ? REQUEST_FAILED : responseData.stop;
+    }
+    
+    public int tryAdvanceTram(long tramID, int routeID, int currentStopNum, 
+            int previousStopNum) {
+        TramLocation responseData = attemptLocationRequest(ADVANCE_TRAM, 
+                new long[] {routeID, currentStopNum, previousStopNum, tramID});
+        return responseData == null ? REQUEST_FAILED : responseData.stop;
+    }
+    
+    public boolean tryUpdateTramLocation(long tramID, int routeID, int stopNum) {
+        return attemptLocationRequest(UPDATE_LOCATION, 
+                new long[] {routeID, stopNum, tramID}) != null;
+    }
+    
+    /*** Fleet queries. Each makes a single attempt at each request, paging
+     *** through the trams of the paged queries, and returns null if a request
+     *** failed, with getLastStatus giving the reason: FLAG_UNREG_TRAM for a
+     *** tram on no route, FLAG_NO_ROUTE or FLAG_NO_STOP for a route or stop
+     *** that doesn't exist. A tram that moves while the pages are read may be
+     *** missed or returned twice ***/
+    
+    // Returns the (route, stop) location of a tram
+    public TramLocation tramPosition(long tramID) {
+        long[] replyValues = exchange(newRequest(TRAM_POSITION, new long[] {tramID}));
+        return replyValues == null ? null : 
+                new TramLocation((int) replyValues[0], (int) replyValues[1]);
+    }
+    
+    // Returns the stop of each tram on a route, by tram ID
+    public Map<Long, Integer> tramsOnRoute(int routeID) {
+        Map<Long, Integer> trams = new HashMap<Long, Integer>();
+        long cursor = 0;
+        do {
+            long[] replyValues = exchange(newRequest(TRAMS_ON_ROUTE, 
+                    new long[] {routeID, cursor}));
+            if (replyValues == null) {
+                return null;
+            }
+            for (int i = 1; i < replyValues.length; i += 2) {
+                trams.put(replyValues[i], (int) replyValues[i + 1]);
+            }
+            cursor = replyValues[0];
+        } while (cursor != 0);
+        return trams;
+    }
+    
+    // Returns the location of each tram at a stop or heading to it, on any
+    // route, by tram ID. A tram heading to the stop has the location of the
+    // stop it is heading from
+    public Map<Long, TramLocation> tramsAtStop(int stopID) {
+        Map<Long, TramLocation> trams = new HashMap<Long, TramLocation>();
+        long cursor = 0;
+        do {
+            long[] replyValues = exchange(newRequest(TRAMS_AT_STOP, 
+                    new long[] {stopID, cursor}));
+            if (replyValues == null) {
+                return null;
+            }
+            for (int i = 1; i < replyValues.length; i += 3) {
+                trams.put(replyValues[i], new TramLocation((int) replyValues[i + 1], 
+                        (int) replyValues[i + 2]));
+            }
+            cursor = replyValues[0];
+        } while (cursor != 0);
+        return trams;
+    }
+    
     // Prints an appropriate message from the provided request procedure type
     // and status error flag
     private void printStatusError(short procedure, short status) {
-        System.out.println(PROCEDURE_NAMES[procedure] + 
-                " request failed: received error flag from server:");
-        System.out.println("\t" + ERROR_MESSAGES[status]);
+        EventLog.text(EventLog.Level.WARN, PROCEDURE_NAMES[procedure] + 
+                " request failed: received error flag from server:\n\t" + 
+                (status == FLAG_NO_MARTIAL ? 
+                "request could not be unmarshalled" : ERROR_MESSAGES[status]));
     }
     
     // Performs the actual communication with the server, handling any errors that occur
     private TramLocation processRequest(RPCMessage request) {
-        TramLocation returnData = null;
+        long[] replyValues = exchange(request);
+        return replyValues == null ? null : toLocation(request, replyValues);
+    }
+    
+    // Sends a request and returns the values of its reply, or null if it failed
+    private long[] exchange(RPCMessage request) {
+        lastStatus = STATUS_NO_REPLY;
+        Message serialReq = marshalRequest(request);
+        if (serialReq == null) {
+            return null;
+        }
+         
+        try {
+            // Send the request to the server, checking the response
+            return readReplyValues(request, server.makeRequest(serialReq));
+        // Handles RPC communication failure
+        } catch (RemoteException e) {
+            EventLog.text(EventLog.Level.WARN, 
+                    "Error receiving request from server:" + e.getMessage());
+            return null;
+        }
+    }
+    
+    // Asynchronous counterpart of processRequest, completing with null on failure
+    private CompletableFuture<TramLocation> processRequestAsync(RPCMessage request) {
+        lastStatus = STATUS_NO_REPLY;
+        Message serialReq = marshalRequest(request);
+        if (serialReq == null) {
+            return CompletableFuture.completedFuture(null);
+        }
         
+        return sendAsync(serialReq).handle((serialReply, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && 
+                        error.getCause() != null ? error.getCause() : error;
+                EventLog.text(EventLog.Level.WARN, 
+                        "Error receiving request from server:" + cause.getMessage());
+                return null;
+            }
+            return readReply(request, serialReply);
+        });
+    }
+    
+    // Sends the request without blocking if the server can, and otherwise
+    // makes the blocking call on a thread of the shared pool
+    private CompletableFuture<Message> sendAsync(Message serialReq) {
+        if (server instanceof AsyncTramServer) {
+            return ((AsyncTramServer) server).makeRequestAsync(serialReq);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return server.makeRequest(serialReq);
+            } catch (RemoteException e) {
+                throw new CompletionException(e);
+            }
+        }, blockingCalls());
+    }
+    
+    private static synchronized ExecutorService blockingCalls() {
+        if (blockingCalls == null) {
+            blockingCalls = Executors.newCachedThreadPool(daemonThreads("tram-request"));
+        }
+        return blockingCalls;
+    }
+    
+    // Creates named daemon threads, so the stubs' threads never keep the JVM alive
+    private static ThreadFactory daemonThreads(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    // Serializes a request, returning null if it can't be
+    private Message marshalRequest(RPCMessage request) {
         Message serialReq = new Message(); // Will be used to serialize the RPC request
-        Message serialReply = null; // Stores the serial reply from the server
+        try {
+            serialReq.marshal(request);
+            return serialReq;
+        } catch (IOException e) {
+            EventLog.text(EventLog.Level.WARN, 
+                    "Error marshalling client request: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    // Checks the reply to a request, returning its data or null if the
+    // request failed
+    private TramLocation readReply(RPCMessage request, Message serialReply) {
+        long[] replyValues = readReplyValues(request, serialReply);
+        return replyValues == null ? null : toLocation(request, replyValues);
+    }
+    
+    // Returns the data of a location request's checked reply values
+    private TramLocation toLocation(RPCMessage request, long[] replyValues) {
+        // Get stop and advance tram operation replies
+        if (request.getProcedureID() == GET_NEXT_STOP || 
+                request.getProcedureID() == ADVANCE_TRAM) {
+            return new TramLocation((int) replyValues[0]);
+        }
+        // Update tram location on the server operation reply
+        return new TramLocation();
+    }
+    
+    // Returns the boolean value of whether a reply has as many values as its
+    // procedure replies with. A paged query replies a cursor followed by a
+    // whole number of trams, up to a page of them
+    private static boolean replyLengthValid(short procedure, int length) {
+        switch (procedure) {
+        case TRAMS_ON_ROUTE:
+            return length >= 1 && length <= 1 + ROUTE_PAGE_TRAMS * 2 && (length - 1) % 2 == 0;
+        case TRAMS_AT_STOP:
+            return length >= 1 && length <= 1 + STOP_PAGE_TRAMS * 3 && (length - 1) % 3 == 0;
+        default:
+            return length == RESPONSE_LENGTHS[procedure];
+        }
+    }
+    
+    // Checks the reply to a request, returning its values or null if the
+    // request failed
+    private long[] readReplyValues(RPCMessage request, Message serialReply) {
+        long[] returnData = null;
         RPCMessage reply; // Stores the deserialized reply
          
         try {
-            // Serialize the request data
-            serialReq.marshal(request); 
-            // Send the request to the server, storing the response
-            serialReply = server.makeRequest(serialReq); 
             // Deserialize the response so its correctness can be checked
             reply = serialReply.unmarshal();
             
-            // Get the csv data from the server response, if any
-            String csvString = reply.getCsv_data();
-            String csvData[] = csvString.split(",");
+            // Get the values from the server response, if any
+            long[] replyArgs = reply.getArgs();
+            lastStatus = STATUS_MALFORMED_REPLY;
             
             /*** Check all possible error modes, printing appropriate responses ***/
             // If the server set an error flag, print its corresponding error message
             if (reply.getStatus() != 0) {
-                printStatusError(request.getProcedureID(), reply.getStatus());
+                lastStatus = reply.getStatus();
+                // A tram that isn't found is the answer to a position query
+                if (request.getProcedureID() != TRAM_POSITION || 
+                        reply.getStatus() != FLAG_UNREG_TRAM) {
+                    printStatusError(request.getProcedureID(), reply.getStatus());
+                }
             }
             // Server sent a reply of the wrong type
             else if (reply.getMessageType() != MessageType.REPLY) {
-                System.out.println(MALFORM + "message is not a reply type");
+                EventLog.text(EventLog.Level.WARN, MALFORM + "message is not a reply type");
             }
             // The transaction ID of the reply doesn't match
             else if (reply.getTransactionID() != request.getTransactionID()) {
-                System.out.println(MALFORM + "transaction ID mismatch");
+                EventLog.text(EventLog.Level.WARN, MALFORM + "transaction ID mismatch");
             }
             // The procedure ID of the reply doesn't match
             else if (reply.getProcedureID() != request.getProcedureID()) {
-                System.out.println(MALFORM + "procedure ID mismatch");
+                EventLog.text(EventLog.Level.WARN, MALFORM + "procedure ID mismatch");
             }
             // RPC ID of the reply doesn't match
             else if (reply.getRPCID() != request.getRPCID()) {
-                System.out.println(MALFORM + "RPCID mismatch");
+                EventLog.text(EventLog.Level.WARN, MALFORM + "RPCID mismatch");
             }
             // Request ID of the reply doesn't match
             else if (reply.getRequestID() != request.getRequestID()) {
-                System.out.println(MALFORM + "request ID mismatch");
+                EventLog.text(EventLog.Level.WARN, MALFORM + "request ID mismatch");
             }
-            // The reply's csv data doesn't match the expected format for the procedure
-            else if (csvData.length != RESPONSE_LENGTHS[request.getProcedureID()] ||
-                    request.getProcedureID() == UPDATE_LOCATION && !csvString.isEmpty()) {
-                System.out.println(MALFORM + "invalid csv reply");
+            // The reply's values don't match the expected format for the procedure
+            else if (replyArgs == null || 
+                    !replyLengthValid(request.getProcedureID(), replyArgs.length)) {
+                EventLog.text(EventLog.Level.WARN, MALFORM + "invalid reply values");
             }
             
-            /*** if no errors occurred, return the data based on the procedure type ***/
-            // Get stop operation reply
-            else if (request.getProcedureID() == GET_NEXT_STOP) {
-                int nextStop = Integer.parseInt(reply.getCsv_data());
-                returnData = new TramLocation(nextStop);
-            }
-            // Update tram location on the server operation reply
-            else if (request.getProcedureID() == UPDATE_LOCATION) {
-                return new TramLocation();
+            // if no errors occurred, return the values for the procedure type to read
+            else {
+                lastStatus = FLAG_SUCCESS;
+                returnData = replyArgs;
             }
-       
-        // Handles RPC communication failure
-        } catch (RemoteException e) {
-            System.out.println("Error receiving request from server:" + e.getMessage());
-            ;
-        // Handles marshalling/unmarshalling failure
+        // Handles unmarshalling failure
         } catch (IOException e) {
-            String error = serialReply == null ? "Error marshalling client request: " :
-                "Error unmarshalling server reply: ";
-            System.out.println(error + e.getMessage());
-        // This failure mode indicates that the csv data had non-numeric values
-        } catch (NumberFormatException e) {
-            System.out.println(MALFORM + "tram location data not numeric");
+            lastStatus = STATUS_MALFORMED_REPLY;
+            EventLog.text(EventLog.Level.WARN, 
+                    "Error unmarshalling server reply: " + e.getMessage());
         }
         
         return returnData;
@@ -0,0 +1,150 @@
+package tramsimulate;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Runs a large fleet of simulated trams on a small shared pool of threads.
+ *  No tram has a thread of its own: each hop is a task scheduled on the pool
+ *  for when the tram reaches its next stop, so a sleeping tram costs only its
+ *  queued task. Trams are started gradually at the ramp up rate, and the time
+ *  between stops is divided by the time compression factor so that a fleet
+ *  can be driven faster than real time. With asynchronous trams no thread
+ *  waits on a request either, so a few threads can keep the requests of the
+ *  whole fleet outstanding. */
+public class TramFleet {
+    // Number of trams in the fleet. 0 runs NUM_TRAMS trams on their own
+    // threads instead. Set with -Dtram.fleetSize
+    public static final int FLEET_SIZE = Integer.getInteger("tram.fleetSize", 0);
+    // Factor the time between stops is divided by. Set with -Dtram.timeCompression
+    public static final double TIME_COMPRESSION =
+            parseTimeCompression(System.getProperty("tram.timeCompression", "1"));
+    // Trams started per second. Set with -Dtram.rampUpPerSecond
+    public static final double RAMP_UP_PER_SECOND =
+            Double.parseDouble(System.getProperty("tram.rampUpPerSecond", "1000"));
+    // Threads that make the requests of the whole fleet. Set with -Dtram.fleetThreads
+    public static final int FLEET_THREADS = Integer.getInteger("tram.fleetThreads", 64);
+    // Run each tram as a non-blocking state machine, so the fleet's threads
+    // never wait on a request. Set with -Dtram.asyncTrams
+    public static final boolean ASYNC_TRAMS = Boolean.getBoolean("tram.asyncTrams");
+    // Seconds between fleet progress reports
+    public static final long REPORT_INTERVAL = 10;
+
+    private TramServer server; // Remote server shared by every tram
+    private ScheduledExecutorService executor; // Runs every tram's hops
+    private double timeCompression;
+
+    // Fleet progress counters
+    private AtomicInteger started = new AtomicInteger();
+    private AtomicLong hops = new AtomicLong();
+    private AtomicLong failures = new AtomicLong();
+
+    // Creates a fleet that sends its requests to the passed server
+    public TramFleet(TramServer server, int threads, double timeCompression) {
+        this.server = server;
+        this.timeCompression = checkTimeCompression(timeCompression);
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "tram-fleet-" + count.incrementAndGet());
+            thread.setDaemon(false);
+            return thread;
+        };
+        executor = Executors.newScheduledThreadPool(threads, factory);
+    }
+
+    // Creates a fleet using the configured thread count and time compression
+    public TramFleet(TramServer server) {
+        this(server, FLEET_THREADS, TIME_COMPRESSION);
+    }
+
+    /*** Schedules the start of the passed number of trams, spread out at the
+     *** passed number of trams per second, and the periodic progress report ***/
+    public void start(int size, double rampUpPerSecond) {
+        double startGapNanos = TimeUnit.SECONDS.toNanos(1) / rampUpPerSecond;
+        for (int i = 0; i < size; i++) {
+            executor.schedule(this::startTram, (long) (i * startGapNanos),
+                    TimeUnit.NANOSECONDS);
+        }
+        executor.scheduleAtFixedRate(this::report, REPORT_INTERVAL, REPORT_INTERVAL,
+                TimeUnit.SECONDS);
+    }
+
+    // Stops scheduling hops. Requests already being made are finished
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /*** Gauges ***/
+
+    public int startedCount() {
+        return started.get();
+    }
+
+    public long hopCount() {
+        return hops.get();
+    }
+
+    // Number of hop attempts that failed and were retried. Asynchronous trams
+    // are retried by their stubs, which count the retries of every stub
+    public long failureCount() {
+        return ASYNC_TRAMS ? TramCommsStub.asyncRetryCount() : failures.get();
+    }
+
+
+    // Creates a tram at its start position and schedules its first hop
+    private void startTram() {
+        Tram tram = new Tram(server, false);
+        started.incrementAndGet();
+        if (ASYNC_TRAMS) {
+            tram.startAsync(executor, this::hopDelayNanos, hops::incrementAndGet);
+        } else {
+            scheduleHop(tram, hopDelayNanos());
+        }
+    }
+
+    // Attempts a hop of a tram, then schedules its next hop, or a retry
+    // after the client retry delay if the hop failed
+    private void hop(Tram tram) {
+        if (tram.tryHop()) {
+            hops.incrementAndGet();
+            scheduleHop(tram, hopDelayNanos());
+        } else {
+            failures.incrementAndGet();
+            scheduleHop(tram, TimeUnit.MILLISECONDS.toNanos(TramCommsStub.RETRY_DELAY));
+        }
+    }
+
+    private void scheduleHop(Tram tram, long delayNanos) {
+        if (!executor.isShutdown()) {
+            executor.schedule(() -> hop(tram), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Time until a tram reaches its next stop, compressed
+    private long hopDelayNanos() {
+        return (long) (TimeUnit.MILLISECONDS.toNanos(Tram.hopTime()) / timeCompression);
+    }
+
+    private void report() {
+        EventLog.text(EventLog.Level.INFO, "Fleet: " + started.get() + " trams started, "
+                + hops.get() + " hops, " + failureCount() + " failed attempts");
+    }
+
+    /*** Parses the time compression, which the time between stops is divided
+     *   by, so must be greater than 0 ***/
+    public static double parseTimeCompression(String value) {
+        return checkTimeCompression(Double.parseDouble(value.trim()));
+    }
+
+    private static double checkTimeCompression(double timeCompression) {
+        if (!(timeCompression > 0)) {
+            throw new IllegalArgumentException(
+                    "tram.timeCompression must be greater than 0, got " + timeCompression);
+        }
+        return timeCompression;
+    }
+}
@@ -1,13 +1,12 @@
 package tramsimulate;
 import java.rmi.NotBoundException; 
 import java.rmi.RemoteException; 
-import java.rmi.registry.LocateRegistry; 
-import java.rmi.registry.Registry;
 
 
 /*** Multithreaded class that retrieves the remote server object and then
  *   creates NUM_TRAMS tram simulations, passing them the server object so 
- *   they can independently communicate with the server. This is the server-side
+ *   they can independently communicate with the server. When a fleet size is
+ *   set, runs a TramFleet of that many trams instead. This is the server-side
  *   top level class ***/
 public class TramServerClient {
     // Hardcoded RMI url for retrieving the tram server object
@@ -17,10 +16,19 @@ public class TramServerClient {
     
     public static void main(String[] args) {
         try{
-            //Get the RMI registry created by the server
-            Registry registry = LocateRegistry.getRegistry(null, port);
-            // Retrieve the remote server object
-            TramServer remoteServer = (TramServer) registry.lookup(url);
+            // Retrieve the remote server object over the selected transport
+            TramServer remoteServer = Transport.SELECTED.connect(port, url);
+            // Optionally merge the requests of all trams into batches
+            if (TramCommsStub.COALESCE_MILLIS > 0) {
+                remoteServer = new RequestCoalescer(remoteServer, TramCommsStub.COALESCE_MILLIS);
+            }
+            
+            // Run a fleet of trams on a shared thread pool if one is configured
+            if (TramFleet.FLEET_SIZE > 0) {
+                new TramFleet(remoteServer).start(TramFleet.FLEET_SIZE, 
+                        TramFleet.RAMP_UP_PER_SECOND);
+                return;
+            }
             
             // Create NUM_TRAMS tram simulation threads, passing the server
             for (int i = 0; i < NUM_TRAMS; i++) {
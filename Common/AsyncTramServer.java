@@ -0,0 +1,14 @@
+package tramsimulate;
+
+import java.util.concurrent.CompletableFuture;
+
+/*** A server object that can also send a request without blocking the caller.
+ *   Implemented by the client side objects whose replies arrive on threads of
+ *   their own, so that a caller can keep many requests outstanding with no
+ *   thread waiting on each one ***/
+public interface AsyncTramServer extends TramServer {
+    // Sends a serialized RPC message, returning a future of its reply. The 
+    // future fails with the RemoteException the blocking call would throw, or
+    // a TimeoutException if the transport gave up waiting
+    public CompletableFuture<Message> makeRequestAsync(Message request);
+}
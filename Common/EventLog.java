@@ -0,0 +1,356 @@
+package tramsimulate;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** Asynchronous log of the events printed by the clients and servers. Request
+ *  threads record each event as typed fields in a slot of a preallocated ring
+ *  buffer and return straight away. A background writer thread formats the
+ *  events and writes them in batches, flushing once per batch, to the console
+ *  or to a rotating log file.
+ *
+ *  When the buffer is full, events are dropped and counted (DROP) or the
+ *  recording thread waits for space (BLOCK). Events below the configured level
+ *  are discarded before they reach the buffer. Pending events are written when
+ *  the JVM exits. */
+public class EventLog {
+    // Importance of an event
+    public enum Level {DEBUG, INFO, WARN, ERROR};
+    // What a recording thread does when the buffer is full
+    public enum FullPolicy {DROP, BLOCK};
+
+    // Lowest level written. Set with -Dtram.logLevel
+    public static final Level LEVEL =
+            Level.valueOf(System.getProperty("tram.logLevel", "INFO"));
+    // Set with -Dtram.logFullPolicy
+    public static final FullPolicy FULL_POLICY =
+            FullPolicy.valueOf(System.getProperty("tram.logFullPolicy", "DROP"));
+    // Number of buffered events, rounded up to a power of two. Set with -Dtram.logBufferSize
+    public static final int BUFFER_SIZE = Integer.getInteger("tram.logBufferSize", 8192);
+    // File to log to instead of the console. Set with -Dtram.logFile
+    public static final String LOG_FILE = System.getProperty("tram.logFile");
+    // Size at which the log file is rotated. Set with -Dtram.logMaxBytes
+    public static final long MAX_FILE_BYTES = Long.getLong("tram.logMaxBytes", 10 * 1024 * 1024);
+    // Number of log files kept, including the current one. Set with -Dtram.logFiles
+    public static final int MAX_FILES = Integer.getInteger("tram.logFiles", 5);
+    // Longest time an event waits before it is written. Set with -Dtram.logFlushMillis
+    public static final long FLUSH_MILLIS = Long.getLong("tram.logFlushMillis", 10);
+
+    // Timestamp format of tram position lines
+    private static final DateTimeFormatter STAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:SS|");
+    // Nanoseconds a blocked recording thread waits before checking for space
+    private static final long BLOCK_WAIT_NANOS = 50000;
+
+    // Log used by every component of the process
+    private static final EventLog LOG = new EventLog();
+
+    // Kinds of event, each with its own line format
+    private enum Kind {POSITION, REQUEST_ERROR, REPLICA_CHANGE, REPLICA_STATUS, TEXT};
+
+    // A buffer slot. The fields are written by the recording thread, then
+    // the sequence is set to publish the event to the writer
+    private static final class Event {
+        volatile long sequence = -1; // Sequence number of the event in this slot
+        Kind kind;
+        Level level;
+        long time; // Milliseconds since the epoch
+        long id; // Tram ID, or bit mask of the active replicas
+        int first; // Route, procedure, replica number or replicas before a group
+        int second; // Stop, status flag, up flag or replica count
+        String text;
+    }
+
+    private final Event[] buffer;
+    private final int mask;
+    // Next sequence number to be claimed by a recording thread
+    private final AtomicLong claimed = new AtomicLong();
+    // Next sequence number to be written by the writer thread
+    private volatile long written = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+    private final Thread writer;
+    private volatile boolean closing = false;
+
+    // Output state, only used by the writer thread
+    private final StringBuilder line = new StringBuilder(128);
+    private Writer out;
+    private long fileBytes = 0;
+    private long stampCentis = -1; // Time of the cached timestamp, in hundredths of a second
+    private String stamp = "";
+
+    // Creates the log and starts its writer thread
+    private EventLog() {
+        int size = Integer.highestOneBit(Math.max(2, BUFFER_SIZE - 1)) << 1;
+        buffer = new Event[size];
+        for (int i = 0; i < size; i++) {
+            buffer[i] = new Event();
+        }
+        mask = size - 1;
+
+        writer = new Thread(this::writeEvents, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /*** Events ***/
+
+    // Records a tram arriving at a stop
+    public static void position(long tramID, int routeID, int stop) {
+        LOG.record(Kind.POSITION, Level.INFO, tramID, routeID, stop, null);
+    }
+
+    // Records a request that the server could not process
+    public static void requestError(short procedureID, short status) {
+        LOG.record(Kind.REQUEST_ERROR, Level.WARN, 0, procedureID, status, null);
+    }
+
+    // Records a replica going up or down. Replicas are numbered from 1
+    public static void replicaChange(int replica, boolean up) {
+        LOG.record(Kind.REPLICA_CHANGE, Level.INFO, 0, replica, up ? 1 : 0, null);
+    }
+
+    // Records the status of every replica, as a bit mask of those that are up
+    public static void replicaStatus(long upMask, int replicaCount) {
+        replicaStatus(upMask, 0, replicaCount);
+    }
+
+    // Records the status of a group of replicas numbered after the passed
+    // number of replicas in earlier groups, as a bit mask of those that are up
+    public static void replicaStatus(long upMask, int firstReplica, int replicaCount) {
+        LOG.record(Kind.REPLICA_STATUS, Level.INFO, upMask, firstReplica, replicaCount, null);
+    }
+
+    // Records a line of free text
+    public static void text(Level level, String text) {
+        LOG.record(Kind.TEXT, level, 0, 0, 0, text);
+    }
+
+    /*** Gauges ***/
+
+    // Number of events dropped because the buffer was full
+    public static long droppedCount() {
+        return LOG.dropped.get();
+    }
+
+    // Number of events waiting to be written
+    public static long pendingCount() {
+        return LOG.claimed.get() - LOG.written;
+    }
+
+
+    // Claims a buffer slot, fills it and publishes it to the writer
+    private void record(Kind kind, Level level, long id, int first, int second, String text) {
+        if (level.compareTo(LEVEL) < 0) {
+            return;
+        }
+
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - written > mask) {
+                // The buffer is full
+                if (FULL_POLICY == FullPolicy.DROP || closing) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+            }
+            else if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Event event = buffer[(int) sequence & mask];
+        event.kind = kind;
+        event.level = level;
+        event.time = System.currentTimeMillis();
+        event.id = id;
+        event.first = first;
+        event.second = second;
+        event.text = text;
+        event.sequence = sequence;
+    }
+
+    // Writer thread loop. Writes every published event, then sleeps until the
+    // next flush. Exits once the log is closed and the buffer is drained
+    private void writeEvents() {
+        try {
+            out = openOutput();
+        } catch (IOException e) {
+            System.err.println("Unable to open log file, logging to console: " + e.getMessage());
+            out = consoleOutput();
+        }
+
+        while (true) {
+            boolean wasClosing = closing;
+            try {
+                writeBatch();
+            } catch (IOException e) {
+                System.err.println("Unable to write log: " + e.getMessage());
+            }
+            if (wasClosing) {
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_MILLIS));
+        }
+    }
+
+    // Writes every event published so far and flushes them together
+    private void writeBatch() throws IOException {
+        long sequence = written;
+        Event event = buffer[(int) sequence & mask];
+        if (event.sequence != sequence && dropped.get() == droppedReported) {
+            return;
+        }
+
+        while (event.sequence == sequence) {
+            line.setLength(0);
+            format(event);
+            event.text = null;
+            sequence++;
+            written = sequence;
+            write(line);
+            event = buffer[(int) sequence & mask];
+        }
+
+        long droppedNow = dropped.get();
+        if (droppedNow != droppedReported) {
+            line.setLength(0);
+            line.append(droppedNow - droppedReported).append(" log events dropped\n");
+            droppedReported = droppedNow;
+            write(line);
+        }
+        out.flush();
+    }
+
+    // Appends the line of an event, in the same format as the old console output
+    private void format(Event event) {
+        switch (event.kind) {
+        case POSITION:
+            line.append(stamp(event.time)).append(" Tram ");
+            pad(Long.toHexString(event.id), 17);
+            line.append(" on route ");
+            pad(Integer.toString(event.first), 3);
+            line.append(" now at stop ");
+            pad(Integer.toString(event.second), 3);
+            break;
+        case REQUEST_ERROR:
+            line.append("Unable to process ");
+            if (event.first >= 0 && event.first < TramCommsInterface.PROCEDURE_NAMES.length) {
+                line.append(TramCommsInterface.PROCEDURE_NAMES[event.first]).append(' ');
+            }
+            line.append("request: ");
+            if (event.second >= 0 && event.second < TramCommsInterface.ERROR_MESSAGES.length) {
+                line.append(TramCommsInterface.ERROR_MESSAGES[event.second]);
+            } else {
+                line.append("error ").append(event.second);
+            }
+            break;
+        case REPLICA_CHANGE:
+            line.append("RM").append(event.first).append(" now ")
+                    .append(event.second != 0 ? "up" : "down");
+            break;
+        case REPLICA_STATUS:
+            for (int i = 0; i < event.second; i++) {
+                if (i != 0) {
+                    line.append(" | ");
+                }
+                line.append("RM").append(event.first + i + 1)
+                        .append((event.id & 1L << i) != 0 ? "  on" : " off");
+            }
+            break;
+        case TEXT:
+            line.append(event.text);
+            break;
+        }
+        line.append('\n');
+    }
+
+    // Returns the timestamp of a time. The last one is cached, as many events
+    // share the same hundredth of a second
+    private String stamp(long time) {
+        long centis = time / 10;
+        if (centis != stampCentis) {
+            stampCentis = centis;
+            stamp = STAMP_FORMAT.format(
+                    LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+        }
+        return stamp;
+    }
+
+    // Appends a value right-aligned in the passed width
+    private void pad(String value, int width) {
+        for (int i = value.length(); i < width; i++) {
+            line.append(' ');
+        }
+        line.append(value);
+    }
+
+    // Writes a line, rotating the log file first if it would grow too large
+    private void write(CharSequence text) throws IOException {
+        if (LOG_FILE != null && fileBytes + text.length() > MAX_FILE_BYTES && fileBytes > 0) {
+            rotate();
+        }
+        out.append(text);
+        fileBytes += text.length();
+    }
+
+    // Opens the log file, or the console if no file is configured
+    private Writer openOutput() throws IOException {
+        if (LOG_FILE == null) {
+            return consoleOutput();
+        }
+        File file = new File(LOG_FILE);
+        fileBytes = file.length();
+        return new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    private static Writer consoleOutput() {
+        return new BufferedWriter(new OutputStreamWriter(System.out));
+    }
+
+    // Shifts each old log file up one number, dropping the oldest, and starts
+    // a new current file
+    private void rotate() throws IOException {
+        out.close();
+        for (int i = MAX_FILES - 1; i > 0; i--) {
+            File older = new File(LOG_FILE + (i == 1 ? "" : "." + (i - 1)));
+            File newer = new File(LOG_FILE + "." + i);
+            if (older.exists()) {
+                newer.delete();
+                older.renameTo(newer);
+            }
+        }
+        if (MAX_FILES <= 1) {
+            new File(LOG_FILE).delete();
+        }
+        out = openOutput();
+    }
+
+    // Writes the remaining events and stops the writer thread
+    private void close() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
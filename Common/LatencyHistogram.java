@@ -0,0 +1,91 @@
+package tramsimulate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Histogram of latencies in nanoseconds, with a fixed set of buckets that keep
+ *  every recorded value to within 2% of its true value. Values up to 128 ns
+ *  get a bucket each; above that, each power of two range is split into 64
+ *  buckets. Recording is lock-free and allocates nothing once warm, so many
+ *  threads can record into one histogram while it is being read. The totals
+ *  are striped adders, so that threads recording at once rarely contend. */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Unit buckets below 128 ns
+    private static final int HALF_BUCKETS = SUB_BUCKETS / 2; // Buckets per power of two above
+    private static final int MAX_VALUE_BITS = 43; // Values are capped at about 2.4 hours
+    private static final int BUCKETS =
+            SUB_BUCKETS + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * HALF_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Records a single latency
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, (1L << MAX_VALUE_BITS) - 1));
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        // Only write the maximum when it changes, as it rarely does
+        long previous = max.get();
+        while (value > previous && !max.compareAndSet(previous, value)) {
+            previous = max.get();
+        }
+    }
+
+    // Number of recorded values
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n;
+    }
+
+    // Returns the value below which the passed percentage of recorded values
+    // fall, or 0 if nothing was recorded
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Returns the bucket of a value
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Values in [2^k, 2^(k+1)) have a resolution of 2^(k - 6)
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF_BUCKETS
+                + (int) (value >>> shift) - HALF_BUCKETS;
+    }
+
+    // Returns the largest value that falls in a bucket
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_BUCKETS + 1;
+        long lowest = (long) ((index - SUB_BUCKETS) % HALF_BUCKETS + HALF_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
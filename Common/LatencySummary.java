@@ -0,0 +1,48 @@
+package tramsimulate;
+
+/** Snapshot of the percentiles of a LatencyHistogram, in microseconds. Shown by
+ *  the metrics MBeans as a composite value, one property per getter.
+ *
+ *  This class is immutable and has no functionality of its own */
+public class LatencySummary {
+    private final long count;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double p999Micros;
+    private final double maxMicros;
+
+    // Takes a snapshot of the passed histogram
+    public LatencySummary(LatencyHistogram histogram) {
+        count = histogram.getCount();
+        meanMicros = histogram.getMean() / 1000;
+        p50Micros = histogram.getPercentile(50) / 1000.0;
+        p99Micros = histogram.getPercentile(99) / 1000.0;
+        p999Micros = histogram.getPercentile(99.9) / 1000.0;
+        maxMicros = histogram.getMax() / 1000.0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getP999Micros() {
+        return p999Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+}
@@ -11,12 +11,34 @@ import tramsimulate.RPCMessage.MessageType;
 
 /** Class for serializing and encapsulating communication between the tram server
  *  and the tram client. The only communications sent between the two entities
- *  are done via passing objects of this type */
+ *  are done via passing objects of this type.
+ *  
+ *  Two formats are supported, chosen by the version byte. The original csv 
+ *  format (version 0) writes the fields as three longs and three shorts followed 
+ *  by the arguments as a UTF-16 csv string. The binary format (version 1) begins 
+ *  with the version byte, writes the IDs as fixed 8-byte values and every other 
+ *  field and argument as a varint. Messages from older clients have no version 
+ *  field, so they deserialize as version 0 and are answered in the same format */
 public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
     
+    // Message format versions
+    public static final byte VERSION_CSV = 0;
+    public static final byte VERSION_BINARY = 1;
+    
+    // Message types by ordinal. Cached, as MessageType.values() copies the array
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+    
+    // Most arguments a binary message can hold, one per bit of the long mask
+    public static final int MAX_BINARY_ARGS = Long.SIZE;
+    
+    // Bytes used by the binary format before the arguments, at most
+    private static final int BINARY_HEADER_BYTES = 2 + Long.BYTES * 2 + 
+            WireBuffer.MAX_VARINT_BYTES * 4;
+    
     protected byte data[] = null; // Stores serialized data
     protected int length = 0; // Records the expected length of the serialized data
+    protected byte version = VERSION_CSV; // Format of the serialized data
     
     
     // Returns the boolean value of whether the length of the serialized data
@@ -26,38 +48,151 @@ public class Message implements Serializable {
         return data.length == length;
     }
     
-    /*** Serializes the passed RPC message and stores the result, as well of the 
-     *   length of the serialized data ***/
+    // Returns the format version of the serialized data
+    public byte getVersion() {
+        return version;
+    }
+    
+    /*** Serializes the passed RPC message in the binary format and stores the
+     *   result, as well of the length of the serialized data ***/
     public void marshal(RPCMessage rpcMessage) throws IOException {
+        marshal(rpcMessage, VERSION_BINARY);
+    }
+    
+    /*** Serializes the passed RPC message in the passed format version and 
+     *   stores the result, as well of the length of the serialized data ***/
+    public void marshal(RPCMessage rpcMessage, byte version) throws IOException {
+        if (version == VERSION_BINARY) {
+            data = marshalBinary(rpcMessage);
+        }
+        else if (version == VERSION_CSV) {
+            data = marshalCsv(rpcMessage);
+        }
+        else {
+            throw new IOException("Unsupported message version: " + version);
+        }
+        this.version = version;
+        length = data.length;
+    }
+    
+    // Writes the message in the binary format
+    private byte[] marshalBinary(RPCMessage rpcMessage) throws IOException {
+        long[] args = rpcMessage.getArgs();
+        if (args.length > MAX_BINARY_ARGS) {
+            throw new IOException("Too many arguments for the binary format: " + args.length);
+        }
+        WireBuffer writer = new WireBuffer(
+                BINARY_HEADER_BYTES + WireBuffer.MAX_VARINT_BYTES * args.length);
+        writeBinary(writer, rpcMessage.getMessageType(), rpcMessage.getTransactionID(),
+                rpcMessage.getRPCID(), rpcMessage.getRequestID(), rpcMessage.getStatus(), 
+                rpcMessage.getProcedureID(), args);
+        return writer.toByteArray();
+    }
+    
+    /*** Serializes a reply to the passed request into this message without
+     *   creating a reply RPCMessage. The reply is written in the passed 
+     *   reusable buffer and the data array of this message is reused when the 
+     *   reply is the same length as the last one, so a server thread that 
+     *   reuses its reply message allocates nothing in the steady state ***/
+    public void marshalReply(RPCMessage request, long[] values, short status, 
+            byte version, WireBuffer writer) throws IOException {
+        if (version != VERSION_BINARY) {
+            marshal(new RPCMessage(request, values, status), version);
+            return;
+        }
+        
+        writer.clear();
+        writeBinary(writer, MessageType.REPLY, request.getTransactionID(), 
+                request.getRPCID(), request.getRequestID(), status, 
+                request.getProcedureID(), values);
+        
+        setData(writer.array(), 0, writer.position(), VERSION_BINARY);
+    }
+    
+    /*** Replaces the serialized data of this message with a copy of the passed
+     *   range, written in the passed format version. The data array is reused
+     *   when it is already the right length ***/
+    public void setData(byte[] source, int offset, int length, byte version) {
+        if (data == null || data.length != length) {
+            data = new byte[length];
+        }
+        System.arraycopy(source, offset, data, 0, length);
+        this.version = version;
+        this.length = length;
+    }
+    
+    // Returns the length of the serialized data
+    public int getLength() {
+        return data == null ? 0 : data.length;
+    }
+    
+    // Copies the serialized data into the passed array at the passed offset
+    public void copyData(byte[] dest, int offset) {
+        System.arraycopy(data, 0, dest, offset, getLength());
+    }
+    
+    // Writes each field of a message to the passed buffer in the binary format
+    private static void writeBinary(WireBuffer writer, MessageType type, 
+            long transactionID, long RPCID, long requestID, short status, 
+            short procedureID, long[] args) {
+        writer.writeByte(VERSION_BINARY);
+        writer.writeByte(type.ordinal());
+        
+        // The IDs are random, so a varint would only make them longer
+        writer.writeFixedLong(transactionID);
+        writer.writeFixedLong(RPCID);
+        writer.writeVarLong(requestID);
+        writer.writeVarLong(status);
+        writer.writeVarLong(procedureID);
+        
+        // Write the argument count, then a bit mask marking which arguments 
+        // are outside the integer range and are written as fixed 8-byte values
+        writer.writeVarLong(args.length);
+        long longMask = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] != (int) args[i]) {
+                longMask |= 1L << i;
+            }
+        }
+        writer.writeVarLong(longMask);
+        for (int i = 0; i < args.length; i++) {
+            if ((longMask & 1L << i) != 0) {
+                writer.writeFixedLong(args[i]);
+            } else {
+                writer.writeVarLong(args[i]);
+            }
+        }
+    }
+    
+    // Writes the message in the original csv format
+    private byte[] marshalCsv(RPCMessage rpcMessage) throws IOException {
         // Create the streams to serialize the message contents
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         DataOutputStream dataWriter = new DataOutputStream(bytes);
 
-        // Write each long field to the streams, keeping track of the byte length
+        // Write each long field to the streams
         dataWriter.writeLong(rpcMessage.getTransactionID());
         dataWriter.writeLong(rpcMessage.getRPCID());
         dataWriter.writeLong(rpcMessage.getRequestID());
-        length += Long.SIZE * 3;
         
         // Write each short field
         dataWriter.writeShort(rpcMessage.getStatus());
         dataWriter.writeShort(rpcMessage.getProcedureID());
         dataWriter.writeShort(rpcMessage.getMessageType().ordinal());
-        length += Short.SIZE * 3;
         
-        // Write the csv data. 
-        // Use the length of the string to calculate the  byte size
-        String csv = rpcMessage.getCsv_data();
-        dataWriter.writeChars(csv);
-        length += Character.SIZE * csv.length();
+        // Write the arguments as csv data
+        StringBuilder csv = new StringBuilder();
+        for (long arg : rpcMessage.getArgs()) {
+            if (csv.length() != 0) {
+                csv.append(',');
+            }
+            csv.append(arg);
+        }
+        dataWriter.writeChars(csv.toString());
         
         // Retrieve the final byte array
         dataWriter.close();
-        data = bytes.toByteArray();
-        bytes.close();
-        
-        //Update the to be in bytes, rather than bits
-        length = length / Byte.SIZE;
+        return bytes.toByteArray();
     }
 
     
@@ -71,6 +206,73 @@ public class Message implements Serializable {
             throw new IOException("Data length mismatch.");
         }
         
+        if (version == VERSION_BINARY) {
+            RPCMessage rpcMessage = new RPCMessage();
+            unmarshalBinary(rpcMessage, new WireBuffer(data, length));
+            return rpcMessage;
+        }
+        else if (version == VERSION_CSV) {
+            return unmarshalCsv();
+        }
+        throw new IOException("Unsupported message version: " + version);
+    }
+    
+    /*** Unmarshals the stored serialized message into the passed message 
+     *   object, reading it with the passed buffer. Binary messages are read 
+     *   straight from the data array and reuse the argument array of the 
+     *   target, so a server thread that reuses both objects allocates nothing */
+    public void unmarshal(RPCMessage target, WireBuffer reader) throws IOException {
+        if (length != data.length) {
+            throw new IOException("Data length mismatch.");
+        }
+        
+        if (version == VERSION_BINARY) {
+            reader.reset(data, length);
+            unmarshalBinary(target, reader);
+        }
+        else {
+            RPCMessage rpcMessage = unmarshal();
+            target.set(rpcMessage.getMessageType(), rpcMessage.getTransactionID(), 
+                    rpcMessage.getRPCID(), rpcMessage.getRequestID(), 
+                    rpcMessage.getProcedureID(), rpcMessage.getArgs(), 
+                    rpcMessage.getStatus());
+        }
+    }
+    
+    // Reads a message in the binary format into the passed message object
+    private static void unmarshalBinary(RPCMessage target, WireBuffer reader) 
+            throws IOException {
+        if (reader.readByte() != VERSION_BINARY) {
+            throw new IOException("Message version mismatch.");
+        }
+        MessageType type = readMessageType(reader.readByte());
+        
+        long transactionID = reader.readFixedLong();
+        long RPCID = reader.readFixedLong();
+        long requestID = reader.readVarLong();
+        short status = (short) reader.readVarLong();
+        short procedureID = (short) reader.readVarLong();
+        
+        // Read the arguments, using the mask to find the fixed 8-byte values
+        long argCount = reader.readVarLong();
+        if (argCount < 0 || argCount > MAX_BINARY_ARGS || argCount > reader.remaining()) {
+            throw new IOException("Invalid argument count.");
+        }
+        long longMask = reader.readVarLong();
+        long[] args = target.argsBuffer((int) argCount);
+        for (int i = 0; i < args.length; i++) {
+            args[i] = (longMask & 1L << i) != 0 ? 
+                    reader.readFixedLong() : reader.readVarLong();
+        }
+        if (reader.remaining() != 0) {
+            throw new IOException("Unexpected data after message.");
+        }
+        
+        target.set(type, transactionID, RPCID, requestID, procedureID, args, status);
+    }
+    
+    // Reads a message in the original csv format
+    private RPCMessage unmarshalCsv() throws IOException {
         // Create the streams to unmarshal the message contents
         ByteArrayInputStream bytes = new ByteArrayInputStream(data);
         DataInputStream dataReader = new DataInputStream(bytes);
@@ -82,16 +284,43 @@ public class Message implements Serializable {
         
         short status = dataReader.readShort();
         short procedureID = dataReader.readShort();
-        MessageType type = MessageType.values()[dataReader.readShort()];
+        MessageType type = readMessageType(dataReader.readShort());
         
         // The remaining bytes make up the csv string. Read them in
-        String csv = "";
-        while (dataReader.available() >= Character.SIZE / Byte.SIZE) {
-            csv += dataReader.readChar();
+        StringBuilder csv = new StringBuilder();
+        while (dataReader.available() >= Character.BYTES) {
+            csv.append(dataReader.readChar());
         }
         
         //Reconstruct and return the RPCMessage
         return new RPCMessage(
-                type, transactionID, RPCID, requestID, procedureID, csv, status);
+                type, transactionID, RPCID, requestID, procedureID, 
+                parseCsv(csv.toString()), status);
+    }
+    
+    // Parses csv arguments. Returns null if any value is not numeric, so the
+    // receiver can report the corrupt csv to the sender
+    private static long[] parseCsv(String csv) {
+        if (csv.isEmpty()) {
+            return new long[0];
+        }
+        String[] values = csv.split(",");
+        long[] args = new long[values.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                args[i] = Long.parseLong(values[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return args;
+    }
+    
+    // Converts a serialized message type ordinal back to its message type
+    private static MessageType readMessageType(int ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= MESSAGE_TYPES.length) {
+            throw new IOException("Invalid message type.");
+        }
+        return MESSAGE_TYPES[ordinal];
     }
 }
@@ -0,0 +1,391 @@
+package tramsimulate;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/** A non-blocking connection that carries length-prefixed frames of messages
+ *  between the NIO client and server transports. Every frame is written as
+ *
+ *      length (int, the bytes that follow) | frame ID (long) | kind (byte) | payload
+ *
+ *  where the frame ID is chosen by the client and copied into the reply, so
+ *  any number of requests can be outstanding on one connection and their
+ *  replies can arrive in any order. A message in a payload is written as its
+ *  format version (byte), its length (int) and its serialized data; a batch
+ *  as the number of messages (int) followed by each message, and an error as
+ *  its text in UTF-8. The replica control calls carry their arguments as
+ *  longs and ints ahead of any batch, and are answered with a long.
+ *
+ *  Frames can be sent from any thread. A sender writes straight to the socket
+ *  when nothing is queued, and queues the rest of the frame for the selector
+ *  thread otherwise, so frames are never interleaved. Received frames are
+ *  passed to the listener on the selector thread. */
+public class NioConnection implements NioSelectorPool.Handler {
+    // Frame kinds
+    public static final byte REQUEST = 1;
+    public static final byte BATCH_REQUEST = 2;
+    public static final byte REPLY = 3;
+    public static final byte BATCH_REPLY = 4;
+    public static final byte ERROR = 5;
+    // Replica control calls and their reply, which carries a long
+    public static final byte APPLY_LOG = 6;
+    public static final byte PROMOTE = 7;
+    public static final byte APPLIED_SEQUENCE = 8;
+    public static final byte VALUE_REPLY = 9;
+    public static final byte SYNC_STATE = 10;
+    public static final byte SYNC_FROM = 11;
+    // Answered with a REPLY carrying the snapshot part as a message
+    public static final byte SNAPSHOT_CHUNK = 12;
+
+    // Largest frame accepted, to bound the buffer a corrupt length could
+    // demand. Set with -Dtram.nio.maxFrameBytes
+    public static final int MAX_FRAME_BYTES = Integer.getInteger("tram.nio.maxFrameBytes", 16 << 20);
+
+    private static final int LENGTH_BYTES = Integer.BYTES;
+    private static final int HEADER_BYTES = Long.BYTES + 1; // Frame ID and kind
+    private static final int MESSAGE_HEADER_BYTES = 1 + Integer.BYTES; // Version and length
+    private static final int INITIAL_READ_BYTES = 64 * 1024;
+    private static final int MAX_ERROR_CHARS = 1024;
+
+    // Receives the frames of a connection, on its selector thread
+    public interface FrameListener {
+        // Called for each whole frame received. The payload is only valid
+        // until the call returns, so it must be read before returning
+        void frameReceived(NioConnection connection, long frameID, byte kind,
+                ByteBuffer payload) throws IOException;
+        // Called once when the connection closes, for whatever reason
+        void closed(NioConnection connection, IOException cause);
+    }
+
+    private final SocketChannel channel;
+    private final FrameListener listener;
+    private final SelectionKey key;
+    private final String peer; // Address of the other end, kept for messages after closing
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BYTES);
+    // Frames not yet fully written, in order. Also guards the closed flag
+    private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+    private volatile boolean closed = false;
+
+    /*** Wraps a connected socket channel, registering it with a selector of
+     *   the passed pool. The listener receives every frame read from it ***/
+    public NioConnection(SocketChannel channel, FrameListener listener,
+            NioSelectorPool pool) throws IOException {
+        this.channel = channel;
+        this.listener = listener;
+        peer = String.valueOf(channel.getRemoteAddress());
+        channel.configureBlocking(false);
+        // Frames are small and a request waits for its reply, so never delay them
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        // Registered with no events until the key is stored, so the selector
+        // thread can't use the connection before it is fully set up
+        key = pool.register(channel, 0, this);
+        key.interestOps(SelectionKey.OP_READ);
+        key.selector().wakeup();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /*** Sends a frame built by one of the frame methods below. Throws an
+     *   IOException if the connection is or becomes closed ***/
+    public void send(ByteBuffer frame) throws IOException {
+        try {
+            synchronized (writes) {
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                // Write straight away unless earlier frames are still queued
+                if (writes.isEmpty()) {
+                    channel.write(frame);
+                    if (!frame.hasRemaining()) {
+                        return;
+                    }
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    key.selector().wakeup();
+                }
+                writes.add(frame);
+            }
+        } catch (IOException e) {
+            close(e);
+            throw e;
+        } catch (CancelledKeyException e) {
+            close(new ClosedChannelException());
+            throw new ClosedChannelException();
+        }
+    }
+
+    // Closes the connection, discarding unsent frames and telling the listener once
+    public void close(IOException cause) {
+        synchronized (writes) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            writes.clear();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closing, so there is nothing more to do
+        }
+        listener.closed(this, cause);
+    }
+
+    // Returns the address of the other end
+    public String toString() {
+        return peer;
+    }
+
+    /*** Selector events ***/
+
+    public void ready(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            readFrames();
+        }
+        if (key.isValid() && key.isWritable()) {
+            writeQueued();
+        }
+    }
+
+    public void failed(IOException cause) {
+        close(cause);
+    }
+
+    // Reads what has arrived, passing each whole frame to the listener
+    private void readFrames() throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            throw new EOFException("Connection closed by " + this);
+        }
+        readBuffer.flip();
+        int received = readBuffer.limit();
+        int needed = 0; // Bytes of a frame that doesn't fit in the buffer
+        while (readBuffer.remaining() >= LENGTH_BYTES) {
+            int start = readBuffer.position();
+            int length = readBuffer.getInt(start);
+            if (length < HEADER_BYTES || length > MAX_FRAME_BYTES) {
+                throw new IOException("Invalid frame length " + length + " from " + this);
+            }
+            if (readBuffer.remaining() < LENGTH_BYTES + length) {
+                needed = LENGTH_BYTES + length;
+                break;
+            }
+            long frameID = readBuffer.getLong(start + LENGTH_BYTES);
+            byte kind = readBuffer.get(start + LENGTH_BYTES + Long.BYTES);
+
+            // Pass a view of just the payload, then move past the frame
+            int end = start + LENGTH_BYTES + length;
+            readBuffer.limit(end).position(start + LENGTH_BYTES + HEADER_BYTES);
+            ByteBuffer payload = readBuffer.slice();
+            readBuffer.limit(received).position(end);
+            listener.frameReceived(this, frameID, kind, payload);
+        }
+        readBuffer.compact();
+
+        // Grow the buffer to hold a frame larger than it
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    // Writes the queued frames, until the socket can take no more
+    private void writeQueued() throws IOException {
+        synchronized (writes) {
+            while (!writes.isEmpty()) {
+                ByteBuffer frame = writes.peek();
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                writes.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /*** Frames ***/
+
+    // Builds a frame carrying one message
+    public static ByteBuffer messageFrame(long frameID, byte kind, Message message)
+            throws IOException {
+        ByteBuffer frame = startFrame(frameID, kind, MESSAGE_HEADER_BYTES + message.getLength());
+        putMessage(frame, message);
+        return frame.flip();
+    }
+
+    // Builds a frame carrying a batch of messages
+    public static ByteBuffer batchFrame(long frameID, byte kind, Message[] messages)
+            throws IOException {
+        ByteBuffer frame = startFrame(frameID, kind, batchBytes(messages));
+        putBatch(frame, messages);
+        return frame.flip();
+    }
+
+    // Builds a frame shipping update log entries to a backup
+    public static ByteBuffer applyLogFrame(long frameID, long epoch, long firstSequence,
+            Message[] entries) throws IOException {
+        ByteBuffer frame = startFrame(frameID, APPLY_LOG, 2 * Long.BYTES + batchBytes(entries));
+        frame.putLong(epoch).putLong(firstSequence);
+        putBatch(frame, entries);
+        return frame.flip();
+    }
+
+    // Builds a frame promoting a replication manager to primary
+    public static ByteBuffer promoteFrame(long frameID, long epoch, int[] backupPorts)
+            throws IOException {
+        ByteBuffer frame = startFrame(frameID, PROMOTE,
+                Long.BYTES + Integer.BYTES * (1 + backupPorts.length));
+        frame.putLong(epoch).putInt(backupPorts.length);
+        for (int port : backupPorts) {
+            frame.putInt(port);
+        }
+        return frame.flip();
+    }
+
+    // Builds a frame carrying a single long
+    public static ByteBuffer valueFrame(long frameID, byte kind, long value) {
+        ByteBuffer frame = allocateFrame(frameID, kind, Long.BYTES);
+        frame.putLong(value);
+        return frame.flip();
+    }
+
+    // Builds a frame telling the client its request failed
+    public static ByteBuffer errorFrame(long frameID, String error) {
+        String shown = String.valueOf(error);
+        if (shown.length() > MAX_ERROR_CHARS) {
+            shown = shown.substring(0, MAX_ERROR_CHARS);
+        }
+        byte[] text = shown.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = allocateFrame(frameID, ERROR, text.length);
+        frame.put(text);
+        return frame.flip();
+    }
+
+    // Reads the message of a payload
+    public static Message readMessage(ByteBuffer payload) throws IOException {
+        Message message = getMessage(payload);
+        if (payload.hasRemaining()) {
+            throw new IOException("Malformed frame: " + payload.remaining() + " extra bytes");
+        }
+        return message;
+    }
+
+    // Reads the batch of messages of a payload
+    public static Message[] readBatch(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < Integer.BYTES) {
+            throw new IOException("Malformed frame: no batch size");
+        }
+        int count = payload.getInt();
+        // Every message takes at least its header, which bounds a corrupt count
+        if (count < 0 || count > payload.remaining() / MESSAGE_HEADER_BYTES) {
+            throw new IOException("Malformed frame: batch of " + count + " messages");
+        }
+        Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = getMessage(payload);
+        }
+        return messages;
+    }
+
+    // Reads a long argument or reply value of a payload
+    public static long readLong(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < Long.BYTES) {
+            throw new IOException("Malformed frame: truncated value");
+        }
+        return payload.getLong();
+    }
+
+    // Reads the ports of a promote payload, after its epoch
+    public static int[] readPorts(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < Integer.BYTES) {
+            throw new IOException("Malformed frame: no port count");
+        }
+        int count = payload.getInt();
+        if (count < 0 || (long) count * Integer.BYTES != payload.remaining()) {
+            throw new IOException("Malformed frame: " + count + " ports");
+        }
+        int[] ports = new int[count];
+        for (int i = 0; i < count; i++) {
+            ports[i] = payload.getInt();
+        }
+        return ports;
+    }
+
+    // Reads the error text of a payload
+    public static String readError(ByteBuffer payload) {
+        byte[] text = new byte[payload.remaining()];
+        payload.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer startFrame(long frameID, byte kind, int payloadBytes)
+            throws IOException {
+        if (payloadBytes < 0 || HEADER_BYTES + payloadBytes > MAX_FRAME_BYTES) {
+            throw new IOException("Frame of " + payloadBytes + " bytes is too large to send");
+        }
+        return allocateFrame(frameID, kind, payloadBytes);
+    }
+
+    private static ByteBuffer allocateFrame(long frameID, byte kind, int payloadBytes) {
+        int length = HEADER_BYTES + payloadBytes;
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_BYTES + length);
+        frame.putInt(length).putLong(frameID).put(kind);
+        return frame;
+    }
+
+    // Returns the bytes a batch takes in a payload
+    private static int batchBytes(Message[] messages) throws IOException {
+        long payloadBytes = Integer.BYTES;
+        for (Message message : messages) {
+            payloadBytes += MESSAGE_HEADER_BYTES + message.getLength();
+        }
+        if (payloadBytes > MAX_FRAME_BYTES) {
+            throw new IOException("Batch of " + payloadBytes + " bytes is too large to send");
+        }
+        return (int) payloadBytes;
+    }
+
+    private static void putBatch(ByteBuffer frame, Message[] messages) {
+        frame.putInt(messages.length);
+        for (Message message : messages) {
+            putMessage(frame, message);
+        }
+    }
+
+    private static void putMessage(ByteBuffer frame, Message message) {
+        int length = message.getLength();
+        frame.put(message.getVersion()).putInt(length);
+        if (length > 0) {
+            message.copyData(frame.array(), frame.arrayOffset() + frame.position());
+            frame.position(frame.position() + length);
+        }
+    }
+
+    private static Message getMessage(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < MESSAGE_HEADER_BYTES) {
+            throw new IOException("Malformed frame: truncated message header");
+        }
+        byte version = payload.get();
+        int length = payload.getInt();
+        if (length < 0 || length > payload.remaining()) {
+            throw new IOException("Malformed frame: message of " + length + " bytes");
+        }
+        Message message = new Message();
+        message.setData(payload.array(), payload.arrayOffset() + payload.position(),
+                length, version);
+        payload.position(payload.position() + length);
+        return message;
+    }
+}
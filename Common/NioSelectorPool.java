@@ -0,0 +1,91 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A small pool of selector threads shared by every NIO connection and
+ *  listener in the process. Each channel is registered with one selector,
+ *  picked in turn, and its ready events are handled on that selector's thread
+ *  only, so the handlers of one channel never run at once. Handlers must not
+ *  block: work that may block is passed to other threads. */
+public class NioSelectorPool {
+    // Selector threads of the shared pool. Set with -Dtram.nio.selectors
+    public static final int SELECTORS = Integer.getInteger("tram.nio.selectors", 2);
+
+    private static NioSelectorPool shared;
+
+    // Receives the ready events of a registered channel, on its selector's thread
+    public interface Handler {
+        void ready(SelectionKey key) throws IOException;
+        // Called instead when handling fails, or the channel's key is cancelled
+        void failed(IOException cause);
+    }
+
+    private final Selector[] selectors;
+    private final AtomicInteger next = new AtomicInteger();
+
+    // Opens the passed number of selectors, each with its own daemon thread
+    public NioSelectorPool(int size) throws IOException {
+        selectors = new Selector[size];
+        for (int i = 0; i < size; i++) {
+            selectors[i] = Selector.open();
+            Selector selector = selectors[i];
+            Thread thread = new Thread(() -> run(selector), "nio-selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Returns the pool shared by the process, creating it on first use
+    public static synchronized NioSelectorPool shared() throws IOException {
+        if (shared == null) {
+            shared = new NioSelectorPool(SELECTORS);
+        }
+        return shared;
+    }
+
+    // Registers a non-blocking channel for the passed events with the next
+    // selector in turn, returning its key
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws IOException {
+        Selector selector = selectors[Math.floorMod(next.getAndIncrement(), selectors.length)];
+        SelectionKey key = channel.register(selector, ops, handler);
+        // Make a select already in progress pick up the new key
+        selector.wakeup();
+        return key;
+    }
+
+    // Selects and dispatches ready events until the selector is closed
+    private static void run(Selector selector) {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                EventLog.text(EventLog.Level.ERROR, "Selector failed: " + e.getMessage());
+                return;
+            }
+            Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+            while (ready.hasNext()) {
+                SelectionKey key = ready.next();
+                ready.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.ready(key);
+                    }
+                } catch (IOException e) {
+                    key.cancel();
+                    handler.failed(e);
+                } catch (CancelledKeyException e) {
+                    // Closed by another thread while being handled
+                    handler.failed(new IOException("Channel closed", e));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Client side of the NIO transport, used in place of an RMI stub. Every
+ *  thread shares one connection to the server and any number of requests can
+ *  be outstanding on it at once, each matched to its reply by frame ID, so a
+ *  caller only blocks for its own reply. The asynchronous methods don't block
+ *  at all; their futures complete on a selector thread, so work chained on
+ *  them must not block either.
+ *
+ *  Like an RMI stub, the client connects again on the next request after the
+ *  connection is lost, and failures are thrown as RemoteExceptions. A request
+ *  with no reply within the timeout fails without affecting the others. The
+ *  replica control calls of primary-backup replication go over the same
+ *  connection. */
+public class NioTramClient implements AsyncTramServer, ReplicaControl {
+    // Milliseconds to wait for a reply. Set with -Dtram.nio.timeoutMillis
+    public static final long TIMEOUT_MILLIS = Long.getLong("tram.nio.timeoutMillis", 10000);
+    // Milliseconds to wait for a connection. Set with -Dtram.nio.connectTimeoutMillis
+    public static final int CONNECT_TIMEOUT_MILLIS =
+            Integer.getInteger("tram.nio.connectTimeoutMillis", 2000);
+
+    private final InetSocketAddress address;
+    private final AtomicLong nextFrameID = new AtomicLong();
+    private Session session; // Current connection, replaced when it closes
+    private boolean closed = false; // Set by close, after which nothing reconnects
+
+    // Builds the frame of a request once its frame ID is known
+    private interface FrameBuilder {
+        ByteBuffer build(long frameID) throws IOException;
+    }
+
+    // A connection and the requests waiting for a reply on it. Each reply
+    // completes with a Message, a Message[] or a Long, by its frame kind
+    private static class Session implements NioConnection.FrameListener {
+        final ConcurrentHashMap<Long, CompletableFuture<Object>> pending =
+                new ConcurrentHashMap<Long, CompletableFuture<Object>>();
+        NioConnection connection;
+
+        // Completes the request the reply belongs to. Replies to requests that
+        // have already timed out are dropped
+        public void frameReceived(NioConnection connection, long frameID, byte kind,
+                ByteBuffer payload) throws IOException {
+            CompletableFuture<Object> reply = pending.remove(frameID);
+            if (reply == null) {
+                return;
+            }
+            if (kind == NioConnection.REPLY) {
+                reply.complete(NioConnection.readMessage(payload));
+            }
+            else if (kind == NioConnection.BATCH_REPLY) {
+                reply.complete(NioConnection.readBatch(payload));
+            }
+            else if (kind == NioConnection.VALUE_REPLY) {
+                reply.complete(NioConnection.readLong(payload));
+            }
+            else if (kind == NioConnection.ERROR) {
+                reply.completeExceptionally(new ServerException(NioConnection.readError(payload)));
+            }
+            else {
+                reply.completeExceptionally(new RemoteException("Unexpected frame kind " + kind));
+                throw new IOException("Unexpected frame kind " + kind + " from " + connection);
+            }
+        }
+
+        // Fails every request still waiting on the closed connection
+        public void closed(NioConnection connection, IOException cause) {
+            for (Long frameID : pending.keySet()) {
+                CompletableFuture<Object> reply = pending.remove(frameID);
+                if (reply != null) {
+                    reply.completeExceptionally(new ConnectException(
+                            "Connection to " + connection + " lost", cause));
+                }
+            }
+        }
+    }
+
+    // Creates a client of the server at the passed host and port. Connects
+    // on the first request
+    public NioTramClient(String host, int port) {
+        address = host == null ? new InetSocketAddress("localhost", port) :
+            new InetSocketAddress(host, port);
+    }
+
+    // Creates a client and connects it straight away, failing if the server can't be reached
+    public static NioTramClient connect(String host, int port) throws IOException {
+        NioTramClient client = new NioTramClient(host, port);
+        client.session();
+        return client;
+    }
+
+    // Returns whether the client has a connection open
+    public synchronized boolean isConnected() {
+        return session != null && !session.connection.isClosed();
+    }
+
+    // Closes the connection for good, failing the requests still waiting
+    public void close() {
+        Session last;
+        synchronized (this) {
+            closed = true;
+            last = session;
+        }
+        if (last != null) {
+            last.connection.close(new IOException("Client closed"));
+        }
+    }
+
+    /*** TramServer implementation, blocking until the reply arrives ***/
+
+    public Message makeRequest(Message request) throws RemoteException {
+        return (Message) await(send(id -> NioConnection.messageFrame(id, NioConnection.REQUEST,
+                request)));
+    }
+
+    public Message[] makeBatchRequest(Message[] requests) throws RemoteException {
+        return (Message[]) await(send(id -> NioConnection.batchFrame(id,
+                NioConnection.BATCH_REQUEST, requests)));
+    }
+
+    /*** Asynchronous requests. The futures fail with a RemoteException, or a
+     *   TimeoutException when there is no reply in time ***/
+
+    public CompletableFuture<Message> makeRequestAsync(Message request) {
+        return send(id -> NioConnection.messageFrame(id, NioConnection.REQUEST, request))
+                .thenApply(reply -> (Message) reply);
+    }
+
+    public CompletableFuture<Message[]> makeBatchRequestAsync(Message[] requests) {
+        return send(id -> NioConnection.batchFrame(id, NioConnection.BATCH_REQUEST, requests))
+                .thenApply(replies -> (Message[]) replies);
+    }
+
+    /*** ReplicaControl implementation ***/
+
+    public long applyLog(long epoch, long firstSequence, Message[] entries)
+            throws RemoteException {
+        return (Long) await(send(id -> NioConnection.applyLogFrame(id, epoch, firstSequence,
+                entries)));
+    }
+
+    public long appliedSequence() throws RemoteException {
+        return (Long) await(send(id -> NioConnection.valueFrame(id,
+                NioConnection.APPLIED_SEQUENCE, 0)));
+    }
+
+    public void promote(long epoch, int[] backupPorts) throws RemoteException {
+        await(send(id -> NioConnection.promoteFrame(id, epoch, backupPorts)));
+    }
+
+    public long syncState() throws RemoteException {
+        return (Long) await(send(id -> NioConnection.valueFrame(id, NioConnection.SYNC_STATE, 0)));
+    }
+
+    public void syncFrom(int peerPort) throws RemoteException {
+        await(send(id -> NioConnection.valueFrame(id, NioConnection.SYNC_FROM, peerPort)));
+    }
+
+    public Message snapshotChunk(int chunk) throws RemoteException {
+        return (Message) await(send(id -> NioConnection.valueFrame(id,
+                NioConnection.SNAPSHOT_CHUNK, chunk)));
+    }
+
+    // Sends the request frame, returning the future its reply completes
+    private CompletableFuture<Object> send(FrameBuilder builder) {
+        CompletableFuture<Object> reply = new CompletableFuture<Object>();
+        Session current;
+        try {
+            current = session();
+        } catch (IOException e) {
+            reply.completeExceptionally(new ConnectException("Couldn't connect to " + address, e));
+            return reply;
+        }
+
+        long frameID = nextFrameID.incrementAndGet();
+        current.pending.put(frameID, reply);
+        try {
+            current.connection.send(builder.build(frameID));
+        } catch (IOException e) {
+            current.pending.remove(frameID);
+            reply.completeExceptionally(current.connection.isClosed() ?
+                    new ConnectException("Connection to " + address + " lost", e) :
+                    new RemoteException("Couldn't send request", e));
+            return reply;
+        }
+
+        // Stop waiting after the timeout, dropping any reply that comes later
+        reply.orTimeout(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((value, error) -> {
+            if (error != null) {
+                current.pending.remove(frameID);
+            }
+        });
+        return reply;
+    }
+
+    // Waits for a reply, throwing its failure as a RemoteException
+    private Object await(CompletableFuture<Object> reply) throws RemoteException {
+        try {
+            return reply.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            if (e.getCause() instanceof TimeoutException) {
+                throw new RemoteException("No reply from " + address + " within "
+                        + TIMEOUT_MILLIS + " ms");
+            }
+            throw new RemoteException("Request failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for reply", e);
+        }
+    }
+
+    // Returns the open session, connecting if there is none
+    private synchronized Session session() throws IOException {
+        if (closed) {
+            throw new IOException("Client closed");
+        }
+        if (session == null || session.connection.isClosed()) {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+                Session opened = new Session();
+                opened.connection = new NioConnection(channel, opened, NioSelectorPool.shared());
+                session = opened;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        return session;
+    }
+}
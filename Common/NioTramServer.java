@@ -0,0 +1,216 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Server side of the NIO transport. Listens on a port and passes the
+ *  requests framed on each connection to a TramServer object, the same one
+ *  RMI would export. Connections are accepted on a thread of their own, their
+ *  frames are read on the shared selector threads and each
+ *  request is handled on a worker thread, since the front end's handling
+ *  waits on the replication managers. Replies are sent as soon as they are
+ *  ready, so requests pipelined on one connection don't wait for each other. */
+public class NioTramServer implements NioConnection.FrameListener {
+    // Worker threads handling requests, with requests beyond them queued. 0
+    // starts a thread for every request in progress. Set with -Dtram.nio.workers
+    public static final int WORKERS = Integer.getInteger("tram.nio.workers", 64);
+
+    private final TramServer target;
+    private final ServerSocketChannel listener;
+    private final NioSelectorPool pool;
+    private final ExecutorService workers;
+    private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /*** Starts listening for connections on the passed port, or on any free
+     *   port if it is 0, passing their requests to the target ***/
+    public NioTramServer(TramServer target, int port) throws IOException {
+        this.target = target;
+        pool = NioSelectorPool.shared();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "nio-worker");
+            thread.setDaemon(true);
+            return thread;
+        };
+        workers = WORKERS > 0 ? Executors.newFixedThreadPool(WORKERS, factory) :
+            Executors.newCachedThreadPool(factory);
+        listener = ServerSocketChannel.open();
+        // Allow a restarted server to take its port back straight away
+        listener.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        listener.bind(new InetSocketAddress(port));
+        
+        // Not a daemon, so the process keeps serving after main returns, as with RMI
+        Thread acceptor = new Thread(this::acceptConnections, "nio-accept-" + getPort());
+        acceptor.start();
+    }
+
+    // Returns the port the server is listening on
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    // Stops listening and closes every connection
+    public void close() {
+        try {
+            listener.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (NioConnection connection : connections) {
+            connection.close(new IOException("Server closed"));
+        }
+        workers.shutdownNow();
+    }
+
+    // Accepts connections until the listener is closed, registering each
+    // with the selector threads
+    private void acceptConnections() {
+        while (listener.isOpen()) {
+            try {
+                connections.add(new NioConnection(listener.accept(), this, pool));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                EventLog.text(EventLog.Level.WARN, "Couldn't accept connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /*** Connection events ***/
+
+    // Reads a request off the selector thread and hands it to a worker
+    public void frameReceived(NioConnection connection, long frameID, byte kind,
+            ByteBuffer payload) throws IOException {
+        if (kind == NioConnection.REQUEST) {
+            Message request = NioConnection.readMessage(payload);
+            workers.execute(() -> serve(connection, frameID, request));
+        }
+        else if (kind == NioConnection.BATCH_REQUEST) {
+            Message[] requests = NioConnection.readBatch(payload);
+            workers.execute(() -> serveBatch(connection, frameID, requests));
+        }
+        else if (kind == NioConnection.APPLY_LOG) {
+            ReplicaControl control = control(kind, connection);
+            long epoch = NioConnection.readLong(payload);
+            long firstSequence = NioConnection.readLong(payload);
+            Message[] entries = NioConnection.readBatch(payload);
+            workers.execute(() -> serveControl(connection, frameID,
+                    () -> control.applyLog(epoch, firstSequence, entries)));
+        }
+        else if (kind == NioConnection.APPLIED_SEQUENCE) {
+            ReplicaControl control = control(kind, connection);
+            workers.execute(() -> serveControl(connection, frameID, control::appliedSequence));
+        }
+        else if (kind == NioConnection.PROMOTE) {
+            ReplicaControl control = control(kind, connection);
+            long epoch = NioConnection.readLong(payload);
+            int[] backupPorts = NioConnection.readPorts(payload);
+            workers.execute(() -> serveControl(connection, frameID, () -> {
+                control.promote(epoch, backupPorts);
+                return 0;
+            }));
+        }
+        else if (kind == NioConnection.SYNC_STATE) {
+            ReplicaControl control = control(kind, connection);
+            workers.execute(() -> serveControl(connection, frameID, control::syncState));
+        }
+        else if (kind == NioConnection.SYNC_FROM) {
+            ReplicaControl control = control(kind, connection);
+            int peerPort = (int) NioConnection.readLong(payload);
+            workers.execute(() -> serveControl(connection, frameID, () -> {
+                control.syncFrom(peerPort);
+                return 0;
+            }));
+        }
+        else if (kind == NioConnection.SNAPSHOT_CHUNK) {
+            ReplicaControl control = control(kind, connection);
+            int chunk = (int) NioConnection.readLong(payload);
+            workers.execute(() -> serveChunk(connection, frameID, control, chunk));
+        }
+        else {
+            throw new IOException("Unexpected frame kind " + kind + " from " + connection);
+        }
+    }
+
+    // A replica control call, answered with a long
+    private interface ControlCall {
+        long call() throws Exception;
+    }
+
+    // Returns the target as a ReplicaControl, failing the connection if it isn't one
+    private ReplicaControl control(byte kind, NioConnection connection) throws IOException {
+        if (!(target instanceof ReplicaControl)) {
+            throw new IOException("Replica control frame kind " + kind + " from " + connection
+                    + " sent to a server without replica control");
+        }
+        return (ReplicaControl) target;
+    }
+
+    public void closed(NioConnection connection, IOException cause) {
+        connections.remove(connection);
+        EventLog.text(EventLog.Level.DEBUG, "Connection from " + connection + " closed: "
+                + cause.getMessage());
+    }
+
+    // Handles a single request. The reply is framed before this thread takes
+    // another request, as the target may reuse its reply message
+    private void serve(NioConnection connection, long frameID, Message request) {
+        ByteBuffer frame;
+        try {
+            frame = NioConnection.messageFrame(frameID, NioConnection.REPLY,
+                    target.makeRequest(request));
+        } catch (Exception e) {
+            frame = NioConnection.errorFrame(frameID, e.getMessage());
+        }
+        reply(connection, frame);
+    }
+
+    private void serveBatch(NioConnection connection, long frameID, Message[] requests) {
+        ByteBuffer frame;
+        try {
+            frame = NioConnection.batchFrame(frameID, NioConnection.BATCH_REPLY,
+                    target.makeBatchRequest(requests));
+        } catch (Exception e) {
+            frame = NioConnection.errorFrame(frameID, e.getMessage());
+        }
+        reply(connection, frame);
+    }
+
+    private void serveControl(NioConnection connection, long frameID, ControlCall call) {
+        ByteBuffer frame;
+        try {
+            frame = NioConnection.valueFrame(frameID, NioConnection.VALUE_REPLY, call.call());
+        } catch (Exception e) {
+            frame = NioConnection.errorFrame(frameID, e.getMessage());
+        }
+        reply(connection, frame);
+    }
+
+    private void serveChunk(NioConnection connection, long frameID, ReplicaControl control,
+            int chunk) {
+        ByteBuffer frame;
+        try {
+            frame = NioConnection.messageFrame(frameID, NioConnection.REPLY,
+                    control.snapshotChunk(chunk));
+        } catch (Exception e) {
+            frame = NioConnection.errorFrame(frameID, e.getMessage());
+        }
+        reply(connection, frame);
+    }
+
+    private static void reply(NioConnection connection, ByteBuffer frame) {
+        try {
+            connection.send(frame);
+        } catch (IOException e) {
+            // The connection has closed, and its client fails the request itself
+        }
+    }
+}
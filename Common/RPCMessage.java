@@ -20,17 +20,17 @@ public class RPCMessage implements Serializable {
     private long requestID;
     // Indicates the server procedure that the request/reply is relevant to
     private short procedureID;
-    // Any extra data for the request/reply, stored as a csv string
-    private String csv_data;
+    // Procedure arguments or reply values. Null if the arguments could not be read
+    private long[] args;
     // Server-side error status indicator. A value of 0 indicates no error
     private short status;
     
     // Message constructor for a pre-existing transaction (client-side)
     // Takes a pre-stored transaction ID instead of generating a new one
-    public RPCMessage(long transactionID, long requestID, String csv_data, 
+    public RPCMessage(long transactionID, long requestID, long[] args, 
             short procedureID) {
         this.transactionID = transactionID;
-        this.csv_data = csv_data;
+        this.args = args;
         this.procedureID = procedureID;
         this.requestID = requestID;
         
@@ -43,18 +43,18 @@ public class RPCMessage implements Serializable {
     
     // Message constructor for start of transaction (client-side)
     // Generates a random new transaction ID
-    public RPCMessage(long requestID, String csv_data, 
+    public RPCMessage(long requestID, long[] args, 
             short procedureID) {
-        this(ThreadLocalRandom.current().nextLong(), requestID, csv_data,
+        this(ThreadLocalRandom.current().nextLong(), requestID, args,
                 procedureID);
     }
     
     // Message constructor for a reply (server-side)
     // Copies fields from the request to the reply for validation by the client
-    public RPCMessage(RPCMessage clientRequest, String csv_data, 
+    public RPCMessage(RPCMessage clientRequest, long[] args, 
             short status) {
         messageType = MessageType.REPLY;
-        this.csv_data = csv_data;
+        this.args = args;
         this.status = status;
         
         // Copy the relevant information from the client request
@@ -67,16 +67,41 @@ public class RPCMessage implements Serializable {
     // De-serialization constructor. Not to be used for creating requests/replies,
     // only unpacking them through the Message class
     public RPCMessage(MessageType messageType, long transactionID, long RPCID, 
-            long requestID, short procedureID, String csv_data, short status) {
+            long requestID, short procedureID, long[] args, short status) {
         this.messageType = messageType;
         this.transactionID = transactionID;
         this.RPCID = RPCID;
         this.requestID = requestID;
         this.procedureID = procedureID;
-        this.csv_data = csv_data;
+        this.args = args;
         this.status = status;
     }
     
+    // Empty message constructor. Filled in by Message.unmarshal(RPCMessage, WireBuffer)
+    // so that a server thread can reuse one object for every request it reads
+    public RPCMessage() {
+        this(MessageType.REQUEST, 0, 0, 0, (short) 0, null, (short) 0);
+    }
+    
+    // Overwrites every field with the passed values. Only for reuse of an
+    // object while unmarshalling
+    void set(MessageType messageType, long transactionID, long RPCID, 
+            long requestID, short procedureID, long[] args, short status) {
+        this.messageType = messageType;
+        this.transactionID = transactionID;
+        this.RPCID = RPCID;
+        this.requestID = requestID;
+        this.procedureID = procedureID;
+        this.args = args;
+        this.status = status;
+    }
+    
+    // Returns an argument array of the passed length to be filled in while
+    // unmarshalling, reusing the current array when it is the same length
+    long[] argsBuffer(int length) {
+        return args != null && args.length == length ? args : new long[length];
+    }
+    
     // Constructor to be used for replicating a registration request
     public RPCMessage (RPCMessage replyToReplicate) {
         
@@ -85,11 +110,18 @@ public class RPCMessage implements Serializable {
         this.RPCID = replyToReplicate.RPCID;
         this.requestID = replyToReplicate.requestID;
         this.procedureID = replyToReplicate.procedureID;
-        this.csv_data = replyToReplicate.csv_data;
+        this.args = replyToReplicate.args;
         this.status = 0;
  
     }
 
+    // Returns a copy of this message with other arguments, for passing a
+    // request on with its cursor rewritten, or a reply with its values
+    public RPCMessage withArgs(long[] args) {
+        return new RPCMessage(messageType, transactionID, RPCID, requestID, 
+                procedureID, args, status);
+    }
+
     public MessageType getMessageType() {
         return messageType;
     }
@@ -105,8 +137,9 @@ public class RPCMessage implements Serializable {
     public short getProcedureID() {
         return procedureID;
     }
-    public String getCsv_data() {
-        return csv_data;
+    // Returns the argument array itself rather than a copy, so it must not be modified
+    public long[] getArgs() {
+        return args;
     }
     public short getStatus() {
         return status;
@@ -0,0 +1,51 @@
+package tramsimulate;
+import java.rmi.Remote;
+
+import java.rmi.RemoteException;
+
+/*** Calls that run primary-backup replication, made by the front end to pick
+ *   and promote a primary, and by the primary to ship its update log to the
+ *   backups, and the calls that bring a replication manager that starts
+ *   empty up to date with a live one. Implemented by the replication 
+ *   manager's server object next to TramServer, so it is reached through the
+ *   same stub or connection.
+ *
+ *   Each promotion carries an epoch higher than any before it. A replication
+ *   manager ignores calls from an older epoch, so a primary that was replaced
+ *   while cut off from the front end can't overwrite the new primary's log. ***/
+public interface ReplicaControl extends Remote {
+    // Returned by applyLog to a primary whose epoch has been replaced
+    public static final long STALE_EPOCH = -1;
+    
+    // States returned by syncState. A replication manager starts EMPTY, and
+    // is SYNCING while it copies the state of a peer
+    public static final long STATE_EMPTY = 0;
+    public static final long STATE_SYNCING = 1;
+    public static final long STATE_SYNCED = 2;
+    
+    // Applies entries of the primary's update log in order, the first being
+    // numbered firstSequence. Entries already applied are skipped. Returns
+    // the sequence number of the last entry this replica has applied, from 
+    // which the primary continues, or STALE_EPOCH
+    public long applyLog(long epoch, long firstSequence, Message[] entries) 
+            throws RemoteException;
+    
+    // Returns the sequence number of the last update log entry applied
+    public long appliedSequence() throws RemoteException;
+    
+    // Makes this replication manager the primary of the passed epoch, shipping
+    // its update log to the replication managers on the passed ports
+    public void promote(long epoch, int[] backupPorts) throws RemoteException;
+    
+    // Returns the state of this replication manager's copy of the fleet
+    public long syncState() throws RemoteException;
+    
+    // Starts copying the state of the replication manager on the passed port
+    // in the background, or marks this one synced with the state it has if
+    // the port is 0. Ignored while a copy is already running
+    public void syncFrom(int peerPort) throws RemoteException;
+    
+    // Returns one part of a snapshot of this replication manager's state, 
+    // numbered from 0, to a replication manager syncing from it
+    public Message snapshotChunk(int chunk) throws RemoteException;
+}
@@ -0,0 +1,15 @@
+package tramsimulate;
+
+/*** How a replica group keeps its replication managers in step, chosen at
+ *   startup with -Dtram.replication. ACTIVE sends every request to every
+ *   active replication manager. PRIMARY_BACKUP sends each request only to
+ *   the group's primary, which ships its update log to the backups in the
+ *   background; the front end promotes a backup when the primary fails.
+ *   The front end and the replication managers must use the same mode. ***/
+public enum ReplicationMode {
+    ACTIVE, PRIMARY_BACKUP;
+
+    // Mode used by the process. Set with -Dtram.replication
+    public static final ReplicationMode SELECTED =
+            ReplicationMode.valueOf(System.getProperty("tram.replication", "ACTIVE"));
+}
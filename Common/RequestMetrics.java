@@ -0,0 +1,82 @@
+package tramsimulate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counts and latencies of the requests handled by a server, kept for each
+ *  procedure, with the number of requests that ended with each status flag.
+ *  Recording is lock-free: the counts are striped adders and the latencies
+ *  go into lock-free histograms, so it can stay on at full load. The views
+ *  used by the metrics MBeans build their maps only when read. */
+public class RequestMetrics implements TramCommsInterface {
+    // Procedure slot for requests whose procedure could not be read
+    public static final int UNKNOWN_PROCEDURE = PROCEDURE_NAMES.length;
+
+    // Statuses are counted at their value plus this offset, so FLAG_NO_MARTIAL has a place
+    private static final int STATUS_OFFSET = -FLAG_NO_MARTIAL;
+
+    private final LongAdder[] requests = new LongAdder[PROCEDURE_NAMES.length + 1];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[PROCEDURE_NAMES.length + 1];
+    private final LongAdder[] statuses = new LongAdder[STATUS_OFFSET + ERROR_MESSAGES.length];
+
+    public RequestMetrics() {
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = new LongAdder();
+        }
+    }
+
+    // Records a request of the passed procedure that ended with the passed
+    // status after the passed time
+    public void record(int procedure, int status, long nanos) {
+        int slot = procedure >= 0 && procedure < PROCEDURE_NAMES.length ?
+                procedure : UNKNOWN_PROCEDURE;
+        requests[slot].increment();
+        latencies[slot].record(nanos);
+        if (status + STATUS_OFFSET >= 0 && status + STATUS_OFFSET < statuses.length) {
+            statuses[status + STATUS_OFFSET].increment();
+        }
+    }
+
+    /*** Views ***/
+
+    // (Procedure name -> number of requests)
+    public Map<String, Long> requestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < requests.length; i++) {
+            counts.put(procedureName(i), requests[i].sum());
+        }
+        return counts;
+    }
+
+    // (Error message -> number of requests), for every error that has occurred
+    public Map<String, Long> errorCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < statuses.length; i++) {
+            long count = statuses[i].sum();
+            int status = i - STATUS_OFFSET;
+            if (count != 0 && status != FLAG_SUCCESS) {
+                counts.put(status == FLAG_NO_MARTIAL ? "request could not be unmarshalled" :
+                        ERROR_MESSAGES[status], count);
+            }
+        }
+        return counts;
+    }
+
+    // (Procedure name -> latency percentiles)
+    public Map<String, LatencySummary> latencies() {
+        Map<String, LatencySummary> summaries = new LinkedHashMap<String, LatencySummary>();
+        for (int i = 0; i < latencies.length; i++) {
+            summaries.put(procedureName(i), new LatencySummary(latencies[i]));
+        }
+        return summaries;
+    }
+
+    private static String procedureName(int slot) {
+        return slot == UNKNOWN_PROCEDURE ? "unknown" : PROCEDURE_NAMES[slot];
+    }
+}
@@ -4,6 +4,7 @@ package tramsimulate;
  *   communication stubs ***/
 public interface TramCommsInterface { 
     // Error flags and their meanings
+    // Set on the reply to a batch item that could not be unmarshalled
     public static final short FLAG_NO_MARTIAL = -1;
     public static final short FLAG_SUCCESS = 0;
     public static final short FLAG_NOT_REQUEST = 1;
@@ -35,11 +36,38 @@ public interface TramCommsInterface {
                            "invalid next stop for current tram position", 
                            "no prior next stop request for this transaction"};
     
-    // The names of the two server procedure types
-    public static final String[] PROCEDURE_NAMES = {"get next stop", "update location"};
+    // The names of the server procedure types
+    public static final String[] PROCEDURE_NAMES = {"get next stop", "update location",
+                           "advance tram", "tram position", "trams on route",
+                           "trams at stop"};
     
     
     // Values of the procedure ID for each server procedure type
     public static final short GET_NEXT_STOP = 0;
     public static final short UPDATE_LOCATION = 1;
+    // Gets the next stop and moves the tram to it in one request, replacing a
+    // GET_NEXT_STOP and UPDATE_LOCATION pair
+    public static final short ADVANCE_TRAM = 2;
+    
+    // Fleet queries, which read the tram locations without changing them.
+    // TRAM_POSITION takes a tram ID and replies (route ID, stop number).
+    // TRAMS_ON_ROUTE takes (route ID, cursor) and replies a cursor then a
+    // (tram ID, stop number) pair for each tram. TRAMS_AT_STOP takes (stop ID,
+    // cursor) and replies a cursor then a (tram ID, route ID, stop number)
+    // triple for each tram at the stop or heading to it, the stop number
+    // being the one it is heading from. A query's trams are paged: the first
+    // request passes a cursor of 0, each later one the cursor of the last
+    // reply, until a reply's cursor is 0
+    public static final short TRAM_POSITION = 3;
+    public static final short TRAMS_ON_ROUTE = 4;
+    public static final short TRAMS_AT_STOP = 5;
+    
+    // Most trams in one page of each paged query, as many as fit in a reply
+    public static final int ROUTE_PAGE_TRAMS = (Message.MAX_BINARY_ARGS - 1) / 2;
+    public static final int STOP_PAGE_TRAMS = (Message.MAX_BINARY_ARGS - 1) / 3;
+    
+    // Returns the boolean value of whether a procedure is a fleet query
+    public static boolean isQuery(int procedure) {
+        return procedure >= TRAM_POSITION && procedure <= TRAMS_AT_STOP;
+    }
 }
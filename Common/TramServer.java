@@ -7,4 +7,8 @@ import java.rmi.RemoteException;
 public interface TramServer extends Remote{ 
     // Takes a serialized RPC message via the Message class as input
     public Message makeRequest(Message request) throws RemoteException; 
+    
+    // Takes many serialized RPC messages in one call. Returns one reply for 
+    // each request, in the same order, each carrying its own status flag
+    public Message[] makeBatchRequest(Message[] requests) throws RemoteException;
 }
@@ -0,0 +1,81 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
+import java.rmi.server.UnicastRemoteObject;
+
+/*** Transport that carries TramServer calls between the client, the front end
+ *   and the replication managers, chosen at startup with -Dtram.transport.
+ *   RMI binds each server object in an RMI registry on its port. NIO listens
+ *   on the same port with an NioTramServer instead, and callers share one
+ *   pipelined connection to each server. Every process must use the same
+ *   transport. ***/
+public enum Transport {
+    RMI, NIO;
+
+    // Transport used by the process. Set with -Dtram.transport
+    public static final Transport SELECTED =
+            Transport.valueOf(System.getProperty("tram.transport", "RMI"));
+
+    /*** Returns the server object bound at the passed url and port on the
+     *   local host. Throws a RemoteException if the server can't be reached ***/
+    public TramServer connect(int port, String url) throws RemoteException, NotBoundException {
+        if (this == NIO) {
+            try {
+                return NioTramClient.connect(null, port);
+            } catch (IOException e) {
+                throw new ConnectException("Couldn't connect to port " + port, e);
+            }
+        }
+        Registry registry = LocateRegistry.getRegistry(null, port);
+        return (TramServer) registry.lookup(url);
+    }
+
+    /*** Makes the passed server object reachable at the passed url and port ***/
+    public void bind(TramServer server, int port, String url) throws RemoteException {
+        if (this == NIO) {
+            try {
+                new NioTramServer(server, port);
+            } catch (IOException e) {
+                throw new ExportException("Couldn't listen on port " + port, e);
+            }
+            return;
+        }
+        // Kill the registry if it was created by a previous terminated instance
+        try {
+            UnicastRemoteObject.unexportObject(LocateRegistry.getRegistry(port), true);
+            System.out.println("Existing registry object deleted");
+        }
+        catch (NoSuchObjectException e){
+            System.out.println("No existing registry object.");
+        }
+        TramServer stub = (TramServer) UnicastRemoteObject.exportObject(server, port);
+        Registry registry = LocateRegistry.createRegistry(port);
+        registry.rebind(url, stub);
+    }
+
+    // Returns where a server bound with the passed url and port can be reached
+    public String describe(int port, String url) {
+        return this == NIO ? "nio://localhost:" + port : url;
+    }
+
+    /*** Returns whether a server object returned by connect can still be
+     *   used, so that it doesn't need to be retrieved again. An RMI stub is
+     *   always retrieved again, which checks the registry is still there ***/
+    public static boolean isOpen(TramServer server) {
+        return server instanceof NioTramClient && ((NioTramClient) server).isConnected();
+    }
+
+    // Releases a server object that is no longer used, closing its connection
+    public static void release(TramServer server) {
+        if (server instanceof NioTramClient) {
+            ((NioTramClient) server).close();
+        }
+    }
+}
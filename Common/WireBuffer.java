@@ -0,0 +1,130 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/** Byte buffer with a read/write position, used by the Message class for the
+ *  binary message format. Signed values are written as zigzag varints so small
+ *  numbers take a single byte, while IDs are written as fixed 8-byte values */
+public class WireBuffer {
+    // Largest number of bytes a varint encoded long can take
+    public static final int MAX_VARINT_BYTES = 10;
+
+    private byte[] buffer; // Underlying storage
+    private int position = 0; // Next byte to read or write
+    private int limit; // End of the readable data
+
+    // Creates an empty buffer for writing, growing past the capacity as needed
+    public WireBuffer(int capacity) {
+        buffer = new byte[capacity];
+        limit = capacity;
+    }
+
+    // Wraps the first length bytes of the passed array for reading
+    public WireBuffer(byte[] data, int length) {
+        buffer = data;
+        limit = length;
+    }
+
+    // Empties the buffer so it can be reused for writing
+    public void clear() {
+        position = 0;
+        limit = buffer.length;
+    }
+
+    // Points the buffer at the first length bytes of the passed array so it 
+    // can be reused for reading
+    public void reset(byte[] data, int length) {
+        buffer = data;
+        position = 0;
+        limit = length;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    // Returns the underlying array. Only the bytes before position() are written
+    public byte[] array() {
+        return buffer;
+    }
+
+    // Returns a copy of the bytes written so far
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    // Returns the number of unread bytes
+    public int remaining() {
+        return limit - position;
+    }
+
+    /*** Writing ***/
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) value;
+    }
+
+    // Writes the value as 8 bytes, most significant first
+    public void writeFixedLong(long value) {
+        ensureCapacity(Long.BYTES);
+        for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    // Writes the value as a zigzag varint: 7 bits per byte, with the high bit
+    // set on every byte but the last
+    public void writeVarLong(long value) {
+        ensureCapacity(MAX_VARINT_BYTES);
+        long zigzag = (value << 1) ^ (value >> (Long.SIZE - 1));
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        buffer[position++] = (byte) zigzag;
+    }
+
+    /*** Reading. Each method throws an IOException if the data runs out ***/
+
+    public byte readByte() throws IOException {
+        checkRemaining(1);
+        return buffer[position++];
+    }
+
+    public long readFixedLong() throws IOException {
+        checkRemaining(Long.BYTES);
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << Byte.SIZE) | (buffer[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public long readVarLong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte next = readByte();
+            zigzag |= (long) (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    // Grows the buffer if fewer than the passed number of bytes are free
+    private void ensureCapacity(int bytes) {
+        if (position + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            limit = buffer.length;
+        }
+    }
+
+    private void checkRemaining(int bytes) throws IOException {
+        if (limit - position < bytes) {
+            throw new IOException("Unexpected end of message data.");
+        }
+    }
+}
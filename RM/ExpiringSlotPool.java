@@ -0,0 +1,163 @@
+package tramsimulate;
+
+/*** Fixed pool of slots for a table whose entries all expire the same time after
+ *** they are added. Each slot is claimed for a long key, and claimed slots are
+ *** kept in a list in the order they were added, so the oldest entry is always
+ *** the next to expire. When the pool is full, the oldest entry is evicted to
+ *** make room. The list is built from primitive arrays, so adding, removing and
+ *** expiring an entry each take constant time and allocate nothing.
+ ***
+ *** Callers keep their own per-slot data in arrays indexed by slot. Not
+ *** thread-safe: callers guard each pool with a lock ***/
+public class ExpiringSlotPool {
+    // Returned for keys that have no slot. Also marks the end of a list
+    public static final int NONE = LongIntHashMap.NOT_FOUND;
+
+    private static final int INITIAL_MAP_CAPACITY = 16;
+
+    private final long[] keys; // Key of each slot
+    private final long[] addedTimes; // Time each slot's entry was added
+    private final int[] older; // Previous slot in the list, or NONE
+    private final int[] newer; // Next slot in the list or free list, or NONE
+    private final LongIntHashMap slots; // (Key -> slot) mapping
+    private int oldest = NONE;
+    private int newest = NONE;
+    private int free = 0; // First unused slot
+    private long expired = 0;
+    private long evicted = 0;
+
+    // Creates a pool with the passed number of slots
+    public ExpiringSlotPool(int capacity) {
+        keys = new long[capacity];
+        addedTimes = new long[capacity];
+        older = new int[capacity];
+        newer = new int[capacity];
+        slots = new LongIntHashMap(INITIAL_MAP_CAPACITY);
+        for (int i = 0; i < capacity; i++) {
+            newer[i] = i + 1 < capacity ? i + 1 : NONE;
+        }
+    }
+
+    // Returns the slot of a key, or NONE if it has no slot
+    public int find(long key) {
+        return slots.get(key);
+    }
+
+    /*** Claims a slot for a key added at the passed time and returns it. A key
+     *** that already has a slot keeps it and is moved to the newest end. If
+     *** every slot is claimed, the oldest entry is evicted for the new one ***/
+    public int add(long key, long now) {
+        int slot = slots.get(key);
+        if (slot != NONE) {
+            unlink(slot);
+        }
+        else {
+            if (free == NONE) {
+                evicted++;
+                release(oldest);
+            }
+            slot = free;
+            free = newer[slot];
+            keys[slot] = key;
+            slots.put(key, slot);
+        }
+
+        addedTimes[slot] = now;
+        older[slot] = newest;
+        newer[slot] = NONE;
+        if (newest != NONE) {
+            newer[newest] = slot;
+        } else {
+            oldest = slot;
+        }
+        newest = slot;
+        return slot;
+    }
+
+    // Frees the slot of a key, returning the boolean value of whether it had one
+    public boolean remove(long key) {
+        int slot = slots.get(key);
+        if (slot == NONE) {
+            return false;
+        }
+        release(slot);
+        return true;
+    }
+
+    // Frees the slot of every entry that has outlived the time-to-live,
+    // stopping at the first that has not
+    public void expire(long now, long ttl) {
+        while (oldest != NONE && now - addedTimes[oldest] >= ttl) {
+            expired++;
+            release(oldest);
+        }
+    }
+
+    // Frees every slot, keeping the expiry and eviction counts
+    public void clear() {
+        slots.clear();
+        oldest = NONE;
+        newest = NONE;
+        free = 0;
+        for (int i = 0; i < keys.length; i++) {
+            newer[i] = i + 1 < keys.length ? i + 1 : NONE;
+        }
+    }
+
+    /*** Iteration from the oldest entry to the newest, for copying the pool out ***/
+
+    // Returns the slot of the oldest entry, or NONE if the pool is empty
+    public int oldestSlot() {
+        return oldest;
+    }
+
+    // Returns the slot added after the passed one, or NONE if it is the newest
+    public int newerSlot(int slot) {
+        return newer[slot];
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public long addedTime(int slot) {
+        return addedTimes[slot];
+    }
+
+    // Number of claimed slots
+    public int size() {
+        return slots.size();
+    }
+
+    // Number of entries expired since the pool was created
+    public long expiredCount() {
+        return expired;
+    }
+
+    // Number of entries evicted because the pool was full
+    public long evictedCount() {
+        return evicted;
+    }
+
+    // Removes the entry in a slot and returns the slot to the free list
+    private void release(int slot) {
+        slots.remove(keys[slot]);
+        unlink(slot);
+        newer[slot] = free;
+        free = slot;
+    }
+
+    // Takes a slot out of the list, joining its neighbours
+    private void unlink(int slot) {
+        if (older[slot] != NONE) {
+            newer[older[slot]] = newer[slot];
+        } else {
+            oldest = newer[slot];
+        }
+        if (newer[slot] != NONE) {
+            older[newer[slot]] = older[slot];
+        } else {
+            newest = older[slot];
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package tramsimulate;
+
+/*** Secondary index of the tram registry: the trams at each position of each
+ *** route, with the way each is heading, so that the trams on a route or at
+ *** or approaching a stop are found by reading only the buckets that hold
+ *** them. A query therefore takes time in proportion to the trams it returns
+ *** and those at the stops either side, rather than to the size of the fleet.
+ ***
+ *** The index is split the same way as the registry: each registry segment
+ *** has a bucket for every route position, a LongIntHashMap from tram ID to
+ *** heading, guarded by the segment's lock. The registry moves a tram between
+ *** buckets while it holds that lock to set the tram's location, so the
+ *** index takes no lock of its own, and is updated along with every location
+ *** set, whether by a request, log replay, a snapshot or state transfer. A
+ *** query reads the buckets of one segment at a time, and sees each as it
+ *** was when read.
+ ***
+ *** The registry keeps only locations, so a tram's heading is inferred from
+ *** its last move: the way it went along the route, or toward the other end
+ *** once it reaches either end. A tram first seen mid-route is taken to be
+ *** heading forward until it next moves ***/
+public class FleetIndex {
+    public static final int FORWARD = 0;
+    public static final int BACKWARD = 1;
+    private static final int ANY_HEADING = -1; // Selects every tram of a bucket
+    private static final int BUCKET_CAPACITY = 8; // Initial slots per bucket
+
+    // Bits of a page cursor holding the slot, then the segment, below the
+    // index in the bucket list. The cursor fits in 48 bits, leaving the rest
+    // to the front end
+    private static final int SLOT_BITS = 25;
+    private static final int SEGMENT_SHIFT = SLOT_BITS;
+    private static final int LIST_SHIFT = SLOT_BITS + TramRegistry.SEGMENT_BITS;
+    private static final int LIST_BITS = 48 - LIST_SHIFT;
+
+    private final int[] routeLengths; // Number of stops on each route
+    private final int[] firstBucket; // Bucket of the first stop of each route
+    private final int[] bucketLocations; // Location of the trams in each bucket
+    private final Object[] segmentLocks; // Lock guarding each segment's buckets
+    // (Tram ID -> heading) by segment, then route position
+    private final LongIntHashMap[][] buckets;
+
+    // Creates an empty index of routes with the passed numbers of stops,
+    // split into segments guarded by the passed locks
+    FleetIndex(int[] routeLengths, Object[] segmentLocks) {
+        this.routeLengths = routeLengths.clone();
+        this.segmentLocks = segmentLocks;
+        firstBucket = new int[routeLengths.length];
+        int count = 0;
+        for (int i = 0; i < routeLengths.length; i++) {
+            firstBucket[i] = count;
+            count += routeLengths[i];
+        }
+        bucketLocations = new int[count];
+        for (int i = 0; i < routeLengths.length; i++) {
+            for (int position = 0; position < routeLengths[i]; position++) {
+                bucketLocations[bucket(i, position)] = TramRegistry.location(i, position);
+            }
+        }
+        buckets = new LongIntHashMap[segmentLocks.length][count];
+        for (LongIntHashMap[] segment : buckets) {
+            for (int bucket = 0; bucket < count; bucket++) {
+                segment[bucket] = new LongIntHashMap(BUCKET_CAPACITY);
+            }
+        }
+    }
+
+    // Returns the bucket of the trams at a route position
+    private int bucket(int routeIndex, int position) {
+        return firstBucket[routeIndex] + position;
+    }
+
+    /*** Updates, called by the registry with the tram's segment locked, so
+     *** the moves of each tram are made in the order they happen ***/
+
+    // Moves a tram from its previous location to its new one. Either may be
+    // NOT_FOUND, for a tram being added or removed. A tram that stays put
+    // keeps its heading
+    void move(int segment, long tramID, int previous, int location) {
+        if (previous == location) {
+            return;
+        }
+        if (previous != TramRegistry.NOT_FOUND) {
+            buckets[segment][bucket(TramRegistry.routeIndex(previous),
+                    TramRegistry.position(previous))].remove(tramID);
+        }
+        if (location != TramRegistry.NOT_FOUND) {
+            buckets[segment][bucket(TramRegistry.routeIndex(location),
+                    TramRegistry.position(location))].put(tramID, heading(previous, location));
+        }
+    }
+
+    // Removes every tram of a segment
+    void clear(int segment) {
+        for (LongIntHashMap trams : buckets[segment]) {
+            trams.clear();
+        }
+    }
+
+    // Infers the heading of a tram from the move it just made
+    private int heading(int previous, int location) {
+        int routeIndex = TramRegistry.routeIndex(location);
+        int position = TramRegistry.position(location);
+        int last = routeLengths[routeIndex] - 1;
+        if (position == last && last > 0) {
+            return BACKWARD;
+        }
+        if (position == 0) {
+            return FORWARD;
+        }
+        if (previous != TramRegistry.NOT_FOUND
+                && TramRegistry.routeIndex(previous) == routeIndex
+                && TramRegistry.position(previous) > position) {
+            return BACKWARD;
+        }
+        return FORWARD;
+    }
+
+    /*** Queries ***/
+
+    // Returns the buckets of every tram on a route, each taken whatever its
+    // heading. See page
+    public long[] routeBuckets(int routeIndex) {
+        long[] result = new long[routeLengths[routeIndex]];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = select(bucket(routeIndex, i), ANY_HEADING);
+        }
+        return result;
+    }
+
+    // Returns the buckets of the trams at a route position, and those either
+    // side taking only the trams heading to it
+    public long[] stopBuckets(int routeIndex, int position) {
+        int last = routeLengths[routeIndex] - 1;
+        int count = 1 + (position > 0 ? 1 : 0) + (position < last ? 1 : 0);
+        long[] result = new long[count];
+        int i = 0;
+        if (position > 0) {
+            result[i++] = select(bucket(routeIndex, position - 1), FORWARD);
+        }
+        result[i++] = select(bucket(routeIndex, position), ANY_HEADING);
+        if (position < last) {
+            result[i++] = select(bucket(routeIndex, position + 1), BACKWARD);
+        }
+        return result;
+    }
+
+    // Packs a bucket and the heading of the trams to take from it
+    private static long select(int bucket, int heading) {
+        return (long) bucket << 32 | heading & 0xffffffffL;
+    }
+
+    // Reads up to max trams from a list of buckets, as made by routeBuckets
+    // and stopBuckets, starting at a cursor from an earlier page or 0 for
+    // the first. The cursor packs the index in the list of the bucket to
+    // read next, the segment and the slot within it. Trams in a bucket that
+    // changes between pages may be missed or returned twice
+    public Page page(long[] bucketList, long cursor, int max) {
+        Page page = new Page(max);
+        int listIndex = (int) (cursor >>> LIST_SHIFT);
+        int segment = (int) (cursor >>> SEGMENT_SHIFT) & (segmentLocks.length - 1);
+        int slot = (int) cursor & ((1 << SLOT_BITS) - 1);
+        if (cursor >>> LIST_SHIFT + LIST_BITS != 0 || listIndex > bucketList.length) {
+            return page;
+        }
+        for (; listIndex < bucketList.length; listIndex++, segment = 0) {
+            int bucket = (int) (bucketList[listIndex] >>> 32);
+            int heading = (int) bucketList[listIndex];
+            for (; segment < buckets.length; segment++, slot = 0) {
+                synchronized (segmentLocks[segment]) {
+                    LongIntHashMap trams = buckets[segment][bucket];
+                    for (; slot < trams.capacity(); slot++) {
+                        int tramHeading = trams.valueAt(slot);
+                        if (tramHeading == LongIntHashMap.NOT_FOUND ||
+                                heading != ANY_HEADING && tramHeading != heading) {
+                            continue;
+                        }
+                        if (page.size == max) {
+                            page.nextCursor = (long) listIndex << LIST_SHIFT
+                                    | (long) segment << SEGMENT_SHIFT | slot;
+                            return page;
+                        }
+                        page.tramIDs[page.size] = trams.keyAt(slot);
+                        page.locations[page.size++] = bucketLocations[bucket];
+                    }
+                }
+            }
+        }
+        return page;
+    }
+
+    /*** One page of query results ***/
+    public static final class Page {
+        public final long[] tramIDs;
+        public final int[] locations; // Registry location of each tram
+        public int size = 0;
+        public long nextCursor = 0; // Cursor of the next page, 0 after the last
+
+        Page(int max) {
+            tramIDs = new long[max];
+            locations = new int[max];
+        }
+    }
+}
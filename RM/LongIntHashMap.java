@@ -0,0 +1,161 @@
+package tramsimulate;
+
+import java.util.Arrays;
+
+/*** Map from long keys to non-negative int values, stored in a pair of parallel
+ *** arrays using open addressing with linear probing. Nothing is allocated per
+ *** entry and no key is boxed. The table shrinks again as keys are removed,
+ *** so iterating it takes time in proportion to the keys it holds. Not
+ *** thread-safe: callers guard it with a lock ***/
+public class LongIntHashMap {
+    // Returned for keys that are not in the map. Also marks empty slots
+    public static final int NOT_FOUND = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size = 0;
+    private final int minCapacity; // Capacity the table never shrinks below
+
+    // Creates an empty map. The capacity must be a power of two
+    public LongIntHashMap(int capacity) {
+        keys = new long[capacity];
+        values = newValues(capacity);
+        minCapacity = capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Returns the value of a key, or NOT_FOUND if the key is not stored
+    public int get(long key) {
+        int slot = find(key);
+        return slot < 0 ? NOT_FOUND : values[slot];
+    }
+
+    // Sets the value of a key, returning its previous value or NOT_FOUND
+    public int put(long key, int value) {
+        int slot = find(key);
+        if (slot >= 0) {
+            int previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        // Grow the table once it is three quarters full
+        if ((size + 1) * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+        insert(key, value);
+        size++;
+        return NOT_FOUND;
+    }
+
+    // Removes a key, returning its value or NOT_FOUND if it was not stored
+    public int remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return NOT_FOUND;
+        }
+        int previous = values[slot];
+        size--;
+
+        // Shift back any later entries of the probe run that could no longer
+        // be reached past the emptied slot
+        int mask = keys.length - 1;
+        int empty = slot;
+        for (int next = (slot + 1) & mask; values[next] != NOT_FOUND;
+                next = (next + 1) & mask) {
+            int home = (int) hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - empty) & mask)) {
+                keys[empty] = keys[next];
+                values[empty] = values[next];
+                empty = next;
+            }
+        }
+        values[empty] = NOT_FOUND;
+
+        // Halve the table once it is an eighth full, well below the point
+        // it grows again
+        if (size * 8 < keys.length && keys.length > minCapacity) {
+            resize(keys.length / 2);
+        }
+        return previous;
+    }
+
+    // Removes every key, shrinking the table back to its starting size
+    public void clear() {
+        if (keys.length > minCapacity) {
+            keys = new long[minCapacity];
+            values = newValues(minCapacity);
+        } else {
+            Arrays.fill(values, NOT_FOUND);
+        }
+        size = 0;
+    }
+
+    /*** Iteration by slot, for copying the map out. A slot with no entry
+     *** has the value NOT_FOUND ***/
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    // Spreads the bits of a key so that sequential keys don't cluster
+    public static long hash(long key) {
+        long hash = key;
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    // Returns the slot holding the key, or -1 if it is not stored
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = (int) hash(key) & mask; values[slot] != NOT_FOUND;
+                slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Places an entry in the first empty slot of its probe run
+    private void insert(long key, int value) {
+        int mask = keys.length - 1;
+        int slot = (int) hash(key) & mask;
+        while (values[slot] != NOT_FOUND) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    // Replaces the table with one of the passed capacity, placing every entry again
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = newValues(keys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != NOT_FOUND) {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int[] newValues(int capacity) {
+        int[] values = new int[capacity];
+        Arrays.fill(values, NOT_FOUND);
+        return values;
+    }
+}
@@ -0,0 +1,402 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*** Primary-backup replication of a replication manager's state. The primary
+ *   applies each client request locally and appends it to an ordered update
+ *   log, applying and appending under one lock so the log holds the requests
+ *   in the order they changed the state. A shipper thread for each backup
+ *   sends it the entries it hasn't applied yet, as many as have built up
+ *   since its last call, and the backup applies them in the same order.
+ *
+ *   The primary acknowledges a request once it is applied locally, or once
+ *   at least one backup has also applied it (-Dtram.ackPolicy=ONE_BACKUP),
+ *   so that no acknowledged update is lost when the front end promotes the
+ *   backup that has applied the most. A backup keeps the log of what it
+ *   applies too, so it can ship from it once promoted. A backup the log
+ *   can't bring up to date, because it has fallen behind the entries kept,
+ *   holds entries the primary doesn't or has never been synced, is synced
+ *   from a snapshot of the primary's state and then shipped the entries
+ *   from where it was taken. ***/
+public class PrimaryBackup {
+    /*** When the primary replies to a request. LOCAL replies as soon as the
+     *   request is applied. ONE_BACKUP waits for the first backup to apply it,
+     *   up to the ack timeout, and replies straight away while no backup is
+     *   reachable. ***/
+    public enum AckPolicy {LOCAL, ONE_BACKUP};
+    // Set with -Dtram.ackPolicy
+    public static final AckPolicy ACK_POLICY =
+            AckPolicy.valueOf(System.getProperty("tram.ackPolicy", "LOCAL"));
+    // Most log entries shipped in one call. Set with -Dtram.pb.shipBatch
+    public static final int SHIP_BATCH = Integer.getInteger("tram.pb.shipBatch", 512);
+    // Log entries kept for backups to catch up from. Set with -Dtram.pb.logEntries
+    public static final int LOG_ENTRIES = Integer.getInteger("tram.pb.logEntries", 100000);
+    // Milliseconds to wait for a backup under ONE_BACKUP. Set with -Dtram.pb.ackTimeoutMillis
+    public static final long ACK_TIMEOUT_MILLIS = Long.getLong("tram.pb.ackTimeoutMillis", 1000);
+    // Milliseconds between attempts to reach a backup. Set with -Dtram.pb.retryMillis
+    public static final long RETRY_MILLIS = Long.getLong("tram.pb.retryMillis", 500);
+
+    private static final Message[] NO_ENTRIES = new Message[0];
+
+    private final ServerCommsStub handler;
+    private final String url; // Url the backups are bound to
+    private final StateTransfer transfer;
+    private volatile int localPort; // Port backups sync from
+
+    // Guarded by this
+    private final UpdateLog log = new UpdateLog(LOG_ENTRIES);
+    private final Message applyReply = new Message(); // Discarded reply of an entry applied as backup
+    private long epoch = 0; // Highest epoch seen
+    private boolean primary = false;
+    private Shipper[] shippers = new Shipper[0];
+    private int idleShippers = 0; // Shippers waiting for new entries
+
+    // Highest sequence number applied by any backup of the current primary
+    private volatile long backupSequence = 0;
+    private final Object ackSignal = new Object();
+    private final AtomicInteger reachableBackups = new AtomicInteger();
+    private final LongAdder ackTimeouts = new LongAdder();
+
+    public PrimaryBackup(ServerCommsStub handler, String url) {
+        this.handler = handler;
+        this.url = url;
+        transfer = new StateTransfer(handler, url, this::appliedSequence, this::resetLog);
+    }
+
+    // Returns the state transfer, which copies the state of a peer into this RM
+    public StateTransfer transfer() {
+        return transfer;
+    }
+
+    // Sets the port this replication manager is reachable on, which backups
+    // are told to sync from
+    public void setLocalPort(int port) {
+        localPort = port;
+    }
+
+    /*** Client requests, accepted only by the primary ***/
+
+    // Applies a client request and logs it, then waits as the ack policy says.
+    // A fleet query changes nothing, so it is answered outside the lock and
+    // neither logged nor waited on
+    public void processRequest(Message request, Message reply) throws IOException {
+        if (handler.isQuery(request)) {
+            synchronized (this) {
+                checkPrimary();
+            }
+            handler.processMessage(request, reply);
+            return;
+        }
+        long sequence;
+        synchronized (this) {
+            checkPrimary();
+            handler.processMessage(request, reply);
+            sequence = appendShipped(request);
+        }
+        awaitBackup(sequence);
+    }
+
+    public Message[] processBatch(Message[] requests) throws IOException {
+        Message[] replies;
+        long sequence = 0;
+        synchronized (this) {
+            checkPrimary();
+            replies = handler.processBatch(requests);
+            for (Message request : requests) {
+                if (request != null && !handler.isQuery(request)) {
+                    sequence = appendShipped(request);
+                }
+            }
+        }
+        awaitBackup(sequence);
+        return replies;
+    }
+
+    private void checkPrimary() throws RemoteException {
+        if (!primary) {
+            throw new RemoteException("Not the primary");
+        }
+    }
+
+    // Appends a request to the log and wakes the shippers waiting for it
+    private long appendShipped(Message request) {
+        long sequence = log.append(request);
+        if (idleShippers > 0) {
+            notifyAll();
+        }
+        return sequence;
+    }
+
+    // Waits under ONE_BACKUP until a backup has applied the passed entry
+    private void awaitBackup(long sequence) {
+        if (ACK_POLICY == AckPolicy.LOCAL || backupSequence >= sequence) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACK_TIMEOUT_MILLIS);
+        synchronized (ackSignal) {
+            while (backupSequence < sequence && reachableBackups.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    ackTimeouts.increment();
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(ackSignal, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /*** Replica control ***/
+
+    // Applies entries shipped by the primary, skipping those already applied
+    public synchronized long applyLog(long epoch, long firstSequence, Message[] entries) {
+        if (epoch < this.epoch) {
+            return ReplicaControl.STALE_EPOCH;
+        }
+        if (epoch > this.epoch) {
+            this.epoch = epoch;
+            if (primary) {
+                stepDown("a primary of epoch " + epoch + " is shipping to it");
+            }
+        }
+        long applied = log.lastSequence();
+        // Nothing is applied while a snapshot is copied in, and a gap is sent
+        // again from the last entry applied
+        if (transfer.getState() == ReplicaControl.STATE_SYNCING || firstSequence > applied + 1) {
+            return applied;
+        }
+        for (long i = applied + 1 - firstSequence; i < entries.length; i++) {
+            Message entry = entries[(int) i];
+            try {
+                handler.processMessage(entry, applyReply);
+            } catch (IOException e) {
+                // Failed the same way on the primary, without changing its state
+            }
+            log.append(entry);
+        }
+        handler.commitUpdates();
+        return log.lastSequence();
+    }
+
+    public synchronized long appliedSequence() {
+        return log.lastSequence();
+    }
+
+    // Becomes the primary of the epoch, shipping to the passed backups
+    public synchronized void promote(long epoch, int[] backupPorts) throws RemoteException {
+        if (epoch < this.epoch) {
+            throw new RemoteException("Epoch " + epoch + " is older than " + this.epoch);
+        }
+        this.epoch = epoch;
+        stopShippers();
+        primary = true;
+        transfer.markSynced();
+        backupSequence = 0;
+        shippers = new Shipper[backupPorts.length];
+        for (int i = 0; i < backupPorts.length; i++) {
+            shippers[i] = new Shipper(backupPorts[i], epoch);
+            shippers[i].start();
+        }
+        EventLog.text(EventLog.Level.INFO, "Promoted to primary in epoch " + epoch
+                + " at log entry " + log.lastSequence());
+    }
+
+    // Continues the log after a snapshot copied at the passed sequence number
+    private synchronized void resetLog(long sequence) {
+        log.reset(sequence);
+    }
+
+    // Returns whether a backup that has applied up to the passed entry, in
+    // the passed sync state, can only be brought up to date by a snapshot.
+    // A backup that was never synced may hold state rebuilt from its own
+    // write-ahead log rather than the primary's, so it is always synced
+    private synchronized boolean needsSync(long state, long applied) {
+        return applied > log.lastSequence() || applied + 1 < log.firstSequence()
+                || state == ReplicaControl.STATE_EMPTY;
+    }
+
+    // Stops acting as primary, called with this locked
+    private void stepDown(String reason) {
+        primary = false;
+        stopShippers();
+        EventLog.text(EventLog.Level.WARN, "No longer the primary: " + reason);
+    }
+
+    private void stopShippers() {
+        for (Shipper shipper : shippers) {
+            shipper.running = false;
+            shipper.interrupt();
+        }
+        shippers = new Shipper[0];
+        notifyAll();
+    }
+
+    /*** Gauges ***/
+
+    public synchronized boolean isPrimary() {
+        return primary;
+    }
+
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    // Entries applied locally that no backup has applied yet, 0 on a backup
+    public synchronized long backupLag() {
+        return primary ? Math.max(0, log.lastSequence() - backupSequence) : 0;
+    }
+
+    // Requests acknowledged under ONE_BACKUP after the ack timeout ran out
+    public long ackTimeoutCount() {
+        return ackTimeouts.sum();
+    }
+
+    /*** Ships the log to one backup, starting from the last entry it reports
+     *   having applied, or syncs it from this primary if the log can't bring
+     *   it up to date. Stops when the primary steps down or is promoted
+     *   again. ***/
+    private class Shipper extends Thread {
+        private final int port;
+        private final long shipEpoch;
+        private volatile boolean running = true;
+        private boolean reachable = false;
+
+        Shipper(int port, long shipEpoch) {
+            super("log-shipper-" + port);
+            setDaemon(true);
+            this.port = port;
+            this.shipEpoch = shipEpoch;
+        }
+
+        public void run() {
+            ReplicaControl backup = null;
+            long next = -1; // Next entry to ship, unknown until the backup is asked
+            while (running) {
+                try {
+                    if (backup == null) {
+                        backup = (ReplicaControl) Transport.SELECTED.connect(port, url);
+                    }
+                    long first = 0;
+                    Message[] entries = NO_ENTRIES;
+                    if (next >= 0) {
+                        synchronized (PrimaryBackup.this) {
+                            if (!waitForEntries(next)) {
+                                break;
+                            }
+                            first = next;
+                            // Entries dropped from the log: ask again, which syncs the backup
+                            if (next >= log.firstSequence()) {
+                                entries = log.read(next, SHIP_BATCH);
+                            }
+                        }
+                        if (entries.length == 0) {
+                            next = -1;
+                            continue;
+                        }
+                    }
+                    long applied = backup.applyLog(shipEpoch, first, entries);
+                    if (!running) {
+                        break;
+                    }
+                    if (applied == ReplicaControl.STALE_EPOCH) {
+                        synchronized (PrimaryBackup.this) {
+                            if (primary && epoch == shipEpoch) {
+                                stepDown("backup on port " + port + " has a newer epoch");
+                            }
+                        }
+                        break;
+                    }
+                    if (next < 0) {
+                        long state = backup.syncState();
+                        if (state == ReplicaControl.STATE_SYNCING) {
+                            pause();
+                            continue;
+                        }
+                        if (needsSync(state, applied)) {
+                            if (localPort == 0) {
+                                EventLog.text(EventLog.Level.WARN, "Backup on port " + port
+                                        + " needs a snapshot, but the primary's port is unknown");
+                                break;
+                            }
+                            EventLog.text(EventLog.Level.INFO, "Syncing backup on port " + port
+                                    + " from a snapshot, as it has applied up to entry " + applied);
+                            setReachable(false);
+                            backup.syncFrom(localPort);
+                            pause();
+                            continue;
+                        }
+                    }
+                    setReachable(true);
+                    acknowledge(applied);
+                    next = applied + 1;
+                } catch (RemoteException | NotBoundException | ClassCastException e) {
+                    // Unreachable, or not a replication manager: try again later,
+                    // asking where it got up to once it is back
+                    setReachable(false);
+                    Transport.release((TramServer) backup);
+                    backup = null;
+                    next = -1;
+                    pause();
+                }
+            }
+            setReachable(false);
+            Transport.release((TramServer) backup);
+        }
+
+        private void pause() {
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }
+
+        // Waits with the log locked until it has the passed entry. Returns
+        // false if the shipper is stopped first
+        private boolean waitForEntries(long next) {
+            idleShippers++;
+            try {
+                while (running && log.lastSequence() < next) {
+                    PrimaryBackup.this.wait();
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            } finally {
+                idleShippers--;
+            }
+            return running;
+        }
+
+        private void setReachable(boolean now) {
+            if (reachable != now) {
+                reachable = now;
+                reachableBackups.addAndGet(now ? 1 : -1);
+                EventLog.text(now ? EventLog.Level.INFO : EventLog.Level.WARN, "Backup on port "
+                        + port + (now ? " reachable" : " unreachable") + " for log shipping");
+                synchronized (ackSignal) {
+                    ackSignal.notifyAll();
+                }
+            }
+        }
+
+        private void acknowledge(long applied) {
+            if (applied > backupSequence) {
+                synchronized (ackSignal) {
+                    if (applied > backupSequence) {
+                        backupSequence = applied;
+                    }
+                    ackSignal.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package tramsimulate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*** Bounded cache of the successful replies the RM has sent, keyed by the
+ *** (transaction ID, RPC ID, request ID) of the request they answered. When the
+ *** front end retries a request that the RM already processed, the stored reply
+ *** is sent again instead of running the procedure a second time, so a retried
+ *** update can't move a tram twice.
+ ***
+ *** Replies are copied into fixed-size slots of a preallocated array, so caching
+ *** a reply allocates nothing. Entries expire after the time-to-live and the
+ *** oldest entry is evicted when the cache is full. Replies longer than a slot
+ *** are not cached ***/
+public class ReplyCache {
+    // Time a reply is kept for retries. Set with -Dtram.replyCacheTtlMillis
+    public static final long DEFAULT_TTL_MILLIS = Long.getLong("tram.replyCacheTtlMillis", 30000);
+    // Largest number of cached replies, or 0 to disable. Set with -Dtram.replyCacheSize
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("tram.replyCacheSize", 50000);
+    // Longest reply that is cached. Covers replies of every procedure in both formats
+    public static final int MAX_REPLY_BYTES = 96;
+
+    private static final int STRIPE_BITS = 4;
+    // Independently locked parts of the cache, each copied as one part of a state snapshot
+    public static final int STRIPES = 1 << STRIPE_BITS;
+
+    private final Stripe[] stripes;
+    private final long ttlNanos;
+    private final boolean enabled;
+
+    // Creates a cache using the configured time-to-live and capacity
+    public ReplyCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_CAPACITY);
+    }
+
+    // Creates a cache with the passed time-to-live and capacity
+    public ReplyCache(long ttlMillis, int capacity) {
+        ttlNanos = ttlMillis * 1000000L;
+        enabled = capacity > 0;
+        stripes = new Stripe[STRIPES];
+        int stripeCapacity = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(enabled ? stripeCapacity : 1);
+        }
+    }
+
+    /*** Copies the cached reply to the passed request into the passed message.
+     *** Returns the boolean value of whether a reply was cached ***/
+    public boolean get(RPCMessage request, Message reply) {
+        if (!enabled) {
+            return false;
+        }
+        long key = keyOf(request);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.pool.expire(System.nanoTime(), ttlNanos);
+            int slot = stripe.pool.find(key);
+            if (slot == ExpiringSlotPool.NONE || !stripe.matches(slot, request)) {
+                stripe.misses++;
+                return false;
+            }
+            stripe.hits++;
+            reply.setData(stripe.replies, slot * MAX_REPLY_BYTES, stripe.replyLengths[slot],
+                    stripe.versions[slot]);
+            return true;
+        }
+    }
+
+    // Stores a copy of the reply to the passed request, replacing any reply
+    // already cached for the same IDs
+    public void put(RPCMessage request, Message reply) {
+        int length = reply.getLength();
+        if (!enabled || length == 0 || length > MAX_REPLY_BYTES) {
+            return;
+        }
+        long key = keyOf(request);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            long now = System.nanoTime();
+            stripe.pool.expire(now, ttlNanos);
+            int slot = stripe.pool.add(key, now);
+            stripe.transactionIDs[slot] = request.getTransactionID();
+            stripe.RPCIDs[slot] = request.getRPCID();
+            stripe.requestIDs[slot] = request.getRequestID();
+            stripe.replyLengths[slot] = length;
+            stripe.versions[slot] = reply.getVersion();
+            reply.copyData(stripe.replies, slot * MAX_REPLY_BYTES);
+        }
+    }
+
+    /*** State transfer ***/
+
+    // Writes the cached replies of one stripe, oldest first, as a count
+    // followed by the IDs, age in nanoseconds, version and data of each
+    public void writeStripe(int index, DataOutput out) throws IOException {
+        Stripe stripe = stripes[index];
+        synchronized (stripe) {
+            long now = System.nanoTime();
+            stripe.pool.expire(now, ttlNanos);
+            out.writeInt(stripe.pool.size());
+            for (int slot = stripe.pool.oldestSlot(); slot != ExpiringSlotPool.NONE;
+                    slot = stripe.pool.newerSlot(slot)) {
+                out.writeLong(stripe.transactionIDs[slot]);
+                out.writeLong(stripe.RPCIDs[slot]);
+                out.writeLong(stripe.requestIDs[slot]);
+                out.writeLong(now - stripe.pool.addedTime(slot));
+                out.writeByte(stripe.versions[slot]);
+                out.writeByte(stripe.replyLengths[slot]);
+                out.write(stripe.replies, slot * MAX_REPLY_BYTES, stripe.replyLengths[slot]);
+            }
+        }
+    }
+
+    // Caches the replies written by writeStripe, keeping their ages
+    public void readStripe(DataInput in) throws IOException {
+        int count = in.readInt();
+        long now = System.nanoTime();
+        byte[] reply = new byte[MAX_REPLY_BYTES];
+        for (int i = 0; i < count; i++) {
+            long transactionID = in.readLong();
+            long RPCID = in.readLong();
+            long requestID = in.readLong();
+            long addedTime = now - in.readLong();
+            byte version = in.readByte();
+            int length = in.readUnsignedByte();
+            if (length > MAX_REPLY_BYTES) {
+                throw new IOException("Cached reply of " + length + " bytes");
+            }
+            in.readFully(reply, 0, length);
+            if (!enabled) {
+                continue;
+            }
+            long key = keyOf(transactionID, RPCID, requestID);
+            Stripe stripe = stripeFor(key);
+            synchronized (stripe) {
+                int slot = stripe.pool.add(key, addedTime);
+                stripe.transactionIDs[slot] = transactionID;
+                stripe.RPCIDs[slot] = RPCID;
+                stripe.requestIDs[slot] = requestID;
+                stripe.replyLengths[slot] = length;
+                stripe.versions[slot] = version;
+                System.arraycopy(reply, 0, stripe.replies, slot * MAX_REPLY_BYTES, length);
+            }
+        }
+    }
+
+    // Drops every cached reply
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.pool.clear();
+            }
+        }
+    }
+
+    /*** Gauges ***/
+
+    // Number of requests answered from the cache
+    public long hitCount() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    // Number of requests that had no cached reply
+    public long missCount() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    // Number of cached replies, after expiring any that are too old
+    public int size() {
+        long now = System.nanoTime();
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.pool.expire(now, ttlNanos);
+                size += stripe.pool.size();
+            }
+        }
+        return size;
+    }
+
+    // Folds the three IDs into one key. The RPC ID is random per request, so
+    // distinct requests rarely share a key, and a hit is confirmed against all
+    // three IDs
+    private static long keyOf(RPCMessage request) {
+        return keyOf(request.getTransactionID(), request.getRPCID(), request.getRequestID());
+    }
+
+    private static long keyOf(long transactionID, long RPCID, long requestID) {
+        return RPCID ^ LongIntHashMap.hash(transactionID * 31 + requestID);
+    }
+
+    private Stripe stripeFor(long key) {
+        return stripes[(int) (LongIntHashMap.hash(key) >>> (Long.SIZE - STRIPE_BITS))];
+    }
+
+    /*** One lock-guarded part of the cache. The pool orders the entries, and
+     *** the arrays hold the IDs and reply of each slot ***/
+    private static final class Stripe {
+        final ExpiringSlotPool pool;
+        final long[] transactionIDs;
+        final long[] RPCIDs;
+        final long[] requestIDs;
+        final int[] replyLengths;
+        final byte[] versions;
+        final byte[] replies; // MAX_REPLY_BYTES per slot
+        long hits = 0;
+        long misses = 0;
+
+        Stripe(int capacity) {
+            pool = new ExpiringSlotPool(capacity);
+            transactionIDs = new long[capacity];
+            RPCIDs = new long[capacity];
+            requestIDs = new long[capacity];
+            replyLengths = new int[capacity];
+            versions = new byte[capacity];
+            replies = new byte[capacity * MAX_REPLY_BYTES];
+        }
+
+        boolean matches(int slot, RPCMessage request) {
+            return transactionIDs[slot] == request.getTransactionID()
+                    && RPCIDs[slot] == request.getRPCID()
+                    && requestIDs[slot] == request.getRequestID();
+        }
+    }
+}
@@ -1,11 +1,11 @@
 package tramsimulate;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.Map;
+
+import java.util.Arrays;
 
 /** Driver class for the server-side tram location system. Used by the 
- *  server communications stub to update and retrieve the locations of client trams ***/
+ *  server communications stub to update and retrieve the locations of client trams.
+ *  Safe for use by concurrent request threads. The set of routes never changes,
+ *  and each route guards its own tram locations ***/
 public class RouteManager {
     // The maximum number of trams that are allowed on each single route
     public static final int MAX_ROUTE_TRAMS = 5;
@@ -18,30 +18,88 @@ public class RouteManager {
             {88, 87, 85, 80, 9, 7, 2, 1},
             {110, 123, 11, 22, 34, 33, 29, 4}};
     
-    // (Route ID -> Route) mapping
-    private Map<Integer, TramRoute> routes;
+    // Every route, in the order of the hard-coded values. Read-only once constructed
+    private final TramRoute[] routes;
+    // Location of every tram, indexed by the route order above
+    private final TramRegistry trams;
+    // (Route ID -> Route) table, null for route IDs that do not exist
+    private final TramRoute[] routesByID;
+    // (Route ID -> fleet index buckets of its trams) table
+    private final long[][] routeBucketsByID;
+    // (Stop ID -> fleet index buckets of the trams at or heading to it) table,
+    // null for stops on no route
+    private final long[][] stopBucketsByID;
     
     // Constructs the initial tram route system based on the hard-coded values
     public RouteManager() {
-        routes = new HashMap<Integer, TramRoute>();
+        routes = new TramRoute[routeNums.length];
+        int[] routeLengths = new int[routeNums.length];
+        for (int i = 0; i < routeNums.length; i++) {
+            routeLengths[i] = stops[i].length;
+        }
+        trams = new TramRegistry(routeLengths);
+        FleetIndex index = trams.getIndex();
+        
+        // Size the route and stop tables to fit the largest IDs
+        int maxRouteID = 0;
+        int maxStopID = 0;
+        for (int i = 0; i < routeNums.length; i++) {
+            maxRouteID = Math.max(maxRouteID, routeNums[i]);
+            for (int stopID : stops[i]) {
+                maxStopID = Math.max(maxStopID, stopID);
+            }
+        }
+        routesByID = new TramRoute[maxRouteID + 1];
+        routeBucketsByID = new long[maxRouteID + 1][];
+        stopBucketsByID = new long[maxStopID + 1][];
         
         // Create each hardcoded route, passing its stop numbers as arguments
         for (int i = 0 ; i < routeNums.length ; i++) {
-            routes.put(routeNums[i], 
-                    new TramRoute(stops[i], MAX_ROUTE_TRAMS));;
+            routes[i] = new TramRoute(stops[i], MAX_ROUTE_TRAMS, trams, i);
+            routesByID[routeNums[i]] = routes[i];
+            routeBucketsByID[routeNums[i]] = index.routeBuckets(i);
+        }
+        
+        // Gather the buckets for each stop across every route it is on
+        for (int stopID = 0; stopID <= maxStopID; stopID++) {
+            long[] buckets = null;
+            for (int i = 0; i < routes.length; i++) {
+                int position = routes[i].positionOf(stopID);
+                if (position >= 0) {
+                    long[] more = index.stopBuckets(i, position);
+                    buckets = buckets == null ? more : concat(buckets, more);
+                }
+            }
+            stopBucketsByID[stopID] = buckets;
         }
     }
     
+    private static long[] concat(long[] first, long[] second) {
+        long[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+    
+    // Returns the location of every tram, copied as a whole by state transfer
+    public TramRegistry getRegistry() {
+        return trams;
+    }
+    
+    // Returns the route with the corresponding routeID, or null if it doesn't exist
+    public TramRoute getRoute(int routeID) {
+        return routeID >= 0 && routeID < routesByID.length ? routesByID[routeID] : null;
+    }
+    
     // Returns the boolean value of whether the route with the corresponding
     // routeID exists in the system
     public boolean routeExists(int routeID) {
-        return routes.containsKey(routeID);
+        return getRoute(routeID) != null;
     }
     
     // Returns the boolean value of whether the tram with the corresponding tramID
     // exists in the corresponding routeID
     public boolean tramExists(long tramID, int routeID) {
-        TramRoute route = routes.get(routeID);
+        TramRoute route = getRoute(routeID);
         if (route != null) {
             return route.tramExists(tramID);
         }
@@ -52,13 +110,7 @@ public class RouteManager {
     // Returns the boolean value of whether the tram with the corresponding tramID
     // exists in any route
     public boolean tramExists(long tramID) {
-        for (TramRoute route : routes.values()) {
-            if (route.tramExists(tramID)) {
-                return true;
-            }
-        }
-        return false;
-        
+        return trams.get(tramID) != TramRegistry.NOT_FOUND;
     }
     
     /*** Given the current stop and previous stop of a tram, returns the 
@@ -66,7 +118,7 @@ public class RouteManager {
      *** the appropriate next stop. Returns -1 values on error ***/
     public int getNextStop(int routeID, int currStopNum, int prevStopNum) {
             //throws TramRouteException {
-        TramRoute route = routes.get(routeID);
+        TramRoute route = getRoute(routeID);
         
         // Delegate the request to the specific route and get the response
         return route.getNextStop(currStopNum, prevStopNum);
@@ -76,7 +128,7 @@ public class RouteManager {
     
     public boolean stopExists(int routeID, int stopID) {
         boolean exists = false;
-        TramRoute route = routes.get(routeID);
+        TramRoute route = getRoute(routeID);
         if (route != null) {
             exists = route.stopExists(stopID);
         }
@@ -89,7 +141,7 @@ public class RouteManager {
     public boolean updateTramLocation(long tramID, int tramRoute, int newStopNum) {
         
         
-        TramRoute route = routes.get(tramRoute);
+        TramRoute route = getRoute(tramRoute);
         if (route != null) {
  
             
@@ -109,12 +161,42 @@ public class RouteManager {
         
     }
     
-    // Print tram status string
+    /*** Fleet queries. Each reads only the fleet index buckets that hold
+     *** the trams it returns, a page of up to max trams at a time from the
+     *** passed cursor (see FleetIndex.page) ***/
+    
+    // Returns the registry location of a tram, or TramRegistry.NOT_FOUND if
+    // no tram has that ID
+    public int getTramLocation(long tramID) {
+        return trams.get(tramID);
+    }
+    
+    // Returns the route ID of a registry location
+    public int routeIDOf(int location) {
+        return routeNums[TramRegistry.routeIndex(location)];
+    }
+    
+    // Returns the stop number of a registry location
+    public int stopOf(int location) {
+        return stops[TramRegistry.routeIndex(location)][TramRegistry.position(location)];
+    }
+    
+    // Returns a page of the trams on a route. The route must exist
+    public FleetIndex.Page tramsOnRoute(int routeID, long cursor, int max) {
+        return trams.getIndex().page(routeBucketsByID[routeID], cursor, max);
+    }
+    
+    // Returns a page of the trams at a stop or heading to it, on every
+    // route, or null if the stop is on no route
+    public FleetIndex.Page tramsAtStop(int stopID, long cursor, int max) {
+        long[] buckets = stopID >= 0 && stopID < stopBucketsByID.length ? 
+                stopBucketsByID[stopID] : null;
+        return buckets == null ? null : trams.getIndex().page(buckets, cursor, max);
+    }
+    
+    // Log tram status string. Formatted and printed by the event log thread
     private void printPosition(long tramID, int routeID, int currentStop) {
-        LocalDateTime stamp = LocalDateTime.now();
-        System.out.printf("%s Tram %17s on route %3d now at stop %3d\n",
-                stamp.format(DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:SS|")), 
-                Long.toHexString(tramID), routeID, currentStop);
+        EventLog.position(tramID, routeID, currentStop);
     }
 
 
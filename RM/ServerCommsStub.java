@@ -1,79 +1,132 @@
 package tramsimulate;
 
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
 
 import tramsimulate.RPCMessage.MessageType;
 
 /** Stub for packaging and sending communications to/from the client. 
- *  Sanitizes and validates input from clients before passing them to server functions **/
+ *  Sanitizes and validates input from clients before passing them to server functions.
+ *  RMI calls it from many threads at once, so its state is held in thread-safe
+ *  tables and per-thread scratch objects **/
 public class ServerCommsStub implements TramCommsInterface {
             
     // Driver object for the tram location system
-    private RouteManager routeManager;
+    private final RouteManager routeManager;
     
     // Return value indicating a failure of a subroutine
     public static final short SUBROUTINE_ERR = -1;
     
-    // Constants indicating the position of arguments within csv fields
+    // Constants indicating the position of arguments within the request
     private static final short ARGS_ROUTE = 0;
     private static final short ARGS_STOP = 1;
     private static final short ARGS_PREV_STOP = 2;
     private static final short ARGS_TRAMID = 2;
+    private static final short ARGS_ADVANCE_TRAMID = 3;
+    private static final short ARGS_QUERY_TRAMID = 0;
+    private static final short ARGS_QUERY_STOP = 0;
+    private static final short ARGS_CURSOR = 1;
     
-    // Number of csv arguments that are of the long type for each operation
-    private static final short LONG_ARGS[] = {0, 1};
-
-    // Indicates the expected number of integer csv arguments for each procedure
-    private static final int[] OARGS_LENGTH = {3, 2};
+    // Indicates the expected number of arguments for each procedure
+    private static final int[] ARGS_LENGTH = {3, 3, 4, 1, 2, 2};
+    // Indicates the number of leading arguments that must fit in an integer
+    private static final int[] INT_ARGS_LENGTH = {3, 2, 3, 0, 1, 1};
+    
+    // Reply values of a procedure that returns nothing
+    private static final long[] NO_VALUES = {};
+    
+    // Objects reused by each server thread for every request it processes
+    private static class RequestScratch {
+        final RPCMessage request = new RPCMessage(); // Deserialized request
+        final WireBuffer reader = new WireBuffer(null, 0); // Request data reader
+        final WireBuffer writer = new WireBuffer(64); // Reply data writer
+        final long[] stopValue = new long[1]; // Reply values holding one stop
+        final long[] positionValues = new long[2]; // Reply values holding a route and stop
+        final RPCMessage peeked = new RPCMessage(); // Request read by isQuery
+        boolean updated; // Whether a location was set since the last commit
+    }
+    private final ThreadLocal<RequestScratch> scratch = 
+            ThreadLocal.withInitial(RequestScratch::new);
+    
+    // Table of transaction IDs for checking if continued transactions exist.
+    // Bounded, and expires transactions that are never continued
+    private final TransactionTable activeTransactions;
     
-    // Set of transaction IDs for checking if continued transactions exist
-    private Set<Long> activeTransactions;
+    // Replies already sent, resent when the same request is retried
+    private final ReplyCache replyCache;
+    
+    // Counts and latencies of the processed requests
+    private final RequestMetrics metrics;
 
     
     // Initializes the stub with the passed tram location system (routeManager) object
     public ServerCommsStub(RouteManager routeManager) {
         this.routeManager = routeManager;
-        activeTransactions = new HashSet<Long>();
+        activeTransactions = new TransactionTable();
+        replyCache = new ReplyCache();
+        metrics = new RequestMetrics();
+    }
+    
+    // Returns the open transaction table, whose gauges track its memory use
+    public TransactionTable getActiveTransactions() {
+        return activeTransactions;
+    }
+    
+    // Returns the reply cache, whose gauges count retried requests
+    public ReplyCache getReplyCache() {
+        return replyCache;
+    }
+    
+    // Returns the counts and latencies of the requests processed by procedure
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+    
+    // Returns the tram location system the stub passes requests to
+    public RouteManager getRouteManager() {
+        return routeManager;
     }
 
     /*** Unwraps the passed serialized request and performs validation.
      *** Passes the request on to server procedures if appropriate, and returns 
      *** the serialized response. ***/
     public Message processMessage(Message request) throws IOException {
-        short status = FLAG_SUCCESS; // Status error indicator. 
-        String csvResponse = ""; // String for building the csv server response
-        RPCMessage unpacked = null; // Stores the deserialized message
-        
-        int[] args = null; // Stores the client integer csv arguments
-        Long tramID = 0L; // Stores the tramID client argument
-        int procedure = 0; // Indicates the procedure requested by the client
+        Message serialReply = new Message();
+        processMessage(request, serialReply);
+        return serialReply;
+    }
+    
+    /*** As above, but serializes the response into the passed reply message.
+     *** The request is read into objects reused by the calling thread, so a
+     *** thread that also reuses its reply message allocates nothing here.
+     *** A request already processed is answered from the reply cache. ***/
+    public void processMessage(Message request, Message serialReply) throws IOException {
+        long start = System.nanoTime();
+        RequestScratch thread = scratch.get();
+        long[] replyValues = NO_VALUES; // Values for the server response
         
+        // Attempt to deserialize the client request and retrieve its arguments
+        RPCMessage unpacked = thread.request;
         try {
-            // Attempt to deserialize the client request and retrieve its arguments
-            unpacked = request.unmarshal();
-            args = getCsvArgs(unpacked);
-            
-            // Retrieve the requested procedure ID
-            procedure = unpacked.getProcedureID();
-            
-            // Get the tramID argument if necessary
-            if (procedure == UPDATE_LOCATION) {
-                tramID = Long.parseLong(unpacked.getCsv_data().split(",")[ARGS_TRAMID]);
-            }
-        
-        // If a format exception occurred in parsing, the csv arguments were incorrect
-        } catch (NumberFormatException e) {
-            status = FLAG_CORRUPT_CSV;
+            request.unmarshal(unpacked, thread.reader);
+        } catch (IOException e) {
+            metrics.record(RequestMetrics.UNKNOWN_PROCEDURE, FLAG_NO_MARTIAL, 
+                    System.nanoTime() - start);
+            throw e;
         }
+        long[] args = unpacked.getArgs();
         
-        // If no parsing errors were encountered...
-        if (status == FLAG_SUCCESS) {
-            // Perform general validation on the request, taking the result
-            status = checkGeneralParams(unpacked, args);
+        // A retried request gets the reply it was sent the first time, without
+        // running its procedure again
+        if (replyCache.get(unpacked, serialReply)) {
+            return;
         }
         
+        // Retrieve the requested procedure ID
+        int procedure = unpacked.getProcedureID();
+        
+        // Perform general validation on the request, taking the result
+        short status = checkGeneralParams(unpacked, args);
+        
         // If no errors were encountered in general parameter checking...
         if (status == FLAG_SUCCESS) {
             
@@ -83,15 +136,17 @@ public class ServerCommsStub implements TramCommsInterface {
             // Get next tram stop procedure
             case GET_NEXT_STOP: 
                 // Get the next stop number
-                int nextStop = routeManager.getNextStop(
-                        args[ARGS_ROUTE], args[ARGS_STOP], args[ARGS_PREV_STOP]);
+                int nextStop = routeManager.getNextStop((int) args[ARGS_ROUTE], 
+                        (int) args[ARGS_STOP], (int) args[ARGS_PREV_STOP]);
                 // Stop number of -1 indicates an error where the tram path is invalid
                 if (nextStop == SUBROUTINE_ERR) {
                     status = FLAG_NO_ROUTE_SEQ;
-                    csvResponse += SUBROUTINE_ERR;
+                    replyValues = thread.stopValue;
+                    replyValues[0] = SUBROUTINE_ERR;
                 } else {
-                    // Build the csv data response with the next stop value
-                    csvResponse += nextStop;
+                    // Build the response with the next stop value
+                    replyValues = thread.stopValue;
+                    replyValues[0] = nextStop;
                     // Record the transaction as in progress (waiting for update location)
                     activeTransactions.add(unpacked.getTransactionID());
                 }
@@ -100,65 +155,179 @@ public class ServerCommsStub implements TramCommsInterface {
              // Update tram location procedure
             case UPDATE_LOCATION:
                 // Attempt to update the location
-                if (!routeManager.updateTramLocation
-                        (tramID, args[ARGS_ROUTE], args[ARGS_STOP])) {
+                if (!routeManager.updateTramLocation(args[ARGS_TRAMID], 
+                        (int) args[ARGS_ROUTE], (int) args[ARGS_STOP])) {
                     // Failure means the tram is taking an invalid path
                     status = FLAG_INVALID_UPDATE;
                 } else {
                     // Record the transaction as complete
                     activeTransactions.remove(unpacked.getTransactionID());
+                    thread.updated = true;
+                }
+                break;
+            
+            // Combined get next stop and update location procedure. Completes
+            // in one request, so no transaction is recorded
+            case ADVANCE_TRAM:
+                int newStop = routeManager.getNextStop((int) args[ARGS_ROUTE], 
+                        (int) args[ARGS_STOP], (int) args[ARGS_PREV_STOP]);
+                if (newStop == SUBROUTINE_ERR) {
+                    status = FLAG_NO_ROUTE_SEQ;
+                    replyValues = thread.stopValue;
+                    replyValues[0] = SUBROUTINE_ERR;
+                }
+                else if (!routeManager.updateTramLocation(args[ARGS_ADVANCE_TRAMID], 
+                        (int) args[ARGS_ROUTE], newStop)) {
+                    status = FLAG_INVALID_UPDATE;
+                } else {
+                    replyValues = thread.stopValue;
+                    replyValues[0] = newStop;
+                    thread.updated = true;
+                }
+                break;
+            
+            // Fleet queries, answered from the registry's fleet index
+            case TRAM_POSITION:
+                int location = routeManager.getTramLocation(args[ARGS_QUERY_TRAMID]);
+                if (location == TramRegistry.NOT_FOUND) {
+                    status = FLAG_UNREG_TRAM;
+                } else {
+                    replyValues = thread.positionValues;
+                    replyValues[0] = routeManager.routeIDOf(location);
+                    replyValues[1] = routeManager.stopOf(location);
+                }
+                break;
+            
+            case TRAMS_ON_ROUTE:
+                FleetIndex.Page routePage = routeManager.tramsOnRoute((int) args[ARGS_ROUTE], 
+                        args[ARGS_CURSOR], ROUTE_PAGE_TRAMS);
+                replyValues = new long[1 + routePage.size * 2];
+                replyValues[0] = routePage.nextCursor;
+                for (int i = 0; i < routePage.size; i++) {
+                    replyValues[1 + i * 2] = routePage.tramIDs[i];
+                    replyValues[2 + i * 2] = routeManager.stopOf(routePage.locations[i]);
+                }
+                break;
+            
+            case TRAMS_AT_STOP:
+                FleetIndex.Page stopPage = routeManager.tramsAtStop((int) args[ARGS_QUERY_STOP], 
+                        args[ARGS_CURSOR], STOP_PAGE_TRAMS);
+                if (stopPage == null) {
+                    status = FLAG_NO_STOP;
+                    break;
+                }
+                replyValues = new long[1 + stopPage.size * 3];
+                replyValues[0] = stopPage.nextCursor;
+                for (int i = 0; i < stopPage.size; i++) {
+                    replyValues[1 + i * 3] = stopPage.tramIDs[i];
+                    replyValues[2 + i * 3] = routeManager.routeIDOf(stopPage.locations[i]);
+                    replyValues[3 + i * 3] = routeManager.stopOf(stopPage.locations[i]);
                 }
                 break;
             }
         }
         
-        // If there was an error, print it
-        if (status != 0) {
+        // If there was an error, print it. A tram that isn't found is the
+        // answer to a position query rather than an error
+        if (status != 0 && !(procedure == TRAM_POSITION && status == FLAG_UNREG_TRAM)) {
             printServerError(status, unpacked.getProcedureID());
         }
         
-        // Generate the reply based on the original message
-        RPCMessage reply = new RPCMessage(unpacked, csvResponse, status);
+        // Serialize the reply based on the original message, in the same 
+        // format as the request
+        serialReply.marshalReply(unpacked, replyValues, status, 
+                request.getVersion(), thread.writer);
+        // Only a success is cached. A failed request changed nothing, so a
+        // retry of it runs again and may succeed once its cause has gone
+        if (status == FLAG_SUCCESS) {
+            replyCache.put(unpacked, serialReply);
+        }
+        metrics.record(procedure, status, System.nanoTime() - start);
+    }
+
+
+    /*** Processes each request of a batch in turn and returns a reply for each,
+     *** in the same order. A request that cannot be unmarshalled gets a reply
+     *** with the FLAG_NO_MARTIAL status rather than failing the whole batch. ***/
+    public Message[] processBatch(Message[] requests) throws IOException {
+        Message[] replies = new Message[requests.length];
         
-        // Serialize and return the reply
-        Message serialReply = new Message();
-        serialReply.marshal(reply);
-        return serialReply;
+        for (int i = 0; i < requests.length; i++) {
+            replies[i] = new Message();
+            try {
+                if (requests[i] == null) {
+                    throw new IOException("Missing batch request.");
+                }
+                processMessage(requests[i], replies[i]);
+            } catch (IOException e) {
+                // The request IDs are unknown, so the reply can only carry the
+                // status, in the request's format where it can be read
+                byte version = requests[i] != null && requests[i].getVersion() == 
+                        Message.VERSION_CSV ? Message.VERSION_CSV : Message.VERSION_BINARY;
+                replies[i].marshal(new RPCMessage(new RPCMessage(), NO_VALUES, 
+                        FLAG_NO_MARTIAL), version);
+            }
+        }
+        
+        return replies;
+    }
+
+
+    /*** Returns the boolean value of whether a request is a fleet query, which
+     *** reads the tram locations without changing them, so is neither
+     *** replicated to backups nor logged. A request that can't be read is
+     *** not a query. ***/
+    public boolean isQuery(Message request) {
+        RequestScratch thread = scratch.get();
+        try {
+            request.unmarshal(thread.peeked, thread.reader);
+        } catch (IOException e) {
+            return false;
+        }
+        return thread.peeked.getMessageType() == MessageType.REQUEST && 
+                TramCommsInterface.isQuery(thread.peeked.getProcedureID());
+    }
+
+
+    /*** Waits, under the COMMIT fsync policy, until the locations set by the
+     *** requests this thread processed are synced to the write-ahead log.
+     *** Called before replying and outside any lock, so that the requests of
+     *** many threads are synced together. Returns straight away if this
+     *** thread set no location, or no log is attached. ***/
+    public void commitUpdates() {
+        WriteAheadLog log = routeManager.getRegistry().getLog();
+        if (log != null) {
+            RequestScratch thread = scratch.get();
+            if (thread.updated) {
+                thread.updated = false;
+                log.commit();
+            }
+        }
     }
 
 
     // Prints an appropriate message from the provided request procedure type
     // and status error flag
     private void printServerError(short status, short procedureID) {
-       String error = "Unable to process ";
-       if (procedureID < 3 && procedureID > 0) {
-           error += PROCEDURE_NAMES[procedureID] + " ";
-       }
-       error += "request: " + ERROR_MESSAGES[status];
-       
-       System.out.println(error);
-
+       EventLog.requestError(procedureID, status);
     }
 
-    // Retrieves the integer csv arguments from a request
-    private int[] getCsvArgs(RPCMessage unpacked) throws IOException, NumberFormatException {
-        String[] args = unpacked.getCsv_data().split(",");
-        
-        int intArgsLength = args.length; 
-        // Decrement the expected length if one of the arguments is a long
-        intArgsLength -= LONG_ARGS[unpacked.getProcedureID()];
-        
-        // Attempt to parse the integer arguments
-        int[] otherArgs = new int[intArgsLength];
-        for (int i = 0; i < intArgsLength; i++) {
-            otherArgs[i] = Integer.parseInt(args[i]);
+    // Returns the boolean value of whether the request has the expected number 
+    // of arguments for its procedure, with integer arguments in integer range
+    private boolean argsValid(long[] args, int procedure) {
+        if (args == null || args.length != ARGS_LENGTH[procedure]) {
+            return false;
         }
-        
-        return otherArgs;
+        for (int i = 0; i < INT_ARGS_LENGTH[procedure]; i++) {
+            if (args[i] != (int) args[i]) {
+                return false;
+            }
+        }
+        return true;
     }
     
     // Performs basic checks on a received client request. Returns the error status value
-    private short checkGeneralParams(RPCMessage unpacked, int[] args) {
+    private short checkGeneralParams(RPCMessage unpacked, long[] args) {
         short status = 0; // Error status value
         int procedure = unpacked.getProcedureID();
         
@@ -168,21 +337,30 @@ public class ServerCommsStub implements TramCommsInterface {
         if (unpacked.getMessageType() != MessageType.REQUEST) {
             status = FLAG_NOT_REQUEST;
         }
-        // Ensure the procedure is one of the valid procedures (0-1)
-        else if (procedure != 0 && procedure != 1) {
+        // Ensure the procedure is one of the valid procedures
+        else if (procedure < 0 || procedure >= PROCEDURE_NAMES.length) {
             status = FLAG_NO_PROCEDURE;
         }
-        // Ensure the number of csv arguments is correct
-        else if (args.length != OARGS_LENGTH[procedure]) {
+        // Ensure the arguments were readable and their number is correct
+        else if (!argsValid(args, procedure)) {
             status = FLAG_CORRUPT_CSV;
         }
-        // ensure the tram route exists in the system
-        else if (!routeManager.routeExists(args[ARGS_ROUTE])) {
-            status = FLAG_NO_ROUTE;
+        // Queries by tram or stop check their argument while they run
+        else if (procedure == TRAM_POSITION || procedure == TRAMS_AT_STOP) {
+            status = FLAG_SUCCESS;
         }
-        // ensure the current stop argument exists in the system 
-        else if (!routeManager.stopExists(args[ARGS_ROUTE], args[ARGS_STOP])) {
-            status = FLAG_NO_STOP;
+        else {
+            // Look the route up once for both the route and stop checks
+            TramRoute route = routeManager.getRoute((int) args[ARGS_ROUTE]);
+            
+            // ensure the tram route exists in the system
+            if (route == null) {
+                status = FLAG_NO_ROUTE;
+            }
+            // ensure the current stop argument exists in the system 
+            else if (procedure != TRAMS_ON_ROUTE && !route.stopExists((int) args[ARGS_STOP])) {
+                status = FLAG_NO_STOP;
+            }
         }
 
         
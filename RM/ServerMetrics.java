@@ -0,0 +1,124 @@
+package tramsimulate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*** Metrics of a replication manager, read from the gauges of its request
+ *   handler and tram location system whenever the MBean is queried. Nothing
+ *   here is on the request path ***/
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final ServerCommsStub handler;
+    private final RouteManager routeManager;
+    private final PrimaryBackup replica;
+    private final SnapshotStore snapshots; // Null unless a write-ahead log is kept
+    
+    public ServerMetrics(ServerCommsStub handler, PrimaryBackup replica,
+            SnapshotStore snapshots) {
+        this.handler = handler;
+        this.routeManager = handler.getRouteManager();
+        this.replica = replica;
+        this.snapshots = snapshots;
+    }
+    
+    public Map<String, Long> getRequestCounts() {
+        return handler.getMetrics().requestCounts();
+    }
+    
+    public Map<String, Long> getErrorCounts() {
+        return handler.getMetrics().errorCounts();
+    }
+    
+    public Map<String, LatencySummary> getRequestLatencies() {
+        return handler.getMetrics().latencies();
+    }
+    
+    public Map<Integer, Integer> getTramsPerRoute() {
+        Map<Integer, Integer> counts = new LinkedHashMap<Integer, Integer>();
+        for (int routeID : RouteManager.routeNums) {
+            counts.put(routeID, routeManager.getRoute(routeID).tramCount());
+        }
+        return counts;
+    }
+    
+    public int getFleetSize() {
+        int size = 0;
+        for (int routeID : RouteManager.routeNums) {
+            size += routeManager.getRoute(routeID).tramCount();
+        }
+        return size;
+    }
+    
+    public int getActiveTransactions() {
+        return handler.getActiveTransactions().liveCount();
+    }
+    
+    public long getExpiredTransactions() {
+        return handler.getActiveTransactions().expiredCount();
+    }
+    
+    public long getEvictedTransactions() {
+        return handler.getActiveTransactions().evictedCount();
+    }
+    
+    public long getReplyCacheHits() {
+        return handler.getReplyCache().hitCount();
+    }
+    
+    public int getReplyCacheSize() {
+        return handler.getReplyCache().size();
+    }
+    
+    public String getReplicaRole() {
+        if (ReplicationMode.SELECTED != ReplicationMode.PRIMARY_BACKUP) {
+            return "ACTIVE";
+        }
+        return replica.isPrimary() ? "PRIMARY" : "BACKUP";
+    }
+    
+    public long getReplicaEpoch() {
+        return replica.getEpoch();
+    }
+    
+    public long getAppliedSequence() {
+        return replica.appliedSequence();
+    }
+    
+    public long getBackupLag() {
+        return replica.backupLag();
+    }
+    
+    public long getAckTimeouts() {
+        return replica.ackTimeoutCount();
+    }
+    
+    public long getWalRecords() {
+        WriteAheadLog log = routeManager.getRegistry().getLog();
+        return log == null ? 0 : log.recordCount();
+    }
+    
+    public long getWalSyncs() {
+        WriteAheadLog log = routeManager.getRegistry().getLog();
+        return log == null ? 0 : log.syncCount();
+    }
+    
+    public long getWalUnsyncedBytes() {
+        WriteAheadLog log = routeManager.getRegistry().getLog();
+        return log == null ? 0 : log.unsyncedBytes();
+    }
+    
+    public long getSnapshotsTaken() {
+        return snapshots == null ? 0 : snapshots.takenCount();
+    }
+    
+    public long getLastSnapshotMillis() {
+        return snapshots == null ? 0 : snapshots.lastMillis();
+    }
+    
+    public long getLastSnapshotBytes() {
+        return snapshots == null ? 0 : snapshots.lastBytes();
+    }
+    
+    public long getDroppedLogEvents() {
+        return EventLog.droppedCount();
+    }
+}
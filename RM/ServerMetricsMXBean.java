@@ -0,0 +1,68 @@
+package tramsimulate;
+
+import java.util.Map;
+
+/*** Management interface of a replication manager's metrics, registered with
+ *   the platform MBean server as tramsimulate:type=ReplicationManager,port=<port> ***/
+public interface ServerMetricsMXBean {
+    // (Procedure name -> number of requests processed)
+    Map<String, Long> getRequestCounts();
+    
+    // (Error message -> number of requests that failed with it)
+    Map<String, Long> getErrorCounts();
+    
+    // (Procedure name -> processing time percentiles)
+    Map<String, LatencySummary> getRequestLatencies();
+    
+    // (Route ID -> number of trams on the route)
+    Map<Integer, Integer> getTramsPerRoute();
+    
+    // Number of trams on every route
+    int getFleetSize();
+    
+    // Transactions with a next stop request but no location update yet
+    int getActiveTransactions();
+    
+    long getExpiredTransactions();
+    
+    long getEvictedTransactions();
+    
+    // Retried requests answered from the reply cache
+    long getReplyCacheHits();
+    
+    int getReplyCacheSize();
+    
+    // PRIMARY or BACKUP in primary-backup mode, otherwise ACTIVE
+    String getReplicaRole();
+    
+    long getReplicaEpoch();
+    
+    // Sequence number of the last update log entry applied
+    long getAppliedSequence();
+    
+    // Entries the primary has applied that no backup has applied yet
+    long getBackupLag();
+    
+    // Requests acknowledged under ONE_BACKUP without a backup in time
+    long getAckTimeouts();
+    
+    // Location records in the write-ahead log, 0 if none is kept
+    long getWalRecords();
+    
+    // Times the write-ahead log was synced to the disk. Records per sync
+    // shows how many are grouped into each commit
+    long getWalSyncs();
+    
+    long getWalUnsyncedBytes();
+    
+    // Snapshots of the state taken since the replication manager started
+    long getSnapshotsTaken();
+    
+    // Time and size of the last snapshot
+    long getLastSnapshotMillis();
+    
+    long getLastSnapshotBytes();
+    
+    // Log events dropped because the event log buffer was full
+    long getDroppedLogEvents();
+}
@@ -0,0 +1,287 @@
+package tramsimulate;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*** Periodic snapshots of a replication manager's tram locations and open
+ *   transactions, kept beside its write-ahead log so that a restart loads the
+ *   newest snapshot and replays only the log written since, however long
+ *   the system has been running.
+ *
+ *   A snapshot is taken on a background thread without pausing requests.
+ *   The log is first moved on to a new segment, then each segment of the
+ *   tram registry and each stripe of the transaction table is copied in
+ *   turn, locked only while it is copied into memory. A location set during
+ *   the copy may or may not be in the snapshot, but it is in the log from
+ *   the new segment on, and replaying that sets each tram's latest location
+ *   whatever the snapshot held. Each snapshot is a file named by that
+ *   segment: a header, the parts in the state transfer format, then a CRC32
+ *   of everything before it. The file is synced and renamed into place
+ *   before the log segments older than the oldest snapshot kept are
+ *   deleted. A snapshot is only loaded while its segment is still in the
+ *   log, as a log started again after the registry was cleared doesn't
+ *   follow on from it. ***/
+public class SnapshotStore {
+    // Milliseconds between snapshots. Set with -Dtram.snapshot.intervalMillis
+    public static final long INTERVAL_MILLIS = Long.getLong("tram.snapshot.intervalMillis", 60000);
+    // Snapshots kept, the older ones loaded if the newest is damaged. Set with -Dtram.snapshot.keep
+    public static final int KEEP = Math.max(1, Integer.getInteger("tram.snapshot.keep", 2));
+
+    private static final int MAGIC = 0x54524d53;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24; // Magic, version, segment and part counts
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final WriteAheadLog log;
+    private final TramRegistry registry;
+    private final TransactionTable transactions;
+
+    private long snapshotPosition = -1; // Log position of the last snapshot. Guarded by this
+    private final LongAdder taken = new LongAdder();
+    private volatile long lastMillis; // Time the last snapshot took
+    private volatile long lastBytes; // Size of the last snapshot
+
+    // Creates the snapshots of the passed state, kept in the directory of its log
+    public SnapshotStore(WriteAheadLog log, TramRegistry registry,
+            TransactionTable transactions) {
+        this.dir = log.getDirectory();
+        this.log = log;
+        this.registry = registry;
+        this.transactions = transactions;
+    }
+
+    /*** Recovery ***/
+
+    // Loads the newest snapshot that is intact and still followed by the log,
+    // returning the log segment to replay from, 0 if no snapshot was loaded.
+    // Called before the log is replayed or attached to the registry
+    public long load() {
+        long[] numbers = snapshotNumbers();
+        for (int i = numbers.length - 1; i >= 0; i--) {
+            File file = snapshotFile(numbers[i]);
+            if (!log.hasSegment(numbers[i])) {
+                file.delete();
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                read(file, numbers[i]);
+                EventLog.text(EventLog.Level.INFO, "Loaded snapshot " + file + " ("
+                        + registry.size() + " trams, " + file.length() + " bytes) in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
+                return numbers[i];
+            } catch (IOException e) {
+                EventLog.text(EventLog.Level.WARN, "Snapshot " + file + " can't be loaded: "
+                        + e.getMessage());
+                registry.clear();
+                transactions.clear();
+            }
+        }
+        if (numbers.length > 0) {
+            EventLog.text(EventLog.Level.WARN, "No snapshot could be loaded, so only the log"
+                    + " segments still kept are replayed");
+        }
+        return 0;
+    }
+
+    // Adds the state held in a snapshot file, failing if it is damaged. The
+    // checksum is checked before any of it is added
+    private void read(File file, long number) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        if (bytes.length < HEADER_BYTES + Long.BYTES) {
+            throw new IOException("Only " + bytes.length + " bytes long");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - Long.BYTES);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(bytes.length - Long.BYTES);
+        if (in.readLong() != crc.getValue()) {
+            throw new IOException("Checksum mismatch");
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - Long.BYTES));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a snapshot of version " + VERSION);
+        }
+        if (in.readLong() != number) {
+            throw new IOException("Taken at a different log segment than its name says");
+        }
+        int segments = in.readInt();
+        int stripes = in.readInt();
+        for (int i = 0; i < segments; i++) {
+            registry.readSegment(in);
+        }
+        for (int i = 0; i < stripes; i++) {
+            transactions.readStripe(in);
+        }
+        if (in.available() != 0) {
+            throw new IOException(in.available() + " extra bytes before the checksum");
+        }
+    }
+
+    /*** Taking snapshots ***/
+
+    // Starts taking a snapshot every interval on a thread of its own. The
+    // first is taken straight away if asked, as when the state loaded isn't
+    // all in a snapshot, and otherwise once more is logged
+    public void start(boolean now) {
+        if (!now) {
+            synchronized (this) {
+                snapshotPosition = log.position();
+            }
+        }
+        Thread snapshotter = new Thread(() -> {
+            boolean due = now;
+            while (true) {
+                if (due) {
+                    try {
+                        take();
+                    } catch (IOException | UncheckedIOException e) {
+                        EventLog.text(EventLog.Level.WARN, "Snapshot failed: " + e.getMessage());
+                    }
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                due = true;
+            }
+        }, "snapshotter");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    // Takes a snapshot and drops the log it covers, unless nothing has been
+    // logged since the last one. Returns whether a snapshot was taken
+    public synchronized boolean take() throws IOException {
+        long position = log.position();
+        if (position == snapshotPosition) {
+            return false;
+        }
+        long start = System.nanoTime();
+        long number = log.startSegment();
+        File temp = new File(dir, PREFIX + number + TEMP_SUFFIX);
+        File file = snapshotFile(number);
+        try {
+            write(temp, number);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory();
+        } finally {
+            temp.delete();
+        }
+        snapshotPosition = position;
+        prune();
+
+        lastMillis = (System.nanoTime() - start) / 1000000;
+        lastBytes = file.length();
+        taken.increment();
+        EventLog.text(EventLog.Level.INFO, "Took snapshot " + file + " (" + lastBytes
+                + " bytes) in " + lastMillis + " ms");
+        return true;
+    }
+
+    // Writes the state to a file and syncs it. Each part is copied into
+    // memory under its lock, then written to the file after the lock is let go
+    private void write(File temp, long number) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteArrayOutputStream part = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream partOut = new DataOutputStream(part);
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(file, 1 << 16), crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(number);
+            out.writeInt(TramRegistry.SEGMENTS);
+            out.writeInt(TransactionTable.STRIPES);
+            for (int i = 0; i < TramRegistry.SEGMENTS; i++) {
+                part.reset();
+                registry.writeSegment(i, partOut);
+                part.writeTo(out);
+            }
+            for (int i = 0; i < TransactionTable.STRIPES; i++) {
+                part.reset();
+                transactions.writeStripe(i, partOut);
+                part.writeTo(out);
+            }
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    // Makes the rename of a snapshot durable
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not supported on every platform
+        }
+    }
+
+    // Deletes all but the newest snapshots, and the log segments before them
+    private void prune() {
+        long[] numbers = snapshotNumbers();
+        int oldestKept = Math.max(0, numbers.length - KEEP);
+        for (int i = 0; i < oldestKept; i++) {
+            snapshotFile(numbers[i]).delete();
+        }
+        log.truncate(numbers[oldestKept]);
+    }
+
+    private File snapshotFile(long number) {
+        return new File(dir, String.format("%s%012d%s", PREFIX, number, SUFFIX));
+    }
+
+    // Returns the log segments of the snapshot files in the directory, in order
+    private long[] snapshotNumbers() {
+        String[] names = dir.list((parent, name) ->
+                name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            numbers[i] = Long.parseLong(names[i].substring(PREFIX.length(),
+                    names[i].length() - SUFFIX.length()));
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /*** Gauges ***/
+
+    public long takenCount() {
+        return taken.sum();
+    }
+
+    // Milliseconds the last snapshot took, 0 before the first
+    public long lastMillis() {
+        return lastMillis;
+    }
+
+    // Bytes of the last snapshot, 0 before the first
+    public long lastBytes() {
+        return lastBytes;
+    }
+}
@@ -0,0 +1,244 @@
+package tramsimulate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/*** Brings a replication manager that starts empty up to date by copying the
+ *   state of a live peer. The snapshot is pulled one part at a time: each
+ *   stripe of the reply cache, then each stripe of the transaction table,
+ *   then each segment of the tram registry, written as compact binary
+ *   records. Only the part being copied is locked on the peer, so the peer
+ *   keeps serving requests throughout.
+ *
+ *   Requests the front end sends during the copy are held and applied once
+ *   the snapshot is in. Those the peer applied before its parts were copied
+ *   are answered from the copied reply cache, which is copied first for that
+ *   reason, and the others set absolute tram locations, so applying them
+ *   again gives the same state. In primary-backup mode nothing is held:
+ *   each part carries the primary's log sequence, and the backup continues
+ *   from the log sequence at which the copy started. ***/
+public class StateTransfer {
+    // Milliseconds the copy waits before starting, so that requests sent to
+    // the peer before this replication manager was sent any have finished.
+    // Set with -Dtram.sync.settleMillis
+    public static final long SETTLE_MILLIS = Long.getLong("tram.sync.settleMillis", 200);
+    // Number of parts in a snapshot
+    public static final int CHUNKS = ReplyCache.STRIPES + TransactionTable.STRIPES
+            + TramRegistry.SEGMENTS;
+
+    private static final Message NOT_APPLIED = new Message();
+
+    private final ServerCommsStub handler;
+    private final String url; // Url the peers are bound to
+    private final LongSupplier logSequence; // Update log sequence a part is copied at
+    private final LongConsumer installed; // Told the sequence a snapshot started at
+    private volatile long state = ReplicaControl.STATE_EMPTY;
+    // Requests received during the copy. Guarded by this
+    private List<Message> held = new ArrayList<Message>();
+    private final Message replayReply = new Message(); // Discarded reply of a held request
+
+    // Gives a ByteArrayOutputStream's buffer to a message without copying it first
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+        ChunkBuffer() {
+            super(64 * 1024);
+        }
+
+        Message toMessage() {
+            Message message = new Message();
+            message.setData(buf, 0, count, Message.VERSION_BINARY);
+            return message;
+        }
+    }
+
+    /*** Creates the transfer of a replication manager's state
+     * @param logSequence - returns the update log sequence number the state is at
+     * @param installed - called with the log sequence number a snapshot was
+     *        copied from once it is installed
+     */
+    public StateTransfer(ServerCommsStub handler, String url, LongSupplier logSequence,
+            LongConsumer installed) {
+        this.handler = handler;
+        this.url = url;
+        this.logSequence = logSequence;
+        this.installed = installed;
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    public boolean isSynced() {
+        return state == ReplicaControl.STATE_SYNCED;
+    }
+
+    // Marks the state as complete as it is, as the first replication manager
+    // of a group, or a primary
+    public synchronized void markSynced() {
+        if (state != ReplicaControl.STATE_SYNCING) {
+            state = ReplicaControl.STATE_SYNCED;
+        }
+    }
+
+    /*** Client requests ***/
+
+    // Holds a client request received during a copy, returning the reply to
+    // send, which the front end doesn't read. Returns null if no copy is running
+    public synchronized Message hold(Message request) {
+        if (state != ReplicaControl.STATE_SYNCING) {
+            return null;
+        }
+        held.add(request);
+        return NOT_APPLIED;
+    }
+
+    /*** Serving a peer ***/
+
+    // Copies one part of the state, headed by the log sequence it was copied at
+    public Message snapshotChunk(int chunk) throws IOException {
+        if (!isSynced()) {
+            throw new RemoteException("Can't serve a snapshot before being synced");
+        }
+        ChunkBuffer bytes = new ChunkBuffer();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(logSequence.getAsLong());
+        if (chunk >= 0 && chunk < ReplyCache.STRIPES) {
+            handler.getReplyCache().writeStripe(chunk, out);
+        }
+        else if (chunk >= 0 && chunk < ReplyCache.STRIPES + TransactionTable.STRIPES) {
+            handler.getActiveTransactions().writeStripe(chunk - ReplyCache.STRIPES, out);
+        }
+        else if (chunk >= 0 && chunk < CHUNKS) {
+            handler.getRouteManager().getRegistry().writeSegment(
+                    chunk - ReplyCache.STRIPES - TransactionTable.STRIPES, out);
+        }
+        else {
+            throw new IOException("No snapshot part " + chunk);
+        }
+        out.flush();
+        return bytes.toMessage();
+    }
+
+    /*** Syncing from a peer ***/
+
+    // Starts copying from the peer on a thread of its own, or marks the state
+    // synced if the port is 0
+    public synchronized void syncFrom(int peerPort) {
+        if (state == ReplicaControl.STATE_SYNCING) {
+            return;
+        }
+        if (peerPort == 0) {
+            state = ReplicaControl.STATE_SYNCED;
+            return;
+        }
+        state = ReplicaControl.STATE_SYNCING;
+        held = new ArrayList<Message>();
+        Thread copy = new Thread(() -> transfer(peerPort), "state-transfer");
+        copy.setDaemon(true);
+        copy.start();
+    }
+
+    // Replaces the state with a snapshot of the peer's, then applies the held
+    // requests. Goes back to EMPTY on failure, for the sync to be started again
+    private void transfer(int peerPort) {
+        ReplicaControl peer = null;
+        try {
+            Thread.sleep(SETTLE_MILLIS);
+            long start = System.nanoTime();
+            peer = (ReplicaControl) Transport.SELECTED.connect(peerPort, url);
+
+            clear();
+            long sequence = 0;
+            long bytes = 0;
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                Message part = peer.snapshotChunk(chunk);
+                bytes += part.getLength();
+                long partSequence = install(chunk, part);
+                if (chunk == 0) {
+                    sequence = partSequence;
+                }
+            }
+            installed.accept(sequence);
+            int replayed = replayHeld();
+
+            EventLog.text(EventLog.Level.INFO, "Synced "
+                    + handler.getRouteManager().getRegistry().size() + " trams (" + bytes
+                    + " bytes) from port " + peerPort + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms, then applied "
+                    + replayed + " held requests");
+        } catch (Exception e) {
+            EventLog.text(EventLog.Level.WARN, "State transfer from port " + peerPort
+                    + " failed: " + e.getMessage());
+            synchronized (this) {
+                held = new ArrayList<Message>();
+                state = ReplicaControl.STATE_EMPTY;
+            }
+        } finally {
+            if (peer != null) {
+                Transport.release((TramServer) peer);
+            }
+        }
+    }
+
+    // Empties the reply cache, the transaction table and the tram registry
+    private void clear() {
+        handler.getReplyCache().clear();
+        handler.getActiveTransactions().clear();
+        handler.getRouteManager().getRegistry().clear();
+    }
+
+    // Adds one part of a snapshot to the state, returning its log sequence
+    private long install(int chunk, Message part) throws IOException {
+        byte[] data = new byte[part.getLength()];
+        part.copyData(data, 0);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        long sequence = in.readLong();
+        if (chunk < ReplyCache.STRIPES) {
+            handler.getReplyCache().readStripe(in);
+        }
+        else if (chunk < ReplyCache.STRIPES + TransactionTable.STRIPES) {
+            handler.getActiveTransactions().readStripe(in);
+        }
+        else {
+            handler.getRouteManager().getRegistry().readSegment(in);
+        }
+        if (in.available() != 0) {
+            throw new IOException("Snapshot part " + chunk + " has " + in.available()
+                    + " extra bytes");
+        }
+        return sequence;
+    }
+
+    // Applies the requests held during the copy until none are left, then
+    // takes requests directly. Returns the number applied
+    private int replayHeld() {
+        int replayed = 0;
+        while (true) {
+            List<Message> requests;
+            synchronized (this) {
+                if (held.isEmpty()) {
+                    state = ReplicaControl.STATE_SYNCED;
+                    return replayed;
+                }
+                requests = held;
+                held = new ArrayList<Message>();
+            }
+            for (Message request : requests) {
+                try {
+                    handler.processMessage(request, replayReply);
+                } catch (IOException e) {
+                    // Failed the same way on the replication managers that replied
+                }
+            }
+            handler.commitUpdates();
+            replayed += requests.size();
+        }
+    }
+}
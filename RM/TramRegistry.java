@@ -0,0 +1,210 @@
+package tramsimulate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*** Store of the location of every tram in the system, keyed by tram ID.
+ *** Each location packs the index of the tram's route and the position of its
+ *** stop on that route into one int, so the store is a set of primitive
+ *** LongIntHashMaps. No object is allocated per tram, and a lookup takes no boxing.
+ ***
+ *** The store is split into segments, each guarded by its own lock, so that
+ *** concurrent request threads rarely contend. The number of trams on each
+ *** route is kept alongside so that routes can check their capacity, and a
+ *** FleetIndex of the trams at each stop so that fleet queries needn't scan
+ *** every segment.
+ ***
+ *** When a write-ahead log is attached, every location set is recorded in it
+ *** within the segment lock, so the log holds each tram's locations in the
+ *** order they were set ***/
+public class TramRegistry {
+    // Returned by lookups for trams that are not in the store
+    public static final int NOT_FOUND = LongIntHashMap.NOT_FOUND;
+
+    // Number of bits of a location that hold the stop position
+    private static final int POSITION_BITS = 16;
+    private static final int POSITION_MASK = (1 << POSITION_BITS) - 1;
+
+    static final int SEGMENT_BITS = 6;
+    // Number of segments, each copied as one part of a state snapshot
+    public static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_CAPACITY = 16; // Initial slots per segment
+
+    private final Segment[] segments;
+    private final AtomicIntegerArray routeCounts; // Number of trams on each route
+    private final FleetIndex index; // Trams at each stop of each route
+    private volatile WriteAheadLog log; // Records the locations set, if attached
+
+    // Creates an empty store for routes with the passed numbers of stops
+    public TramRegistry(int[] routeLengths) {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(i);
+        }
+        routeCounts = new AtomicIntegerArray(routeLengths.length);
+        index = new FleetIndex(routeLengths, segments);
+    }
+
+    // Packs a route index and stop position into a location. Supports up to
+    // 32768 routes of up to 65536 stops each
+    public static int location(int routeIndex, int position) {
+        return routeIndex << POSITION_BITS | position;
+    }
+
+    // Returns the route index of a location
+    public static int routeIndex(int location) {
+        return location >>> POSITION_BITS;
+    }
+
+    // Returns the stop position of a location
+    public static int position(int location) {
+        return location & POSITION_MASK;
+    }
+
+    // Returns the location of a tram, or NOT_FOUND if the tram is not stored
+    public int get(long tramID) {
+        return segmentFor(tramID).get(tramID);
+    }
+
+    // Sets the location of a tram, adding it if it is not stored
+    public void put(long tramID, int location) {
+        segmentFor(tramID).put(tramID, location, routeCounts, index, log);
+    }
+
+    // Removes a tram, returning the boolean value of whether it was stored
+    public boolean remove(long tramID) {
+        return segmentFor(tramID).remove(tramID, routeCounts, index);
+    }
+
+    // Returns the number of trams on the route with the passed index
+    public int countOnRoute(int routeIndex) {
+        return routeCounts.get(routeIndex);
+    }
+
+    // Returns the index of the trams at each stop
+    public FleetIndex getIndex() {
+        return index;
+    }
+
+    // Returns the number of trams stored
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < routeCounts.length(); i++) {
+            size += routeCounts.get(i);
+        }
+        return size;
+    }
+
+    /*** State transfer ***/
+
+    // Writes the trams of one segment as a count followed by (tram ID,
+    // location) pairs. The segment is locked while it is copied
+    public void writeSegment(int index, DataOutput out) throws IOException {
+        segments[index].write(out);
+    }
+
+    // Adds the trams written by writeSegment
+    public void readSegment(DataInput in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long tramID = in.readLong();
+            put(tramID, in.readInt());
+        }
+    }
+
+    // Removes every tram, and every record of the write-ahead log
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear(routeCounts, index);
+        }
+        if (log != null) {
+            log.reset();
+        }
+    }
+
+    /*** Write-ahead log ***/
+
+    // Records every location set from now on in the passed log, which the
+    // store was rebuilt from
+    public void setLog(WriteAheadLog log) {
+        this.log = log;
+    }
+
+    public WriteAheadLog getLog() {
+        return log;
+    }
+
+    // The top bits of the hash choose the segment. The map within the segment
+    // uses the low bits to choose the slot
+    private Segment segmentFor(long tramID) {
+        return segments[(int) (LongIntHashMap.hash(tramID) >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    /*** One lock-guarded map of tram locations ***/
+    private static final class Segment {
+        private final LongIntHashMap locations = new LongIntHashMap(SEGMENT_CAPACITY);
+        private final int number; // Position among the segments, which splits the index too
+
+        Segment(int number) {
+            this.number = number;
+        }
+
+        synchronized int get(long tramID) {
+            return locations.get(tramID);
+        }
+
+        // Updates the route counts and index in the same lock so they always
+        // match the map. The location is logged first, so it is set only once
+        // recorded
+        synchronized void put(long tramID, int location, AtomicIntegerArray routeCounts,
+                FleetIndex index, WriteAheadLog log) {
+            if (log != null) {
+                log.append(tramID, location);
+            }
+            int previous = locations.put(tramID, location);
+            if (previous == NOT_FOUND) {
+                routeCounts.incrementAndGet(routeIndex(location));
+            }
+            else if (routeIndex(previous) != routeIndex(location)) {
+                routeCounts.decrementAndGet(routeIndex(previous));
+                routeCounts.incrementAndGet(routeIndex(location));
+            }
+            index.move(number, tramID, previous, location);
+        }
+
+        synchronized void write(DataOutput out) throws IOException {
+            out.writeInt(locations.size());
+            for (int slot = 0; slot < locations.capacity(); slot++) {
+                int location = locations.valueAt(slot);
+                if (location != NOT_FOUND) {
+                    out.writeLong(locations.keyAt(slot));
+                    out.writeInt(location);
+                }
+            }
+        }
+
+        synchronized void clear(AtomicIntegerArray routeCounts, FleetIndex index) {
+            for (int slot = 0; slot < locations.capacity(); slot++) {
+                int location = locations.valueAt(slot);
+                if (location != NOT_FOUND) {
+                    routeCounts.decrementAndGet(routeIndex(location));
+                }
+            }
+            locations.clear();
+            index.clear(number);
+        }
+
+        synchronized boolean remove(long tramID, AtomicIntegerArray routeCounts,
+                FleetIndex index) {
+            int previous = locations.remove(tramID);
+            if (previous == NOT_FOUND) {
+                return false;
+            }
+            routeCounts.decrementAndGet(routeIndex(previous));
+            index.move(number, tramID, previous, NOT_FOUND);
+            return true;
+        }
+    }
+}
@@ -1,65 +1,100 @@
 package tramsimulate;
 
-import java.util.HashMap;
-import java.util.Map;
-
-/*** Class for managing a single, linear tram route using a linked list ***/
+/*** Class for managing a single, linear tram route using a linked list.
+ *** Safe for use by concurrent request threads: the stops are never changed
+ *** after construction, and the tram locations are kept in the system-wide
+ *** TramRegistry, of which each route is a view.
+ *** 
+ *** On construction the list is also compiled into primitive tables indexed by
+ *** stop number and route position, so that checking a stop and finding the 
+ *** next stop each take a single array lookup rather than a list traversal ***/
 public class TramRoute {
-    private int maxTrams; // Maximum number of trams allowed on the route
-    private Map<Long, TramStop> trams; // trams in the route and their stop locations
-    private TramStop head; // first stop in the tram stop list 
-    private TramStop tail; // last stop in the tram stop list
-    private Map<Integer, TramStop> stopMap; // map for easily locating stops by their ids
+    private final int maxTrams; // Maximum number of trams allowed on the route
+    private final TramRegistry trams; // Locations of the trams in every route
+    private final int routeIndex; // Index of this route in the tram registry
+    private final TramStop head; // first stop in the tram stop list 
+    private final TramStop tail; // last stop in the tram stop list
+    
+    // (stop number -> route position + 1) table. 0 marks a stop not on the route
+    private final int[] positionByStop;
+    // Tram stops by route position
+    private final TramStop[] stopsByPosition;
+    // Next stop number from each route position for a tram going forward/backward
+    private final int[] forwardStops;
+    private final int[] backwardStops;
     
     // Constructs the new route, given a route number, a maximum tram limit,
-    // and an array representing the tram stops and their ordering
-    public TramRoute(int[] stopsArray, int maxTrams) {
+    // an array representing the tram stops and their ordering, and the registry
+    // holding the tram locations along with the index of the route within it
+    public TramRoute(int[] stopsArray, int maxTrams, TramRegistry trams, int routeIndex) {
         this.maxTrams = maxTrams;
+        this.trams = trams;
+        this.routeIndex = routeIndex;
         
-        // Create the (stop number -> tram stop) mapping
-        stopMap = new HashMap<Integer, TramStop>();
+        // Size the (stop number -> position) table to fit the largest stop number
+        int maxStopNum = 0;
+        for (int num : stopsArray) {
+            maxStopNum = Math.max(maxStopNum, num);
+        }
+        positionByStop = new int[maxStopNum + 1];
+        stopsByPosition = new TramStop[stopsArray.length];
 
         // Create the tram stop linked list
         TramStop previousStop = null;
-        for (int num : stopsArray) {
+        for (int i = 0; i < stopsArray.length; i++) {
+            int num = stopsArray[i];
             // Create a new stop, setting its number and previous stop link
             TramStop newStop = new TramStop(num, previousStop);
             
-            // Add it to the map for finding stops by their IDs
-            stopMap.put(num, newStop);
+            // Record its position for finding stops by their IDs
+            stopsByPosition[i] = newStop;
+            if (positionByStop[num] == 0) {
+                positionByStop[num] = i + 1;
+            }
 
             // Link the previous stop with the new stop
             if (previousStop != null) {
                 previousStop.setNext(newStop);
             }
             
-            // When there is no previous stop, this is the first. Set it as the list head
-            else {
-                head = newStop;
-            }
-            
-            // If this is the last stop in the route, set it as the tail
-            if (num == stopsArray[stopsArray.length - 1]) {
-                tail = newStop;
-            }
-            
             // Set the new previous for the next iteration
             previousStop = newStop;
         }
         
-        // Create the maps for finding trams locations by their ids
-        trams = new HashMap<Long, TramStop>();
-            
+        // The first and last stops of the list are its head and tail
+        head = stopsByPosition[0];
+        tail = stopsByPosition[stopsArray.length - 1];
+        
+        // Compile the next stop in each direction from each position
+        forwardStops = new int[stopsArray.length];
+        backwardStops = new int[stopsArray.length];
+        for (int i = 0; i < stopsArray.length; i++) {
+            forwardStops[i] = stopsByPosition[i].getNextStopForward().getNum();
+            backwardStops[i] = stopsByPosition[i].getNextStopBackward().getNum();
+        }
+    }
+    
+    // Returns the route position of a stop, or -1 if the stop is not on the route
+    public int positionOf(int stopNum) {
+        return stopNum >= 0 && stopNum < positionByStop.length ? 
+                positionByStop[stopNum] - 1 : -1;
     }
     
     // Check if a tram exists on the route
     public boolean tramExists(long tramID) {
-        return trams.containsKey(tramID);
+        int location = trams.get(tramID);
+        return location != TramRegistry.NOT_FOUND && 
+                TramRegistry.routeIndex(location) == routeIndex;
+    }
+    
+    // Returns the number of trams on the route
+    public int tramCount() {
+        return trams.countOnRoute(routeIndex);
     }
     
     // Check if the route is at maximum capacity (no new trams allowed)
     public boolean routeFull() {
-        return trams.size() >= maxTrams;
+        return trams.countOnRoute(routeIndex) >= maxTrams;
     }
     
     
@@ -68,44 +103,29 @@ public class TramRoute {
      *  the direction in which the tram is heading
      */
     public int getNextStop(int currStopNum, int prevStopNum) {
-            //throws TramRouteException 
-       
-        TramStop thisStop = head; // Get the first stop
+        int position = positionOf(currStopNum);
         
-        // Traverse the list to find the current stop
-        boolean error = false; // Terminates the loop if an error is found
-        while (thisStop != null && !error) {
-            
-            // If the correct stop has been found...
-            if (thisStop.getNum() == currStopNum) {
-                
-                // Check if the tram is going backward and if so return the next stop
-                if (thisStop.getNextStopForward().getNum() == prevStopNum ||
-                 // Tram is also going backward if it at the end, and there is no previous stop
-                        prevStopNum == 0 && currStopNum == tail.getNum()) {
-                    return thisStop.getNextStopBackward().getNum();
-                }
-                
-                // Check if the tram is going forward and if so return the next stop
-                else if (thisStop.getNextStopBackward().getNum() == prevStopNum ||
-                // Tram is also going forward if it at the start, and there is no previous stop
-                        prevStopNum == 0 && currStopNum == head.getNum()) {
-                    return thisStop.getNextStopForward().getNum();
-                }
-                else {
-                    // Otherwise, the stop request is not correct. End the loop
-                    error = true;
-                }
-            }
-            
-            // Keep repeating for each stop until the right stop is found
-            thisStop = thisStop.getNext();
+        // If the current stop is not on the route the request was incorrect
+        if (position < 0) {
+            return ServerCommsStub.SUBROUTINE_ERR;
+        }
+        
+        // Check if the tram is going backward and if so return the next stop
+        if (forwardStops[position] == prevStopNum ||
+         // Tram is also going backward if it at the end, and there is no previous stop
+                prevStopNum == 0 && currStopNum == tail.getNum()) {
+            return backwardStops[position];
+        }
+        
+        // Check if the tram is going forward and if so return the next stop
+        else if (backwardStops[position] == prevStopNum ||
+        // Tram is also going forward if it at the start, and there is no previous stop
+                prevStopNum == 0 && currStopNum == head.getNum()) {
+            return forwardStops[position];
         }
         
-        // If this point has been reached, then the request was incorrect
-        // Inform the caller. 
+        // Otherwise, the stop request is not correct. Inform the caller. 
         return ServerCommsStub.SUBROUTINE_ERR;
-       
     }
     
     /*** Updates a tram on the route 
@@ -116,11 +136,11 @@ public class TramRoute {
         boolean updateSuccess = true;
         
         // Get the new stop
-        TramStop newStop = stopMap.get(newStopID);
+        int position = positionOf(newStopID);
         
         // If the new stop exists on the route, set it as the tram's location
-        if (newStop != null) {
-            trams.put(tramID, newStop);
+        if (position >= 0) {
+            trams.put(tramID, TramRegistry.location(routeIndex, position));
         }
         
         // Return the boolean value of whether the update was a success
@@ -129,7 +149,7 @@ public class TramRoute {
     }
     
     public boolean stopExists(int stopID) {
-        return stopMap.containsKey(stopID);
+        return positionOf(stopID) >= 0;
     }
     
     
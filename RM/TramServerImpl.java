@@ -1,20 +1,33 @@
 package tramsimulate;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
-import java.rmi.NoSuchObjectException;
+import java.lang.management.ManagementFactory;
 import java.rmi.RemoteException;
+import java.io.File;
 import java.io.IOException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /** Main server class. Creates and registers a remote server object to 
- *  process requests from connecting clients **/
-public class TramServerImpl implements TramServer{
+ *  process requests from connecting clients. In primary-backup mode the same
+ *  object takes the replica control calls of the front end and the primary **/
+public class TramServerImpl implements TramServer, ReplicaControl {
     // Hardcoded RMI url of the server
     public static final String URL = "rmi://localhost/s3438465/TramServer/";
     private static int port;
+    // Directory of the write-ahead logs, each RM's in a directory named by its
+    // port. No log is kept unless set. Set with -Dtram.wal.dir
+    public static final String WAL_DIR = System.getProperty("tram.wal.dir");
     
-    // Process client communications and returns replies
+    // Process client communications and returns replies. Shared by every RMI
+    // thread, and safe for concurrent use
     private static ServerCommsStub handler; 
+    // Role and update log of this RM in primary-backup mode
+    private static PrimaryBackup replica;
+    // Snapshots of the state, null unless a write-ahead log is kept
+    private static SnapshotStore snapshots;
+    
+    // Reply message reused by each RMI thread. RMI serializes the returned
+    // reply on the calling thread before that thread takes another request
+    private static final ThreadLocal<Message> replies = ThreadLocal.withInitial(Message::new);
     
     // Singleton instance
     private static final TramServer instance = new TramServerImpl(port);
@@ -26,6 +39,7 @@ public class TramServerImpl implements TramServer{
         
         // Create the communications class, passing it a new tram system class
         handler = new ServerCommsStub(new RouteManager());	
+        replica = new PrimaryBackup(handler, URL);
     }
     
     public static TramServer getInstance() {
@@ -36,42 +50,85 @@ public class TramServerImpl implements TramServer{
     /** Main server entry method. Some code adapted from the Week 3 lab code **/
     public static void main(String[] args) {
     	try {
-	        // Kill the registry if it was created by a previous terminated instance
-	        try {
-	            UnicastRemoteObject.unexportObject(LocateRegistry.getRegistry(port), true);
-	            System.out.println("Existing registry object deleted");
-	        }
-	        catch (NoSuchObjectException e){
-	            System.out.println("No existing registry object.");
-	        }
-	        
 	        port = Integer.parseInt(args[0]);
 	        
-
+			replica.setLocalPort(port);
+			openWriteAheadLog();
 			TramServer server = getInstance();
-			// Register the the tram server for RMI usage
-			TramServer stub = (TramServer) UnicastRemoteObject.exportObject(server, port); 
-			Registry registry = LocateRegistry.createRegistry(port);
-			// Bind the server to the hardcoded url
-			registry.rebind(URL, (TramServer) stub);
+			// Make the tram server reachable over the selected transport
+			Transport.SELECTED.bind(server, port, URL);
 			
 			// Print the success message
-			System.out.println("Server bound to: " + URL);
+			System.out.println("Server bound to: " + Transport.SELECTED.describe(port, URL));
+			
+			registerMetrics();
 	
     	// Exit if the registry can't be reached		
 		} catch (RemoteException ex) {
 			System.err.println("Couldn't contact rmiregistry.");
 			ex.printStackTrace(); 
 			System.exit(1);		
+		// Exit rather than run without the log asked for
+		} catch (IOException ex) {
+			System.err.println("Couldn't open the write-ahead log: " + ex.getMessage());
+			System.exit(1);
 		}
     }
 
+    // Rebuilds the tram locations and open transactions from the newest
+    // snapshot and the write-ahead log after it, then records every location
+    // set in the log from then on and takes snapshots periodically
+    private static void openWriteAheadLog() throws IOException {
+        if (WAL_DIR == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        TramRegistry registry = handler.getRouteManager().getRegistry();
+        WriteAheadLog log = new WriteAheadLog(new File(WAL_DIR, "rm-" + port));
+        snapshots = new SnapshotStore(log, registry, handler.getActiveTransactions());
+        long fromSegment = snapshots.load();
+        long records = log.replay(registry, fromSegment);
+        registry.setLog(log);
+        // Snapshot straight away after replaying a log tail, so a run of
+        // restarts doesn't let the log grow
+        snapshots.start(records > 0);
+        EventLog.text(EventLog.Level.INFO, "Recovered " + registry.size() + " trams from "
+                + log.getDirectory() + " in " + (System.nanoTime() - start) / 1000000
+                + " ms, replaying " + records + " location records from log segment "
+                + fromSegment + ", syncing " + WriteAheadLog.FSYNC_POLICY);
+    }
+
+    // Registers the metrics MBean, named by port so that RMs on one host differ
+    private static void registerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMetrics(handler, replica, snapshots),
+                    new ObjectName("tramsimulate:type=ReplicationManager,port=" + port));
+        } catch (JMException e) {
+            System.err.println("Couldn't register metrics MBean: " + e.getMessage());
+        }
+    }
+
     // Method called by remote clients for communications
     public Message makeRequest(Message request) throws RemoteException {
         try {
             // Attempt to process a client request and return the serialized result
-            return handler.processMessage(request);
+            Message reply = replies.get();
+            if (ReplicationMode.SELECTED == ReplicationMode.PRIMARY_BACKUP) {
+                replica.processRequest(request, reply);
+            }
+            else if (!replica.transfer().isSynced()) {
+                return holdOrRefuse(request);
+            }
+            else {
+                handler.processMessage(request, reply);
+            }
+            handler.commitUpdates();
+            return reply;
 
+        // A backup turns away client requests, which only the primary takes,
+        // as does a replication manager that hasn't been synced yet
+        } catch (RemoteException e) {
+            throw e;
         // If a fatal marshalling error occurs such that the client cannot be properly
         // responded to, print an error and throw a remote exception
         } catch (IOException e) {
@@ -81,4 +138,75 @@ public class TramServerImpl implements TramServer{
         }
     }
     
+    // Method called by remote clients to send many requests in one call
+    public Message[] makeBatchRequest(Message[] requests) throws RemoteException {
+        try {
+            Message[] replies;
+            if (ReplicationMode.SELECTED == ReplicationMode.PRIMARY_BACKUP) {
+                replies = replica.processBatch(requests);
+            }
+            else if (!replica.transfer().isSynced()) {
+                replies = new Message[requests.length];
+                for (int i = 0; i < requests.length; i++) {
+                    replies[i] = holdOrRefuse(requests[i]);
+                }
+            }
+            else {
+                replies = handler.processBatch(requests);
+            }
+            handler.commitUpdates();
+            return replies;
+        } catch (RemoteException e) {
+            throw e;
+        } catch (IOException e) {
+            String error = "Could not process batch. Failure in marshalling data";
+            e.printStackTrace();
+            throw new RemoteException(error);
+        }
+    }
+    
+    // Holds a request that arrives while the state is copied from a peer, to
+    // be applied once it is in. Refuses it if no copy has been started, as
+    // the state is still empty
+    private static Message holdOrRefuse(Message request) throws RemoteException {
+        Message reply = replica.transfer().hold(request);
+        if (reply == null) {
+            throw new RemoteException("Replica state not synced");
+        }
+        return reply;
+    }
+    
+    /*** Replica control, used in primary-backup mode and to sync a
+     *   replication manager that starts empty ***/
+    
+    public long applyLog(long epoch, long firstSequence, Message[] entries) {
+        return replica.applyLog(epoch, firstSequence, entries);
+    }
+    
+    public long appliedSequence() {
+        return replica.appliedSequence();
+    }
+    
+    public void promote(long epoch, int[] backupPorts) throws RemoteException {
+        replica.promote(epoch, backupPorts);
+    }
+    
+    public long syncState() {
+        return replica.transfer().getState();
+    }
+    
+    public void syncFrom(int peerPort) {
+        replica.transfer().syncFrom(peerPort);
+    }
+    
+    public Message snapshotChunk(int chunk) throws RemoteException {
+        try {
+            return replica.transfer().snapshotChunk(chunk);
+        } catch (RemoteException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new RemoteException("Could not copy snapshot part " + chunk, e);
+        }
+    }
+    
 }
@@ -0,0 +1,152 @@
+package tramsimulate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*** Bounded table of the transactions that have had a next stop request but no
+ *** matching location update yet. Transactions left open by trams that crash or
+ *** retry are expired once they are older than the time-to-live, and the oldest
+ *** transaction is evicted when the table is full, so the table never grows
+ *** past its capacity.
+ ***
+ *** Each stripe of the table keeps its transactions in an ExpiringSlotPool,
+ *** so adding, removing and expiring a transaction each take constant time ***/
+public class TransactionTable {
+    // Time a transaction stays open without an update. Set with -Dtram.transactionTtlMillis
+    public static final long DEFAULT_TTL_MILLIS = Long.getLong("tram.transactionTtlMillis", 60000);
+    // Largest number of open transactions. Set with -Dtram.maxTransactions
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("tram.maxTransactions", 100000);
+
+    private static final int STRIPE_BITS = 4;
+    // Independently locked parts of the table, each copied as one part of a state snapshot
+    public static final int STRIPES = 1 << STRIPE_BITS;
+
+    private final ExpiringSlotPool[] stripes;
+    private final long ttlNanos;
+
+    // Creates a table using the configured time-to-live and capacity
+    public TransactionTable() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_CAPACITY);
+    }
+
+    // Creates a table with the passed time-to-live and capacity
+    public TransactionTable(long ttlMillis, int capacity) {
+        ttlNanos = ttlMillis * 1000000L;
+        stripes = new ExpiringSlotPool[STRIPES];
+        int stripeCapacity = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ExpiringSlotPool(stripeCapacity);
+        }
+    }
+
+    // Records a transaction as open, restarting its time-to-live if it already is
+    public void add(long transactionID) {
+        ExpiringSlotPool stripe = stripeFor(transactionID);
+        synchronized (stripe) {
+            long now = System.nanoTime();
+            stripe.expire(now, ttlNanos);
+            stripe.add(transactionID, now);
+        }
+    }
+
+    // Closes a transaction, returning the boolean value of whether it was open
+    public boolean remove(long transactionID) {
+        ExpiringSlotPool stripe = stripeFor(transactionID);
+        synchronized (stripe) {
+            stripe.expire(System.nanoTime(), ttlNanos);
+            return stripe.remove(transactionID);
+        }
+    }
+
+    // Returns the boolean value of whether a transaction is open
+    public boolean contains(long transactionID) {
+        ExpiringSlotPool stripe = stripeFor(transactionID);
+        synchronized (stripe) {
+            stripe.expire(System.nanoTime(), ttlNanos);
+            return stripe.find(transactionID) != ExpiringSlotPool.NONE;
+        }
+    }
+
+    /*** State transfer ***/
+
+    // Writes the open transactions of one stripe, oldest first, as a count
+    // followed by (transaction ID, age in nanoseconds) pairs
+    public void writeStripe(int index, DataOutput out) throws IOException {
+        ExpiringSlotPool stripe = stripes[index];
+        synchronized (stripe) {
+            long now = System.nanoTime();
+            stripe.expire(now, ttlNanos);
+            out.writeInt(stripe.size());
+            for (int slot = stripe.oldestSlot(); slot != ExpiringSlotPool.NONE;
+                    slot = stripe.newerSlot(slot)) {
+                out.writeLong(stripe.keyAt(slot));
+                out.writeLong(now - stripe.addedTime(slot));
+            }
+        }
+    }
+
+    // Opens the transactions written by writeStripe, keeping their ages
+    public void readStripe(DataInput in) throws IOException {
+        int count = in.readInt();
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long transactionID = in.readLong();
+            long addedTime = now - in.readLong();
+            ExpiringSlotPool stripe = stripeFor(transactionID);
+            synchronized (stripe) {
+                stripe.add(transactionID, addedTime);
+            }
+        }
+    }
+
+    // Closes every transaction
+    public void clear() {
+        for (ExpiringSlotPool stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /*** Gauges ***/
+
+    // Number of open transactions, after expiring any that are too old
+    public int liveCount() {
+        long now = System.nanoTime();
+        int live = 0;
+        for (ExpiringSlotPool stripe : stripes) {
+            synchronized (stripe) {
+                stripe.expire(now, ttlNanos);
+                live += stripe.size();
+            }
+        }
+        return live;
+    }
+
+    // Number of transactions expired since the table was created
+    public long expiredCount() {
+        long expired = 0;
+        for (ExpiringSlotPool stripe : stripes) {
+            synchronized (stripe) {
+                expired += stripe.expiredCount();
+            }
+        }
+        return expired;
+    }
+
+    // Number of transactions evicted because the table was full
+    public long evictedCount() {
+        long evicted = 0;
+        for (ExpiringSlotPool stripe : stripes) {
+            synchronized (stripe) {
+                evicted += stripe.evictedCount();
+            }
+        }
+        return evicted;
+    }
+
+    private ExpiringSlotPool stripeFor(long transactionID) {
+        return stripes[(int) (LongIntHashMap.hash(transactionID) >>> (Long.SIZE - STRIPE_BITS))];
+    }
+}
@@ -0,0 +1,63 @@
+package tramsimulate;
+
+import java.util.Arrays;
+
+/*** The ordered log of requests a replication manager has applied in
+ *   primary-backup mode, numbered from 1. Only the latest entries are kept,
+ *   in a ring, so a backup that falls further behind than the log reaches
+ *   can't be caught up from it. Not thread-safe; guarded by its owner. ***/
+public class UpdateLog {
+    private final Message[] entries;
+    private long first = 1; // Sequence number of the oldest entry kept
+    private long last = 0;  // Sequence number of the newest entry
+    
+    public UpdateLog(int capacity) {
+        entries = new Message[capacity];
+    }
+    
+    // Adds a request, returning its sequence number
+    public long append(Message request) {
+        last++;
+        entries[slot(last)] = request;
+        if (last - first >= entries.length) {
+            first = last - entries.length + 1;
+        }
+        return last;
+    }
+    
+    // Drops every entry, continuing the numbering after the passed sequence
+    // number. Used once the state the entries led to has been copied in
+    public void reset(long lastSequence) {
+        Arrays.fill(entries, null);
+        first = lastSequence + 1;
+        last = lastSequence;
+    }
+    
+    // Returns up to max entries starting at the passed sequence number, which
+    // must be kept in the log
+    public Message[] read(long from, int max) {
+        if (from < first) {
+            throw new IllegalArgumentException("Entry " + from + " is no longer kept");
+        }
+        int count = (int) Math.max(0, Math.min(max, last - from + 1));
+        Message[] read = new Message[count];
+        for (int i = 0; i < count; i++) {
+            read[i] = entries[slot(from + i)];
+        }
+        return read;
+    }
+    
+    // Returns the sequence number of the oldest entry kept
+    public long firstSequence() {
+        return first;
+    }
+    
+    // Returns the sequence number of the newest entry, 0 if there is none
+    public long lastSequence() {
+        return last;
+    }
+    
+    private int slot(long sequence) {
+        return (int) Math.floorMod(sequence, (long) entries.length);
+    }
+}
@@ -0,0 +1,356 @@
+package tramsimulate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*** Append-only log of the tram locations a replication manager sets, so that
+ *   its tram registry can be rebuilt after a restart. Each location set is a
+ *   16 byte record (tram ID, location, checksum) written into a memory-mapped
+ *   segment file, so appending is a few stores into the page cache, under a
+ *   lock held only for those stores. A segment that fills up is synced and
+ *   the next one is mapped. On startup the segments after the newest
+ *   snapshot (see SnapshotStore) are replayed in order, up to the first
+ *   record that fails its checksum, and the rest of the last segment is
+ *   zeroed before appending resumes there. The segments older than the snapshots
+ *   kept are deleted, so a restart never replays the log from its start.
+ *
+ *   Records survive a crash of the process as soon as they are written, as
+ *   they are in the page cache. When they also reach the disk is set by the
+ *   fsync policy:
+ *     NONE     - whenever the operating system writes the pages back
+ *     INTERVAL - a background thread syncs the records written every
+ *                -Dtram.wal.fsyncMillis, losing at most that much on a
+ *                power failure, at no cost to the requests
+ *     COMMIT   - a request isn't replied to until its records are synced.
+ *                Requests that arrive while a sync is running wait for the
+ *                next one, which covers all of them (group commit) ***/
+public class WriteAheadLog {
+    public enum FsyncPolicy {NONE, INTERVAL, COMMIT};
+    private static final int RECORD_BYTES = 16; // Tram ID, location and checksum
+
+    // Set with -Dtram.wal.fsync
+    public static final FsyncPolicy FSYNC_POLICY =
+            FsyncPolicy.valueOf(System.getProperty("tram.wal.fsync", "INTERVAL"));
+    // Milliseconds between syncs under INTERVAL. Set with -Dtram.wal.fsyncMillis
+    public static final long FSYNC_MILLIS = Long.getLong("tram.wal.fsyncMillis", 10);
+    // Size of each segment file. Set with -Dtram.wal.segmentBytes
+    public static final int SEGMENT_BYTES = Integer.getInteger("tram.wal.segmentBytes", 64 << 20)
+            / RECORD_BYTES * RECORD_BYTES;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File dir;
+
+    // Guarded by this
+    private long segmentNumber; // Number of the segment being written
+    private MappedByteBuffer segment;
+    private long segmentBase; // Log position of the start of the segment
+    private int offset; // Write offset within the segment
+
+    // Log position up to which records are written, and up to which they are synced
+    private volatile long written;
+    private volatile long synced;
+    // Guarded by syncLock. Whether a thread is syncing, for the others to wait on it
+    private final Object syncLock = new Object();
+    private boolean syncing = false;
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    // Opens the log kept in the passed directory, creating the directory if
+    // it doesn't exist. Nothing is appended until it is replayed
+    public WriteAheadLog(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create the log directory " + dir);
+        }
+    }
+
+    /*** Recovery ***/
+
+    // Sets the location of every tram recorded in the segments from the
+    // passed one on, in the order the records were written, then continues
+    // the log after its last valid record. Returns the number of records
+    // replayed. The earlier segments are covered by a snapshot
+    public synchronized long replay(TramRegistry registry, long fromSegment) throws IOException {
+        long replayed = 0;
+        for (long number : segmentNumbers()) {
+            if (number < fromSegment) {
+                continue;
+            }
+            if (segment != null) {
+                segmentBase += offset;
+            }
+            segment = map(number);
+            segmentNumber = number;
+            offset = 0;
+            while (offset + RECORD_BYTES <= segment.capacity()) {
+                long tramID = segment.getLong(offset);
+                int location = segment.getInt(offset + 8);
+                if (segment.getInt(offset + 12) != checksum(tramID, location)) {
+                    break;
+                }
+                registry.put(tramID, location);
+                offset += RECORD_BYTES;
+                replayed++;
+            }
+        }
+        if (segment == null) {
+            openSegment(0);
+        }
+        else {
+            clearTail();
+        }
+        written = segmentBase + offset;
+        synced = written;
+        records.add(replayed);
+
+        if (FSYNC_POLICY == FsyncPolicy.INTERVAL) {
+            Thread syncer = new Thread(this::syncPeriodically, "wal-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+        return replayed;
+    }
+
+    // Zeroes the segment after its last valid record, and syncs it if that
+    // changed anything, before records are appended there. After a power
+    // failure the pages of a segment can reach the disk out of order, leaving
+    // records from before the failure after a torn one. Those would pass
+    // their checksums once the new records fill the gap before them, and the
+    // next replay would set the trams back to where they were
+    private void clearTail() {
+        boolean cleared = false;
+        for (int i = offset; i + Long.BYTES <= segment.capacity(); i += Long.BYTES) {
+            if (segment.getLong(i) != 0) {
+                segment.putLong(i, 0);
+                cleared = true;
+            }
+        }
+        if (cleared) {
+            segment.force();
+            syncs.increment();
+        }
+    }
+
+    /*** Appending ***/
+
+    // Records that a tram is at the passed location. Fails only if a new
+    // segment can't be mapped, in which case the location isn't recorded
+    public synchronized void append(long tramID, int location) {
+        if (offset + RECORD_BYTES > segment.capacity()) {
+            nextSegment();
+        }
+        segment.putLong(offset, tramID);
+        segment.putInt(offset + 8, location);
+        segment.putInt(offset + 12, checksum(tramID, location));
+        offset += RECORD_BYTES;
+        written = segmentBase + offset;
+        records.increment();
+    }
+
+    /*** Snapshots ***/
+
+    // Syncs the segment being written and starts the next, returning its
+    // number. The records from it on are those a snapshot taken now misses
+    public synchronized long startSegment() {
+        nextSegment();
+        return segmentNumber;
+    }
+
+    // Deletes the segments before the passed one, which a snapshot covers
+    public synchronized void truncate(long beforeSegment) {
+        for (long number : segmentNumbers()) {
+            if (number < beforeSegment && number != segmentNumber) {
+                segmentFile(number).delete();
+            }
+        }
+    }
+
+    // Returns whether the log holds the passed segment. A snapshot is only
+    // used while the segment after it is still in the log
+    public boolean hasSegment(long number) {
+        return segmentFile(number).isFile();
+    }
+
+    // Returns the log position of the last record written, which only grows
+    public long position() {
+        return written;
+    }
+
+    // Deletes every record, for the registry that was just cleared
+    public synchronized void reset() {
+        for (long number : segmentNumbers()) {
+            segmentFile(number).delete();
+        }
+        try {
+            openSegment(segmentNumber + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't start a new log segment", e);
+        }
+        synchronized (syncLock) {
+            synced = Math.max(synced, written);
+        }
+    }
+
+    // Under COMMIT, waits until the records written so far are synced. Returns
+    // straight away under the other policies
+    public void commit() {
+        if (FSYNC_POLICY == FsyncPolicy.COMMIT) {
+            awaitSynced(written);
+        }
+    }
+
+    // Waits until the log is synced up to the passed position, syncing it
+    // unless another thread already is. A thread that finds a sync running
+    // waits for it, and the first of those to wake syncs whatever the
+    // others wrote meanwhile, so a sync covers all the requests waiting
+    private void awaitSynced(long position) {
+        synchronized (syncLock) {
+            while (true) {
+                if (synced >= position) {
+                    return;
+                }
+                if (!syncing) {
+                    syncing = true;
+                    break;
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        long reached = synced;
+        try {
+            reached = sync();
+        } finally {
+            synchronized (syncLock) {
+                synced = Math.max(synced, reached);
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    // Forces the records written since the last sync to the disk, returning
+    // the position synced up to. Earlier segments were synced when filled
+    private long sync() {
+        MappedByteBuffer mapped;
+        long base;
+        int end;
+        synchronized (this) {
+            mapped = segment;
+            base = segmentBase;
+            end = offset;
+        }
+        int start = (int) Math.max(0, synced - base);
+        if (end > start) {
+            mapped.force(start, end - start);
+            syncs.increment();
+        }
+        return base + end;
+    }
+
+    private void syncPeriodically() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(FSYNC_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            awaitSynced(written);
+        }
+    }
+
+    // Syncs the full segment and maps the next. Called with this locked
+    private void nextSegment() {
+        segment.force();
+        syncs.increment();
+        synchronized (syncLock) {
+            synced = Math.max(synced, written);
+        }
+        try {
+            openSegment(segmentNumber + 1);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't start a new log segment", e);
+        }
+    }
+
+    // Maps a new, empty segment after the current one. Called with this locked
+    private void openSegment(long number) throws IOException {
+        MappedByteBuffer mapped = map(number);
+        segmentBase += offset;
+        offset = 0;
+        segmentNumber = number;
+        segment = mapped;
+        written = segmentBase;
+    }
+
+    private MappedByteBuffer map(long number) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(segmentFile(number).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(channel.size(), SEGMENT_BYTES));
+        }
+    }
+
+    private File segmentFile(long number) {
+        return new File(dir, String.format("%s%012d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    // Returns the numbers of the segment files in the directory, in order
+    private long[] segmentNumbers() {
+        String[] names = dir.list((parent, name) ->
+                name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            numbers[i] = Long.parseLong(names[i].substring(SEGMENT_PREFIX.length(),
+                    names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    // Never 0, so that the unwritten, zeroed end of a segment isn't a record
+    private static int checksum(long tramID, int location) {
+        long hash = LongIntHashMap.hash(tramID ^ (long) location << 17);
+        int checksum = (int) (hash ^ hash >>> 32);
+        return checksum == 0 ? 1 : checksum;
+    }
+
+    /*** Gauges ***/
+
+    // Records written since the log was opened, including those replayed
+    public long recordCount() {
+        return records.sum();
+    }
+
+    // Times records were forced to the disk
+    public long syncCount() {
+        return syncs.sum();
+    }
+
+    // Bytes written that aren't synced yet
+    public long unsyncedBytes() {
+        return Math.max(0, written - synced);
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+}
@@ -0,0 +1,198 @@
+package tramsimulate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*** Metrics of the front end: the client requests it answers and the calls it
+ *   makes to each replication manager. Recorded by the replication comms
+ *   manager without locks, and read by the MBean only when it is queried ***/
+public class FrontEndMetrics implements FrontEndMetricsMXBean {
+    private final RequestMetrics requests = new RequestMetrics();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder unavailable = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchRequests = new LongAdder();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    
+    // Per replication manager, indexed as in the replication comms manager
+    private final LatencyHistogram[] callLatencies;
+    private final LongAdder[] callFailures;
+    private final AtomicIntegerArray outstandingCalls; // Calls in flight to the RM
+    private final AtomicIntegerArray replicaUp; // 1 if the RM is up
+    private final AtomicIntegerArray replicaSyncing; // 1 while the RM takes a state transfer
+    private final LongAdder[] upTransitions;
+    private final LongAdder[] downTransitions;
+    
+    // Creates the metrics for the passed number of replication managers
+    public FrontEndMetrics(int replicaCount) {
+        callLatencies = new LatencyHistogram[replicaCount];
+        callFailures = new LongAdder[replicaCount];
+        outstandingCalls = new AtomicIntegerArray(replicaCount);
+        replicaUp = new AtomicIntegerArray(replicaCount);
+        replicaSyncing = new AtomicIntegerArray(replicaCount);
+        upTransitions = new LongAdder[replicaCount];
+        downTransitions = new LongAdder[replicaCount];
+        for (int i = 0; i < replicaCount; i++) {
+            callLatencies[i] = new LatencyHistogram();
+            callFailures[i] = new LongAdder();
+            upTransitions[i] = new LongAdder();
+            downTransitions[i] = new LongAdder();
+        }
+    }
+    
+    /*** Recording ***/
+    
+    // Called when a client request or batch arrives, and when it is answered
+    public void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+    
+    public void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+    
+    // Records a client request answered with a reply of the passed status
+    public void recordRequest(int procedure, int status, long nanos) {
+        requests.record(procedure, status, nanos);
+    }
+    
+    // Records a client request or batch that no replication manager answered
+    public void recordUnavailable() {
+        unavailable.increment();
+    }
+    
+    public void recordBatch(int size, long nanos) {
+        batches.increment();
+        batchRequests.add(size);
+        batchLatency.record(nanos);
+    }
+    
+    // Called when a call to a replication manager is made, and when it
+    // returns or fails for the last time
+    public void callStarted(int replica) {
+        outstandingCalls.incrementAndGet(replica);
+    }
+    
+    public void callFinished(int replica) {
+        outstandingCalls.decrementAndGet(replica);
+    }
+    
+    // Returns the calls in flight to a replication manager
+    public int outstandingCalls(int replica) {
+        return outstandingCalls.get(replica);
+    }
+    
+    // Records a successful call to a replication manager
+    public void recordCall(int replica, long nanos) {
+        callLatencies[replica].record(nanos);
+    }
+    
+    public void recordCallFailure(int replica) {
+        callFailures[replica].increment();
+    }
+    
+    // Records a replication manager going up or down
+    public void recordReplicaChange(int replica, boolean up) {
+        replicaUp.set(replica, up ? 1 : 0);
+        (up ? upTransitions : downTransitions)[replica].increment();
+    }
+    
+    // Records a replication manager starting or finishing a state transfer
+    public void recordReplicaSyncing(int replica, boolean syncing) {
+        replicaSyncing.set(replica, syncing ? 1 : 0);
+    }
+    
+    /*** MBean attributes ***/
+    
+    public Map<String, Long> getRequestCounts() {
+        return requests.requestCounts();
+    }
+    
+    public Map<String, Long> getErrorCounts() {
+        return requests.errorCounts();
+    }
+    
+    public Map<String, LatencySummary> getRequestLatencies() {
+        return requests.latencies();
+    }
+    
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+    
+    public long getUnavailableRequests() {
+        return unavailable.sum();
+    }
+    
+    public long getBatchCount() {
+        return batches.sum();
+    }
+    
+    public long getBatchRequestCount() {
+        return batchRequests.sum();
+    }
+    
+    public LatencySummary getBatchLatency() {
+        return new LatencySummary(batchLatency);
+    }
+    
+    public Map<String, LatencySummary> getReplicaCallLatencies() {
+        Map<String, LatencySummary> summaries = new LinkedHashMap<String, LatencySummary>();
+        for (int i = 0; i < callLatencies.length; i++) {
+            summaries.put(replicaName(i), new LatencySummary(callLatencies[i]));
+        }
+        return summaries;
+    }
+    
+    public Map<String, Long> getReplicaCallFailures() {
+        return sums(callFailures);
+    }
+    
+    public Map<String, Integer> getReplicaOutstandingCalls() {
+        Map<String, Integer> calls = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < outstandingCalls.length(); i++) {
+            calls.put(replicaName(i), outstandingCalls.get(i));
+        }
+        return calls;
+    }
+    
+    public Map<String, Boolean> getReplicaStatus() {
+        Map<String, Boolean> status = new LinkedHashMap<String, Boolean>();
+        for (int i = 0; i < replicaUp.length(); i++) {
+            status.put(replicaName(i), replicaUp.get(i) != 0);
+        }
+        return status;
+    }
+    
+    public Map<String, Boolean> getReplicaSyncing() {
+        Map<String, Boolean> syncing = new LinkedHashMap<String, Boolean>();
+        for (int i = 0; i < replicaSyncing.length(); i++) {
+            syncing.put(replicaName(i), replicaSyncing.get(i) != 0);
+        }
+        return syncing;
+    }
+    
+    public Map<String, Long> getReplicaUpTransitions() {
+        return sums(upTransitions);
+    }
+    
+    public Map<String, Long> getReplicaDownTransitions() {
+        return sums(downTransitions);
+    }
+    
+    private static Map<String, Long> sums(LongAdder[] adders) {
+        Map<String, Long> sums = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < adders.length; i++) {
+            sums.put(replicaName(i), adders[i].sum());
+        }
+        return sums;
+    }
+    
+    // Replication managers are numbered from 1, as in the status output
+    private static String replicaName(int replica) {
+        return "RM" + (replica + 1);
+    }
+}
@@ -0,0 +1,49 @@
+package tramsimulate;
+
+import java.util.Map;
+
+/*** Management interface of the front end's metrics, registered with the
+ *   platform MBean server as tramsimulate:type=FrontEnd ***/
+public interface FrontEndMetricsMXBean {
+    // (Procedure name -> number of client requests answered)
+    Map<String, Long> getRequestCounts();
+    
+    // (Error message -> number of client requests answered with it)
+    Map<String, Long> getErrorCounts();
+    
+    // (Procedure name -> client request latency percentiles, through the RMs)
+    Map<String, LatencySummary> getRequestLatencies();
+    
+    // Client requests and batches being processed
+    int getInFlightRequests();
+    
+    // Client requests that failed because no RM replied
+    long getUnavailableRequests();
+    
+    long getBatchCount();
+    
+    long getBatchRequestCount();
+    
+    LatencySummary getBatchLatency();
+    
+    // (RM name -> latency percentiles of successful calls to the RM)
+    Map<String, LatencySummary> getReplicaCallLatencies();
+    
+    // (RM name -> failed calls to the RM, each retried or marking the RM down)
+    Map<String, Long> getReplicaCallFailures();
+    
+    // (RM name -> calls to the RM in flight, which queries are balanced by)
+    Map<String, Integer> getReplicaOutstandingCalls();
+    
+    // (RM name -> whether the RM is up)
+    Map<String, Boolean> getReplicaStatus();
+    
+    // (RM name -> whether the RM is taking a state transfer, and isn't read from)
+    Map<String, Boolean> getReplicaSyncing();
+    
+    // (RM name -> times the RM came up)
+    Map<String, Long> getReplicaUpTransitions();
+    
+    // (RM name -> times the RM went down)
+    Map<String, Long> getReplicaDownTransitions();
+}
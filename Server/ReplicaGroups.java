@@ -0,0 +1,353 @@
+package tramsimulate;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*** Splits the routes between replica groups, so that adding a group adds
+ *   capacity rather than only redundancy. Each group is a set of replication
+ *   managers that all hold the state of the group's routes, with its own
+ *   ReplicationCommsManager, so each group keeps the usual fail-over: it
+ *   serves its routes while at least one of its replication managers is up.
+ *   A request goes only to the group that owns the route in its first
+ *   argument, which every procedure takes as the route ID. Routes are given
+ *   to groups by an explicit map, and any route not in it by a hash of its ID.
+ *   The fleet queries by tram or by stop may find trams in any group, so a
+ *   tram's position is asked of each group in turn until one has the tram,
+ *   and the trams at a stop are paged through one group after another, the
+ *   group being kept in the top bits of the cursor. These queries skip a
+ *   group whose replication managers are all down, leaving out its trams,
+ *   and fail only if no group can answer. With a single group, requests are
+ *   passed on without being read. ***/
+public class ReplicaGroups implements TramCommsInterface {
+    // Group of a query whose trams may be in any group
+    private static final int ANY_GROUP = -1;
+    // Bits of a stop query cursor below the group, which the cursor of the
+    // group's ReplicationCommsManager fits in
+    private static final int CURSOR_GROUP_SHIFT = ReplicationCommsManager.CURSOR_REPLICA_SHIFT
+            + ReplicationCommsManager.CURSOR_REPLICA_BITS;
+    private static final long GROUP_CURSOR_MASK = (1L << CURSOR_GROUP_SHIFT) - 1;
+
+    private final ReplicationCommsManager[] groups;
+    private final Map<Long, Integer> routeGroups; // Routes placed in a group explicitly
+    // Sends the parts of a batch that belong to other groups at the same time
+    private final ExecutorService batchFanout;
+
+    // Objects reused by each request thread to read the route of a request
+    private static class DecodeScratch {
+        final RPCMessage message = new RPCMessage();
+        final RPCMessage reply = new RPCMessage();
+        final WireBuffer reader = new WireBuffer(null, 0);
+    }
+    private final ThreadLocal<DecodeScratch> scratch =
+            ThreadLocal.withInitial(DecodeScratch::new);
+
+    /*** Starts communications with each group of replication managers
+     * @param ports - ports of the replication managers of each group
+     * @param url - the rmi url all replication managers use
+     * @param routeGroups - group of each route placed explicitly
+     */
+    public ReplicaGroups(int[][] ports, String url, Map<Long, Integer> routeGroups) {
+        for (Map.Entry<Long, Integer> entry : routeGroups.entrySet()) {
+            if (entry.getValue() < 0 || entry.getValue() >= ports.length) {
+                throw new IllegalArgumentException("Route " + entry.getKey() +
+                        " is placed in group " + entry.getValue() + " of " + ports.length);
+            }
+        }
+        this.routeGroups = routeGroups;
+
+        groups = new ReplicationCommsManager[ports.length];
+        int replicas = 0;
+        for (int i = 0; i < ports.length; i++) {
+            groups[i] = new ReplicationCommsManager(ports[i], url, replicas);
+            replicas += ports[i].length;
+        }
+        batchFanout = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "group-fanout");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Returns the number of groups
+    public int size() {
+        return groups.length;
+    }
+
+    // Returns the communications of a group, whose metrics are its MBean
+    public ReplicationCommsManager group(int index) {
+        return groups[index];
+    }
+
+    // Returns the group that owns a route
+    public int groupOf(long routeID) {
+        Integer group = routeGroups.get(routeID);
+        if (group != null) {
+            return group;
+        }
+        // Spread the route IDs, which are small and clustered, before taking the group
+        return Math.floorMod(Long.hashCode(routeID * 0x9E3779B97F4A7C15L), groups.length);
+    }
+
+    /*** Replicates a request to the group that owns its route, or to the
+     *   groups a query by tram or stop needs
+     * @throws RemoteException thrown on communication failure with the group's RMs
+     * @throws IOException thrown on unmarshalling failure of request
+     */
+    public Message replicateRequest(Message request) throws RemoteException, IOException {
+        int group = groupOf(request);
+        if (group != ANY_GROUP) {
+            return groups[group].replicateRequest(request);
+        }
+        RPCMessage unpacked = scratch.get().message;
+        if (unpacked.getProcedureID() == TRAM_POSITION) {
+            return findTram(request);
+        }
+        return stopPage(request, unpacked);
+    }
+
+    // Asks each group in turn for the position of a tram, returning the
+    // first reply that found it, or the last reply if none did. A group that
+    // is down is skipped, failing only if no group answered
+    private Message findTram(Message request) throws RemoteException, IOException {
+        DecodeScratch thread = scratch.get();
+        Message reply = null;
+        RemoteException failure = null;
+        for (ReplicationCommsManager group : groups) {
+            Message groupReply;
+            try {
+                groupReply = group.replicateRequest(request);
+            } catch (RemoteException e) {
+                failure = e;
+                continue;
+            }
+            reply = groupReply;
+            reply.unmarshal(thread.reply, thread.reader);
+            if (thread.reply.getStatus() != FLAG_UNREG_TRAM) {
+                break;
+            }
+        }
+        if (reply == null) {
+            throw failure;
+        }
+        return reply;
+    }
+
+    // Gets a page of the trams at a stop from the group in the top bits of
+    // the cursor, and points the reply's cursor at the next page, in the same
+    // group or from the start of the next. A group that is down is skipped
+    // for the start of the next. If no group from there on can answer, an
+    // empty last page ends a query that already had pages from earlier
+    // groups, and a query that had none fails
+    private Message stopPage(Message request, RPCMessage unpacked)
+            throws RemoteException, IOException {
+        long[] args = unpacked.getArgs();
+        long cursor = args[1];
+        int group = (int) (cursor >>> CURSOR_GROUP_SHIFT);
+        if (cursor < 0 || group >= groups.length) {
+            // Not a cursor this gave out. The first group replies to it
+            // with an empty last page
+            return groups[0].replicateRequest(request);
+        }
+        int firstGroup = group;
+        Message groupReply = null;
+        RemoteException failure = null;
+        while (groupReply == null) {
+            if (group == groups.length) {
+                if (cursor == 0) {
+                    throw failure;
+                }
+                Message lastPage = new Message();
+                lastPage.marshal(new RPCMessage(unpacked, new long[] {0}, FLAG_SUCCESS),
+                        request.getVersion());
+                return lastPage;
+            }
+            Message groupRequest = new Message();
+            groupRequest.marshal(unpacked.withArgs(new long[] {args[0],
+                    group == firstGroup ? cursor & GROUP_CURSOR_MASK : 0}),
+                    request.getVersion());
+            try {
+                groupReply = groups[group].replicateRequest(groupRequest);
+            } catch (RemoteException e) {
+                failure = e;
+                group++;
+            }
+        }
+
+        RPCMessage reply = scratch.get().reply;
+        groupReply.unmarshal(reply, scratch.get().reader);
+        long[] values = reply.getArgs();
+        if (reply.getStatus() != FLAG_SUCCESS || values.length == 0) {
+            return groupReply;
+        }
+        values = values.clone();
+        if (values[0] != 0) {
+            values[0] |= (long) group << CURSOR_GROUP_SHIFT;
+        } else if (group + 1 < groups.length) {
+            values[0] = (long) (group + 1) << CURSOR_GROUP_SHIFT;
+        }
+        Message result = new Message();
+        result.marshal(reply.withArgs(values), groupReply.getVersion());
+        return result;
+    }
+
+    /*** Replicates a batch by splitting it into one batch for each group that
+     *   owns a route in it, sent to the groups at the same time. Fails if any
+     *   of those groups fails, as the client retries the whole batch and the
+     *   replication managers answer the requests they already processed from
+     *   their reply caches. Queries by tram or stop are sent on their own
+     *   once the batches are answered.
+     * @return - Replies in the same order as the requests
+     * @throws RemoteException thrown on communication failure with a group's RMs
+     */
+    public Message[] replicateBatch(Message[] requests) throws RemoteException {
+        if (groups.length == 1) {
+            return groups[0].replicateBatch(requests);
+        }
+
+        // Find the group of each request and the size of each group's batch
+        int[] groupOfRequest = new int[requests.length];
+        int[] sizes = new int[groups.length];
+        for (int i = 0; i < requests.length; i++) {
+            groupOfRequest[i] = groupOf(requests[i]);
+            if (groupOfRequest[i] != ANY_GROUP) {
+                sizes[groupOfRequest[i]]++;
+            }
+        }
+        Message[][] batches = new Message[groups.length][];
+        for (int g = 0; g < groups.length; g++) {
+            batches[g] = new Message[sizes[g]];
+            sizes[g] = 0;
+        }
+        for (int i = 0; i < requests.length; i++) {
+            int g = groupOfRequest[i];
+            if (g != ANY_GROUP) {
+                batches[g][sizes[g]++] = requests[i];
+            }
+        }
+
+        // Send every group's batch at once. Groups with no requests have no reply
+        List<CompletableFuture<Message[]>> replies = 
+                new ArrayList<CompletableFuture<Message[]>>(groups.length);
+        for (int g = 0; g < groups.length; g++) {
+            replies.add(null);
+            if (batches[g].length != 0) {
+                ReplicationCommsManager group = groups[g];
+                Message[] batch = batches[g];
+                replies.set(g, CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return group.replicateBatch(batch);
+                    } catch (RemoteException e) {
+                        throw new CompletionException(e);
+                    }
+                }, batchFanout));
+            }
+        }
+
+        // Put the replies back in the order of the requests
+        Message[][] groupReplies = new Message[groups.length][];
+        for (int g = 0; g < groups.length; g++) {
+            if (replies.get(g) != null) {
+                try {
+                    groupReplies[g] = replies.get(g).join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RemoteException) {
+                        throw (RemoteException) e.getCause();
+                    }
+                    throw new RemoteException("Batch failed in replica group " + g, e.getCause());
+                }
+            }
+            sizes[g] = 0;
+        }
+        Message[] result = new Message[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            int g = groupOfRequest[i];
+            if (g != ANY_GROUP) {
+                result[i] = groupReplies[g][sizes[g]++];
+                continue;
+            }
+            try {
+                result[i] = replicateRequest(requests[i]);
+            } catch (IOException e) {
+                throw new RemoteException("Batch query failed", e);
+            }
+        }
+        return result;
+    }
+
+    // Stops the heartbeats and fan-out threads of every group
+    public void shutdown() {
+        for (ReplicationCommsManager group : groups) {
+            group.shutdown();
+        }
+        batchFanout.shutdownNow();
+    }
+
+    // Returns the group of a request from its route, or ANY_GROUP for a
+    // well formed query by tram or stop, left read into the thread's scratch.
+    // A request that can't be read goes to the first group, which reports it
+    // as unmarshallable
+    private int groupOf(Message request) {
+        if (groups.length == 1) {
+            return 0;
+        }
+        DecodeScratch thread = scratch.get();
+        try {
+            request.unmarshal(thread.message, thread.reader);
+        } catch (IOException e) {
+            return 0;
+        }
+        long[] args = thread.message.getArgs();
+        short procedure = thread.message.getProcedureID();
+        if (procedure == TRAM_POSITION && args.length == 1 ||
+                procedure == TRAMS_AT_STOP && args.length == 2) {
+            return ANY_GROUP;
+        }
+        return args.length == 0 ? 0 : groupOf(args[0]);
+    }
+
+    /*** Configuration ***/
+
+    /*** Parses the ports of each group, written as comma separated ports with
+     *   the groups separated by semicolons, e.g. "8465,8466;8467,8468".
+     *   Returns a single group of the default ports if there is no spec ***/
+    public static int[][] parseGroups(String spec, int[] defaultPorts) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return new int[][] {defaultPorts};
+        }
+        String[] groupSpecs = spec.split(";");
+        int[][] ports = new int[groupSpecs.length][];
+        for (int g = 0; g < groupSpecs.length; g++) {
+            String[] portSpecs = groupSpecs[g].split(",");
+            ports[g] = new int[portSpecs.length];
+            for (int i = 0; i < portSpecs.length; i++) {
+                ports[g][i] = Integer.parseInt(portSpecs[i].trim());
+            }
+        }
+        return ports;
+    }
+
+    /*** Parses routes placed in groups explicitly, written as comma separated
+     *   route=group pairs with groups numbered from 0, e.g. "1=0,96=1" ***/
+    public static Map<Long, Integer> parseRouteGroups(String spec) {
+        Map<Long, Integer> routeGroups = new HashMap<Long, Integer>();
+        if (spec == null || spec.trim().isEmpty()) {
+            return routeGroups;
+        }
+        for (String pair : spec.split(",")) {
+            String[] parts = pair.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected route=group, got " + pair);
+            }
+            routeGroups.put(Long.parseLong(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        }
+        return routeGroups;
+    }
+}
@@ -4,85 +4,450 @@ package tramsimulate;
 import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /*** Helper class for handling communications between replication managers ***/
 public class ReplicationCommsManager {
     public static final int MAX_SEND_ATTEMPTS = 5;
+    // Milliseconds between background replica heartbeats. Set with -Dtram.heartbeatMillis
+    public static final long HEARTBEAT_INTERVAL = Long.getLong("tram.heartbeatMillis", 2000);
     
-    private TramServer[] replications; //Replication manager remote object array
+    /*** Decides when a request sent to the replication managers is complete.
+     *   SEQUENTIAL contacts each RM in turn. The other policies send to every
+     *   active RM at once and return to the client after the first successful
+     *   reply (FIRST), replies from a majority of the active RMs (MAJORITY) or
+     *   replies from all of them (ALL). Calls still outstanding at that point
+     *   finish in the background. Fleet queries change nothing, so whatever
+     *   the policy each is sent to just one RM, chosen by the read balancing
+     *   policy. ***/
+    public enum ReplyPolicy {SEQUENTIAL, FIRST, MAJORITY, ALL};
+    // Policy used for every request. Set with -Dtram.replyPolicy
+    public static final ReplyPolicy REPLY_POLICY = 
+            ReplyPolicy.valueOf(System.getProperty("tram.replyPolicy", "ALL"));
+    
+    /*** Chooses the replication manager a fleet query is sent to in active
+     *   mode, from those that are up and synced, by the calls each has in
+     *   flight from this front end. LEAST_OUTSTANDING takes the one with the
+     *   fewest, breaking ties at random. TWO_CHOICES takes the one with fewer
+     *   of two picked at random, which reads only two counters however many
+     *   RMs there are. A query that fails is sent to the next choice among
+     *   the RMs not yet tried. In primary-backup mode the primary answers
+     *   every query, as only it is sure to hold the latest locations. ***/
+    public enum ReadBalancing {LEAST_OUTSTANDING, TWO_CHOICES};
+    // Set with -Dtram.readBalancing
+    public static final ReadBalancing READ_BALANCING = 
+            ReadBalancing.valueOf(System.getProperty("tram.readBalancing", "LEAST_OUTSTANDING"));
+    
+    // Bits of a paged query cursor holding the replication manager that gave
+    // it out, above the replication manager's own cursor. Later pages are
+    // asked of the same RM, as a cursor only means something to the RM that
+    // gave it out
+    public static final int CURSOR_REPLICA_SHIFT = 48;
+    public static final int CURSOR_REPLICA_BITS = 6;
+    private static final long REPLICA_CURSOR_MASK = (1L << CURSOR_REPLICA_SHIFT) - 1;
+    
+    // Index of the primary in primary-backup mode, -1 while there is none
+    private volatile int primary = -1;
+    // Epoch of the last promotion, raised above the clock so that a restarted
+    // front end still promotes in a newer epoch. Guarded by this
+    private long epoch = 0;
+    
+    // Cached replication manager remote objects. A null entry marks the RM as down
+    private AtomicReferenceArray<TramServer> replications;
+    // 1 for each replication manager copying its state from a peer in active
+    // mode. It is sent every request, which it holds until the copy is in,
+    // but its replies aren't read
+    private final AtomicIntegerArray syncing;
     private String rmiUrl; // The rmi url all replication managers use
-    private boolean operational = false; // Indicates whether at least one server is available
     private int[] rmiPorts; // Unique ports for each replication manager registry
+    // Replication managers in earlier replica groups, so that the replication
+    // managers of every group are numbered apart in the log
+    private int firstReplica;
+    // Runs the periodic replica heartbeat off the request path
+    private ScheduledExecutorService monitor;
+    // Runs the concurrent calls to each replication manager
+    private ExecutorService fanout;
+    // Counts and latencies of client requests and replication manager calls
+    private final FrontEndMetrics metrics;
+    
+    // Objects reused by each request thread to read requests and replies
+    private static class DecodeScratch {
+        final RPCMessage message = new RPCMessage();
+        final WireBuffer reader = new WireBuffer(null, 0);
+    }
+    private final ThreadLocal<DecodeScratch> scratch = 
+            ThreadLocal.withInitial(DecodeScratch::new);
     
-    /*** Initializes communication variables with passed parameters 
+    // A call made to a single replication manager, such as a single request or a batch
+    private interface ReplicaCall<T> {
+        T call(TramServer server) throws RemoteException;
+    }
+    
+    /*** Initializes communication variables with passed parameters and starts
+     *   the background replica heartbeat
      * @param ports - integer array of port numbers for each rmi instance
      * @param url   - string of the rmi url all replication managers use
      */
     public ReplicationCommsManager(int[] ports, String url) {
+        this(ports, url, 0);
+    }
+    
+    /*** Initializes communications with one replica group, whose replication
+     *   managers are numbered after the passed number of earlier ones ***/
+    public ReplicationCommsManager(int[] ports, String url, int firstReplica) {
+        if (ports.length > 1 << CURSOR_REPLICA_BITS) {
+            throw new IllegalArgumentException("A replica group has at most " 
+                    + (1 << CURSOR_REPLICA_BITS) + " replication managers, not " + ports.length);
+        }
         // Set the server.policy path for allowing RMI communications
         System.setProperty("java.security.policy","./server.policy");
-        replications = new TramServer[ports.length];
+        replications = new AtomicReferenceArray<TramServer>(ports.length);
+        syncing = new AtomicIntegerArray(ports.length);
         rmiPorts = ports;
         rmiUrl = url;
+        this.firstReplica = firstReplica;
+        metrics = new FrontEndMetrics(ports.length);
+        
+        // Check the replicas once up front, then keep the cache fresh in the background
+        monitor = Executors.newSingleThreadScheduledExecutor(daemonThreads("replica-monitor"));
+        monitor.scheduleWithFixedDelay(this::checkReplicatedStatus, 0, 
+                HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        fanout = Executors.newCachedThreadPool(daemonThreads("replica-fanout"));
+    }
+    
+    // Returns the metrics, which are also the front end's MBean
+    public FrontEndMetrics getMetrics() {
+        return metrics;
+    }
+    
+    // Stops the background replica heartbeat and the fan-out threads
+    public void shutdown() {
+        monitor.shutdownNow();
+        fanout.shutdownNow();
+    }
+    
+    // Creates named daemon threads so the background work never keeps the JVM alive
+    private static ThreadFactory daemonThreads(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
-    /*** Replicates the passed client request by first checking which servers
-     *   are active and then passing the message to all active servers
+    /*** Replicates the passed client request by passing the message to all
+     *   servers the background heartbeat currently considers active
      * @param - Marshalled RPCMessage containing request parameters
      * @return - Marshalled RPCMessage containing reply parameters
      * @throws RemoteException thrown on communication failure with RMs
      * @throws IOException thrown on unmarshalling failure of request
      */
     public Message replicateRequest(Message request) throws RemoteException, IOException  {
-        // Find which replication managers are active and print the result
-        listTramService();
-        Message reply = null;
-
-        // Proceed only if at least one replication manager is active
-        if (operational) {
-            // Check if message can be unmarshalled correctly before attempting to pass to RMs
-            request.unmarshal();
-            
-            // Get a reply from all the active replication managers, taking only one
-            reply = getAllReplies(request);
-            // Null result indicates no server could process request
+        long start = System.nanoTime();
+        metrics.requestStarted();
+        try {
+            // If the cached view has no active replication managers, check again
+            // straight away rather than waiting for the next heartbeat
+            if (!isOperational()) {
+                checkReplicatedStatus();
+            }
+            Message reply = null;
+            int procedure = RequestMetrics.UNKNOWN_PROCEDURE;
+    
+            // Proceed only if at least one replication manager is active
+            if (isOperational()) {
+                // Check if message can be unmarshalled correctly before attempting to pass to RMs
+                DecodeScratch thread = scratch.get();
+                try {
+                    request.unmarshal(thread.message, thread.reader);
+                } catch (IOException e) {
+                    metrics.recordRequest(procedure, TramCommsInterface.FLAG_NO_MARTIAL, 
+                            System.nanoTime() - start);
+                    throw e;
+                }
+                procedure = thread.message.getProcedureID();
+                
+                // Get a reply from all the active replication managers, taking
+                // only one, or from just one of them for a query
+                reply = TramCommsInterface.isQuery(procedure) ? 
+                        getQueryReply(request, thread.message) :
+                        getAllReplies(server -> server.makeRequest(request));
+            }
+            // Throw appropriate exception when no replication managers could reply
             if (reply == null) {
-                operational = false;
+                metrics.recordUnavailable();
+                throw new RemoteException("Cannot process request: all replications down");
             }
+            
+            metrics.recordRequest(procedure, replyStatus(reply), System.nanoTime() - start);
+            return reply;
+        } finally {
+            metrics.requestFinished();
         }
-        // Throw appropriate exception when no replication managers are available
-        if (!operational) {
-            throw new RemoteException("Cannot process request: all replications down");
+    }
+    
+    // Returns the status of a reply, or FLAG_NO_MARTIAL if it can't be read
+    private short replyStatus(Message reply) {
+        DecodeScratch thread = scratch.get();
+        try {
+            reply.unmarshal(thread.message, thread.reader);
+            return thread.message.getStatus();
+        } catch (IOException e) {
+            return TramCommsInterface.FLAG_NO_MARTIAL;
+        }
+    }
+    
+    /*** Replicates a batch of client requests by passing the whole batch to 
+     *   each active server in one call. Fleet queries in the batch are taken
+     *   out of it and each sent to a single server, as when sent on their
+     *   own. Requests the replication managers cannot unmarshal are flagged
+     *   in their own replies.
+     * @param - Array of marshalled RPCMessages containing request parameters
+     * @return - Array of marshalled RPCMessages containing reply parameters,
+     *           in the same order as the requests
+     * @throws RemoteException thrown on communication failure with RMs
+     */
+    public Message[] replicateBatch(Message[] requests) throws RemoteException {
+        long start = System.nanoTime();
+        metrics.requestStarted();
+        try {
+            if (!isOperational()) {
+                checkReplicatedStatus();
+            }
+            Message[] replies = null;
+            
+            if (isOperational()) {
+                replies = getBatchReplies(requests);
+            }
+            if (replies == null) {
+                metrics.recordUnavailable();
+                throw new RemoteException("Cannot process batch: all replications down");
+            }
+            
+            metrics.recordBatch(requests.length, System.nanoTime() - start);
+            return replies;
+        } finally {
+            metrics.requestFinished();
         }
-
-        return reply;
+    }
+    
+    /*** Sends the requests of a batch other than fleet queries to the
+     *   replication managers in one call, then each query to a single one
+     *   through getQueryReply, so that queries are balanced and their cursors
+     *   pinned however they arrive.
+     * @param requests - Marshalled requests of the batch
+     * @return Replies in the order of the requests, null if the rest of the
+     *         batch or any query got no reply
+     * @throws RemoteException thrown if a query's cursor can't be rewritten
+     */
+    private Message[] getBatchReplies(Message[] requests) throws RemoteException {
+        DecodeScratch thread = scratch.get();
+        boolean[] isQuery = new boolean[requests.length];
+        int queries = 0;
+        for (int i = 0; i < requests.length; i++) {
+            try {
+                requests[i].unmarshal(thread.message, thread.reader);
+                isQuery[i] = TramCommsInterface.isQuery(thread.message.getProcedureID());
+            } catch (IOException e) {
+                // Left in the batch, for the replication managers to flag
+            }
+            if (isQuery[i]) {
+                queries++;
+            }
+        }
+        if (queries == 0) {
+            return getAllReplies(server -> server.makeBatchRequest(requests));
+        }
+        
+        Message[] rest = new Message[requests.length - queries];
+        for (int i = 0, r = 0; i < requests.length; i++) {
+            if (!isQuery[i]) {
+                rest[r++] = requests[i];
+            }
+        }
+        Message[] restReplies = rest.length == 0 ? rest :
+                getAllReplies(server -> server.makeBatchRequest(rest));
+        if (restReplies == null) {
+            return null;
+        }
+        Message[] replies = new Message[requests.length];
+        for (int i = 0, r = 0; i < requests.length; i++) {
+            if (!isQuery[i]) {
+                replies[i] = restReplies[r++];
+                continue;
+            }
+            try {
+                requests[i].unmarshal(thread.message, thread.reader);
+                replies[i] = getQueryReply(requests[i], thread.message);
+            } catch (IOException e) {
+                throw new RemoteException("Cannot process query in batch", e);
+            }
+            if (replies[i] == null) {
+                return null;
+            }
+        }
+        return replies;
     }
     
     /*** Attempts to communicate the passed request to each communication 
-     *   manager. If a communication fails, the remote object is nulled in
-     *   the replication manager array to indicate its down status.
-     * @param request - Marshalled RPCMessage containing request parameters
-     * @return Marshalled RPCMessage containing reply parameters, null on 
-     *         failure
+     *   manager according to the reply policy. If a communication fails, the 
+     *   remote object is nulled in the replication manager array to indicate 
+     *   its down status.
+     * @param call - Call that sends the request to a replication manager
+     * @return Reply of the call, null on failure
      */
-    private Message getAllReplies(Message request) {
+    private <T> T getAllReplies(ReplicaCall<T> call) {
+        if (ReplicationMode.SELECTED == ReplicationMode.PRIMARY_BACKUP) {
+            return getPrimaryReply(call);
+        }
+        if (REPLY_POLICY == ReplyPolicy.SEQUENTIAL) {
+            return getSequentialReplies(call);
+        }
+        return getParallelReplies(call);
+    }
+    
+    /*** Sends a fleet query to a single replication manager, chosen by the
+     *   read balancing policy, trying the next choice on failure. A later
+     *   page of a paged query goes back to the RM in its cursor while that
+     *   is up and synced, and the cursor of each page is marked with the RM
+     *   that gave it out.
+     * @param request - Marshalled query
+     * @param unpacked - The query, unmarshalled
+     * @return Reply of the replication manager, null if none could reply
+     * @throws IOException thrown if the query's cursor can't be rewritten
+     */
+    private Message getQueryReply(Message request, RPCMessage unpacked) throws IOException {
+        if (ReplicationMode.SELECTED == ReplicationMode.PRIMARY_BACKUP) {
+            return getPrimaryReply(server -> server.makeRequest(request));
+        }
+        // The paged queries take their cursor after the route or stop. A
+        // cursor this didn't give out is passed on whole, for the RM to
+        // answer with an empty last page
+        long[] args = unpacked.getArgs();
+        boolean paged = unpacked.getProcedureID() != TramCommsInterface.TRAM_POSITION
+                && args != null && args.length == 2;
+        int pinned = -1;
+        Message sent = request;
+        if (paged && args[1] != 0 && args[1] >>> CURSOR_REPLICA_SHIFT < replications.length()) {
+            pinned = (int) (args[1] >>> CURSOR_REPLICA_SHIFT);
+            sent = new Message();
+            sent.marshal(unpacked.withArgs(new long[] {args[0], args[1] & REPLICA_CURSOR_MASK}),
+                    request.getVersion());
+        }
+        
+        Message toSend = sent;
+        long tried = 0;
+        while (true) {
+            int index = pinned;
+            if (index < 0 || !readable(index) || (tried & 1L << index) != 0) {
+                index = chooseReplica(tried);
+            }
+            if (index < 0) {
+                return null;
+            }
+            tried |= 1L << index;
+            TramServer server = replications.get(index);
+            if (server == null) {
+                continue;
+            }
+            Message reply = getOneReply(s -> s.makeRequest(toSend), server, index);
+            if (reply == null) {
+                markDown(index, server);
+                continue;
+            }
+            return paged ? pinCursor(reply, index) : reply;
+        }
+    }
+    
+    // Returns whether a replication manager can answer queries: up and synced
+    private boolean readable(int index) {
+        return replications.get(index) != null && syncing.get(index) == 0;
+    }
+    
+    // Chooses a replication manager to send a query to by the read balancing
+    // policy, from those that can answer it and aren't in the passed mask of
+    // those tried already. Returns -1 if there is none
+    private int chooseReplica(long tried) {
+        int count = replications.length();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (READ_BALANCING == ReadBalancing.TWO_CHOICES) {
+            int first = random.nextInt(count);
+            int second = random.nextInt(count);
+            boolean firstOk = readable(first) && (tried & 1L << first) == 0;
+            boolean secondOk = readable(second) && (tried & 1L << second) == 0;
+            if (firstOk && secondOk) {
+                return metrics.outstandingCalls(second) < metrics.outstandingCalls(first) ?
+                        second : first;
+            }
+            if (firstOk || secondOk) {
+                return firstOk ? first : second;
+            }
+            // Neither can answer, so look through them all
+        }
+        // Start from a random replication manager so that ties are spread
+        int start = random.nextInt(count);
+        int best = -1;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for (int n = 0; n < count; n++) {
+            int i = (start + n) % count;
+            if ((tried & 1L << i) != 0 || !readable(i)) {
+                continue;
+            }
+            int calls = metrics.outstandingCalls(i);
+            if (calls < bestOutstanding) {
+                best = i;
+                bestOutstanding = calls;
+            }
+        }
+        return best;
+    }
+    
+    // Marks the cursor of a page with the replication manager that replied,
+    // unless it is the last page or the query failed
+    private Message pinCursor(Message reply, int index) throws IOException {
+        RPCMessage unpacked = scratch.get().message;
+        reply.unmarshal(unpacked, scratch.get().reader);
+        long[] values = unpacked.getArgs();
+        if (unpacked.getStatus() != TramCommsInterface.FLAG_SUCCESS 
+                || values.length == 0 || values[0] == 0) {
+            return reply;
+        }
+        values = values.clone();
+        values[0] |= (long) index << CURSOR_REPLICA_SHIFT;
+        Message result = new Message();
+        result.marshal(unpacked.withArgs(values), reply.getVersion());
+        return result;
+    }
+    
+    // Contacts each active replication manager in turn, returning the first reply
+    private <T> T getSequentialReplies(ReplicaCall<T> call) {
         // Initially assume the request failed
-        Message reply = null;
+        T reply = null;
         
         // Attempt to contact each replication
-        for (int i = 0; i < replications.length; i++) {
+        for (int i = 0; i < replications.length(); i++) {
+            TramServer server = replications.get(i);
             // Do not attempt if the replication manager is already down
-            if (replications[i] != null) {
-                Message thisReply = getOneReply(request, replications[i]);
+            if (server != null) {
+                boolean unread = syncing.get(i) != 0;
+                T thisReply = getOneReply(call, server, i);
                 // Null result indicates replication manager is down
                 if (thisReply == null) {
-                    replications[i] = null;
-                    System.out.printf("RM%d now down\n", i+1);
+                    markDown(i, server);
                 }
-                // Set the reply to the first non-null reply received
-                else if (reply == null) {
+                // Set the reply to the first non-null reply received from a
+                // replication manager that isn't syncing
+                else if (reply == null && !unread) {
                     reply = thisReply;
                 }
             }
@@ -91,82 +456,366 @@ public class ReplicationCommsManager {
         return reply;
     }
     
+    /*** Sends the request to the primary alone, which applies it and ships it
+     *   to the backups itself. If the primary fails, a caught-up backup is
+     *   promoted and the request is sent to it instead, which the new 
+     *   primary's reply cache answers if the old one had shipped it already.
+     * @param call - Call that sends the request to a replication manager
+     * @return Reply of the primary, null if no primary could reply
+     */
+    private <T> T getPrimaryReply(ReplicaCall<T> call) {
+        for (int attempt = 0; attempt < replications.length(); attempt++) {
+            int index = primary;
+            TramServer server = index < 0 ? null : replications.get(index);
+            if (server == null) {
+                server = electPrimary(index);
+                if (server == null) {
+                    return null;
+                }
+                index = primary;
+            }
+            T reply = getOneReply(call, server, index);
+            if (reply != null) {
+                return reply;
+            }
+            markDown(index, server);
+        }
+        return null;
+    }
+    
+    /*** Promotes the active replication manager that has applied the most of
+     *   the update log, unless another thread has already replaced the failed
+     *   primary. The others become its backups, including those that are down,
+     *   which it ships to once they are back.
+     * @param failed - Index of the primary that failed, -1 if there was none
+     * @return Remote object of the primary, null if none could be promoted
+     */
+    private synchronized TramServer electPrimary(int failed) {
+        if (primary != failed && primary >= 0 && replications.get(primary) != null) {
+            return replications.get(primary);
+        }
+        primary = -1;
+        
+        // Ask each active replication manager how much of the log it has
+        // applied. One that is copying a snapshot can't be promoted, and one
+        // that is still empty only when none has any state
+        long[] applied = new long[replications.length()];
+        long[] states = new long[replications.length()];
+        boolean anySynced = false;
+        for (int i = 0; i < replications.length(); i++) {
+            applied[i] = -1;
+            TramServer server = replications.get(i);
+            if (server != null) {
+                try {
+                    ReplicaControl control = (ReplicaControl) server;
+                    states[i] = control.syncState();
+                    applied[i] = control.appliedSequence();
+                    anySynced |= states[i] == ReplicaControl.STATE_SYNCED;
+                } catch (RemoteException e) {
+                    markDown(i, server);
+                }
+            }
+        }
+        for (int i = 0; i < applied.length; i++) {
+            if (states[i] == ReplicaControl.STATE_SYNCING 
+                    || anySynced && states[i] == ReplicaControl.STATE_EMPTY) {
+                applied[i] = -1;
+            }
+        }
+        
+        // Try the most caught up first, then the next
+        while (true) {
+            int best = -1;
+            for (int i = 0; i < applied.length; i++) {
+                if (applied[i] >= 0 && (best < 0 || applied[i] > applied[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            TramServer server = replications.get(best);
+            if (server == null) {
+                applied[best] = -1;
+                continue;
+            }
+            epoch = Math.max(epoch + 1, System.currentTimeMillis());
+            int[] backups = new int[rmiPorts.length - 1];
+            for (int i = 0, b = 0; i < rmiPorts.length; i++) {
+                if (i != best) {
+                    backups[b++] = rmiPorts[i];
+                }
+            }
+            try {
+                ((ReplicaControl) server).promote(epoch, backups);
+                primary = best;
+                EventLog.text(EventLog.Level.INFO, "RM" + (firstReplica + best + 1)
+                        + " promoted to primary in epoch " + epoch + " at log entry " 
+                        + applied[best]);
+                return server;
+            } catch (RemoteException e) {
+                markDown(best, server);
+                applied[best] = -1;
+            }
+        }
+    }
+    
+    /*** Sends the request to every active replication manager at once and 
+     *   waits only until the reply policy is met, or until every call has 
+     *   finished if too few replication managers reply to meet it.
+     * @param call - Call that sends the request to a replication manager
+     * @return The first reply received, null if no replication manager replied
+     */
+    private <T> T getParallelReplies(ReplicaCall<T> call) {
+        // Take a snapshot of the active replication managers, sending to
+        // those that are syncing without reading their replies
+        int active = 0;
+        TramServer[] servers = new TramServer[replications.length()];
+        CompletableFuture<Void> unread = null;
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = replications.get(i);
+            if (servers[i] != null && syncing.get(i) != 0) {
+                CompletableFuture<Void> sent = sendUnread(call, servers[i], i);
+                unread = unread == null ? sent : CompletableFuture.allOf(unread, sent);
+                servers[i] = null;
+            }
+            else if (servers[i] != null) {
+                active++;
+            }
+        }
+        if (active == 0) {
+            if (unread != null) {
+                unread.join();
+            }
+            return null;
+        }
+        
+        // Number of successful replies needed before the client is answered
+        int needed = REPLY_POLICY == ReplyPolicy.FIRST ? 1 :
+            REPLY_POLICY == ReplyPolicy.MAJORITY ? active / 2 + 1 : active;
+        
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        AtomicReference<T> firstReply = new AtomicReference<T>();
+        AtomicInteger replies = new AtomicInteger();
+        AtomicInteger outstanding = new AtomicInteger(active);
+        
+        for (int i = 0; i < servers.length; i++) {
+            if (servers[i] == null) {
+                continue;
+            }
+            int index = i;
+            TramServer server = servers[i];
+            fanout.execute(() -> {
+                T thisReply = getOneReply(call, server, index);
+                // Null result indicates replication manager is down
+                if (thisReply == null) {
+                    markDown(index, server);
+                }
+                // Keep the first reply, completing once enough have arrived
+                else {
+                    firstReply.compareAndSet(null, thisReply);
+                    if (replies.incrementAndGet() >= needed) {
+                        result.complete(firstReply.get());
+                    }
+                }
+                // Once every call has finished, complete with whatever was received
+                if (outstanding.decrementAndGet() == 0) {
+                    result.complete(firstReply.get());
+                }
+            });
+        }
+        
+        T reply = result.join();
+        if (unread != null) {
+            unread.join();
+        }
+        return reply;
+    }
+    
+    // Sends a request to a replication manager that is syncing, marking it
+    // down only if it can't be reached. The caller waits for the call to
+    // finish before answering the client, so that a tram's next request
+    // can't reach the replication manager ahead of this one
+    private <T> CompletableFuture<Void> sendUnread(ReplicaCall<T> call, TramServer server, 
+            int index) {
+        return CompletableFuture.runAsync(() -> {
+            if (getOneReply(call, server, index) == null) {
+                markDown(index, server);
+            }
+        }, fanout);
+    }
+    
     /*** Attempts to communicate the passed request to a single communication 
      *   manager, returning the reply. If a communication fails, the return value is null.
-     * @param request - Marshalled RPCMessage containing request parameters
+     * @param call - Call that sends the request to a replication manager
      * @param server - Remote object of the replication manager to process the request
-     * @return Marshalled RPCMessage containing reply parameters, null on 
-     *         failure
+     * @param index - Index of the replication manager, for its metrics
+     * @return Reply of the call, null on failure
      */
-    private Message getOneReply(Message request, TramServer server) {
-        Message reply = null;
+    private <T> T getOneReply(ReplicaCall<T> call, TramServer server, int index) {
+        T reply = null;
         // Keep track of the number of retries
         short tryCount = 0;
         
-        do {
-            try {
-                // Attempt to make the request
-                reply = server.makeRequest(request);
-            }
-            // Print a message on failure
-            catch (Exception e) {
-                System.err.println("Error communicating with TramServer: " + e.getMessage());
-            }
-            finally {
-                tryCount++;
-            }
-            // Continue looping until we receive a reply, or until we have reached
-            // the maximum number of retries
-        } while (reply == null && tryCount < MAX_SEND_ATTEMPTS);
+        metrics.callStarted(index);
+        try {
+            do {
+                long start = System.nanoTime();
+                try {
+                    // Attempt to make the request
+                    reply = call.call(server);
+                    metrics.recordCall(index, System.nanoTime() - start);
+                }
+                // Print a message on failure
+                catch (Exception e) {
+                    metrics.recordCallFailure(index);
+                    EventLog.text(EventLog.Level.WARN, 
+                            "Error communicating with TramServer: " + e.getMessage());
+                }
+                finally {
+                    tryCount++;
+                }
+                // Continue looping until we receive a reply, or until we have reached
+                // the maximum number of retries
+            } while (reply == null && tryCount < MAX_SEND_ATTEMPTS);
+        } finally {
+            metrics.callFinished(index);
+        }
         
         return reply;
     }
     
-    /*** Checks the status of the replication managers, printing the result ***/
+    // Returns the boolean value of whether at least one replication is active
+    private boolean isOperational() {
+        for (int i = 0; i < replications.length(); i++) {
+            if (replications.get(i) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Marks a replication manager as down, unless the heartbeat has already
+    // replaced the failed remote object with a fresh one
+    private void markDown(int index, TramServer failed) {
+        if (replications.compareAndSet(index, failed, null)) {
+            Transport.release(failed);
+            EventLog.replicaChange(firstReplica + index + 1, false);
+            metrics.recordReplicaChange(index, false);
+            listTramService();
+        }
+    }
+    
+    /*** Logs the status of the replication managers. Only called when the
+     *   status of a replication manager changes ***/
     private void listTramService() {
-        // First check each server's status
-        operational = checkReplicatedStatus();
-        
-        // Print the result
-        for (int i = 0; i < replications.length; i++) {
-            if (i != 0) {
-                System.out.printf(" | ");
+        long upMask = 0;
+        for (int i = 0; i < replications.length(); i++) {
+            if (replications.get(i) != null) {
+                upMask |= 1L << i;
             }
-            System.out.printf("RM%d %3s", i+1, replications[i] == null ? "off" : "on");
         }
-        System.out.println();
+        EventLog.replicaStatus(upMask, firstReplica, replications.length());
     }
 
-    /*** Checks the status of each replication manager, storing the status of 
-     *   each in the replication manager array. Returns false if all replications
-     *   are down
-     * @return boolean value of whether at least one replication is active
+    /*** Checks whether a replication manager found by the heartbeat holds the
+     *   fleet state, before it is read from. One that is empty is told to copy
+     *   the state of a replication manager that is up and synced, and is
+     *   marked syncing until it reports the copy is in. The first replication
+     *   manager of a group to come up, with no synced peer, starts the state.
+     *   Called by the heartbeat in active mode, before the RM is cached.
+     * @return The remote object, null if the replication manager can't be reached
      */
-    private boolean checkReplicatedStatus() {
-        boolean systemOperable = false;
+    private TramServer checkSync(int index, TramServer server) {
+        try {
+            ReplicaControl control = (ReplicaControl) server;
+            long state = control.syncState();
+            if (state == ReplicaControl.STATE_EMPTY) {
+                int peer = syncedPeer(index);
+                control.syncFrom(peer < 0 ? 0 : rmiPorts[peer]);
+                if (peer >= 0) {
+                    state = ReplicaControl.STATE_SYNCING;
+                    EventLog.text(EventLog.Level.INFO, "RM" + (firstReplica + index + 1)
+                            + " syncing from RM" + (firstReplica + peer + 1));
+                }
+            }
+            boolean nowSyncing = state == ReplicaControl.STATE_SYNCING;
+            if ((syncing.getAndSet(index, nowSyncing ? 1 : 0) != 0) != nowSyncing) {
+                metrics.recordReplicaSyncing(index, nowSyncing);
+                if (!nowSyncing) {
+                    EventLog.text(EventLog.Level.INFO, "RM" + (firstReplica + index + 1) 
+                            + " synced");
+                }
+            }
+            return server;
+        } catch (RemoteException e) {
+            return null;
+        }
+    }
+    
+    // Returns a replication manager other than the passed one that is up and
+    // synced, or -1 if there is none
+    private int syncedPeer(int index) {
+        for (int i = 0; i < replications.length(); i++) {
+            if (i != index && replications.get(i) != null && syncing.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /*** Heartbeat that checks the status of each replication manager, caching
+     *   the remote object of each active one in the replication manager array.
+     *   RMI stubs are retrieved again each time; NIO connections are kept 
+     *   while they stay open.
+     *   Run periodically by the monitor thread, and directly by a request that
+     *   finds every replication down. The status is printed only on change. ***/
+    private synchronized void checkReplicatedStatus() {
+        boolean changed = false;
         
-        //Get the RMI registers created by the replication managers
-        for (int i = 0; i < replications.length; i++) {
+        //Get the remote objects of the replication managers
+        for (int i = 0; i < replications.length(); i++) {
+            // Keep a connection that is still open rather than reconnecting,
+            // only checking whether a replication manager syncing on it is done
+            TramServer server = replications.get(i);
+            if (Transport.isOpen(server)) {
+                if (ReplicationMode.SELECTED == ReplicationMode.ACTIVE && syncing.get(i) != 0) {
+                    checkSync(i, server);
+                }
+                continue;
+            }
+            server = null;
             try {
-                Registry registry = LocateRegistry.getRegistry(null, rmiPorts[i]);
-                // Retrieve the remote server object
-                replications[i] = (TramServer) registry.lookup(rmiUrl);
-                
-                //If we reached this point without an exception, the system is operable
-                systemOperable = true;
-
+                // Retrieve the remote server object over the selected transport
+                server = Transport.SELECTED.connect(rmiPorts[i], rmiUrl);
+                if (ReplicationMode.SELECTED == ReplicationMode.ACTIVE
+                        && checkSync(i, server) == null) {
+                    Transport.release(server);
+                    server = null;
+                }
             } catch (RemoteException ex) {
                 //System.err.println("Couldn't contact registry.");
-                replications[i] = null;
             // If the registry can be reached but the server object doesn't exist
             } catch (NotBoundException ex) {
-                replications[i] = null;
                 //System.err.println("There is no object bound to " + rmiUrl);
             } catch (Exception e) {
                 //System.err.println("Error communicating with RM: " + e.getMessage());
             }
+            
+            // Replace the cached object, recording whether the RM went up or down
+            TramServer previous = replications.getAndSet(i, server);
+            if (previous != null) {
+                Transport.release(previous);
+            }
+            if ((previous == null) != (server == null)) {
+                EventLog.replicaChange(firstReplica + i + 1, server != null);
+                metrics.recordReplicaChange(i, server != null);
+                changed = true;
+            }
         }
 
-        return systemOperable;
+        if (changed) {
+            listTramService();
+        }
     }
 }
@@ -1,32 +1,42 @@
 package tramsimulate;
 import java.io.IOException;
-import java.rmi.NoSuchObjectException;
+import java.lang.management.ManagementFactory;
 import java.rmi.RemoteException; 
-import java.rmi.registry.LocateRegistry; 
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 
 /*** Front-end server class that registers itself as a remote server object
- *   on its own registry and forwards requests from tram clients to the 
+ *   on its own registry, or listens on its port when the NIO transport is
+ *   selected, and forwards requests from tram clients to the 
  *   replication servers that are active. Functions as long as at least one
- *   replication server is running. 
+ *   replication server is running. When the routes are split between replica
+ *   groups, each request goes to the group that owns its route, which 
+ *   functions as long as one of its replication servers is running.
  *   */
 public class ReplicationDriver implements TramServer {
     // Hardcoded RMI url for retrieving the tram server object
     public static String url = "rmi://localhost/s3438465/TramServer/";
     public static int selfPort = 8464;
     public static int[] ports = {8465, 8466, 8467}; // Ports to use for RMI communications
+    // Ports of the replication managers of each replica group, which each own
+    // a share of the routes. Set with -Dtram.replicaGroups as comma separated
+    // ports with groups separated by semicolons. One group of the ports above by default
+    public static int[][] groupPorts = 
+            ReplicaGroups.parseGroups(System.getProperty("tram.replicaGroups"), ports);
+    // Routes placed in a replica group, as route=group pairs. Other routes are
+    // spread over the groups by hash. Set with -Dtram.routeGroups
+    public static String routeGroups = System.getProperty("tram.routeGroups");
     public static int NUM_TRAMS = 5;
     // Singleton instance of the class
     private static final ReplicationDriver instance = new ReplicationDriver();
     
     
-    private ReplicationCommsManager comms;
+    private ReplicaGroups comms;
     
     // Private constructor for singleton pattern
     private ReplicationDriver() {
-        comms = new ReplicationCommsManager(ports, url);
+        comms = new ReplicaGroups(groupPorts, url, ReplicaGroups.parseRouteGroups(routeGroups));
     }
     
     // Method for retrieving the singleton instance
@@ -39,32 +49,20 @@ public class ReplicationDriver implements TramServer {
      * it can receive requests from remote clients */
     public static void main(String[] args) {
         try {
-            // Kill the registry if it was created by a previous terminated instance
-            try {
-                UnicastRemoteObject.unexportObject(LocateRegistry.getRegistry(selfPort), true);
-                System.out.println("Existing registry object deleted");
-            }
-            catch (NoSuchObjectException e){
-                System.out.println("No existing registry object.");
-            }
-            
             // Get the server instance
             TramServer server = getInstance();
             
-            // Register the front end for RMI usage
-            UnicastRemoteObject.exportObject((TramServer)server, selfPort); 
-            
-            Registry registry = LocateRegistry.createRegistry(selfPort);
-            
-            // Bind the server to the hardcoded url
-            registry.rebind(url, server);
+            // Make the front end reachable by clients over the selected transport
+            Transport.SELECTED.bind(server, selfPort, url);
             
             // Print the success message
-            System.out.println("Front end bound to: " + url);
+            System.out.println("Front end bound to: " + Transport.SELECTED.describe(selfPort, url));
+            
+            registerMetrics();
             
             
     
-        // Exit if the registry can't be reached        
+        // Exit if the registry can't be reached or the port can't be used
         } catch (RemoteException ex) {
             System.err.println("Couldn't contact rmiregistry.");
             ex.printStackTrace(); 
@@ -72,6 +70,21 @@ public class ReplicationDriver implements TramServer {
         }
     }
 
+    // Registers the front end's metrics MBean, one for each replica group
+    // named by group when there are several
+    private static void registerMetrics() {
+        ReplicaGroups groups = getInstance().comms;
+        try {
+            for (int i = 0; i < groups.size(); i++) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        groups.group(i).getMetrics(), new ObjectName("tramsimulate:type=FrontEnd"
+                        + (groups.size() > 1 ? ",group=" + i : "")));
+            }
+        } catch (JMException e) {
+            System.err.println("Couldn't register metrics MBean: " + e.getMessage());
+        }
+    }
+
     /*** Implementation of TramServer interface which replicates messages
      *   from remote clients to three replication managers 
      *   @param request - Marshalled RPCMessage containing request parameters
@@ -99,5 +112,19 @@ public class ReplicationDriver implements TramServer {
         
         return reply;
     }
+    
+    /*** Implementation of TramServer interface which replicates a batch of
+     *   messages from a remote client to the replication managers in one call
+     *   @param requests - Array of marshalled RPCMessages containing request parameters
+     */
+    public Message[] makeBatchRequest(Message[] requests) throws RemoteException {
+        try {
+            return comms.replicateBatch(requests);
+        }
+        catch (RemoteException e) {
+            System.out.println(e.getMessage());
+            throw e;
+        }
+    }
 
 }